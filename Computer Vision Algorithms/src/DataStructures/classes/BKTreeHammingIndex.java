@@ -0,0 +1,143 @@
+package DataStructures.classes;
+
+import DataStructures.interfaces.HammingIndex;
+
+import java.util.Arrays;
+
+/**
+ * This class is a BK-tree over 64 bit hashes. Every hash is a node, and a node's children are kept by their Hamming
+ * distance to it; a search only descends into the children whose distance is within radius of the query's distance
+ * to the node (triangle inequality), which skips most of the tree for small radii.
+ * <p>
+ * The tree is stored in primitive arrays indexed by id - the hash, the first child, the next sibling and the distance
+ * to the parent - so it holds no object per hash and is cheap for the garbage collector at tens of millions of
+ * hashes. It is not thread safe.
+ */
+public class BKTreeHammingIndex implements HammingIndex {
+    /*
+        class variables
+     */
+    private long[] hashes;
+    private int[] firstChild;
+    private int[] nextSibling;
+    private byte[] parentDistance;
+    private int size;
+
+    /**
+     * This constructor creates an empty index
+     */
+    public BKTreeHammingIndex() {
+        this(16);
+    }
+
+    /**
+     * @param capacity number of hashes to make room for
+     */
+    public BKTreeHammingIndex(int capacity) {
+        if(capacity < 0){
+            throw new IllegalArgumentException("the capacity must not be negative");
+        }
+        this.hashes = new long[capacity];
+        this.firstChild = new int[capacity];
+        this.nextSibling = new int[capacity];
+        this.parentDistance = new byte[capacity];
+    }
+
+    /**
+     * This method adds a hash, walking down from the root to the first node without a child at the hash's distance
+     *
+     * @param hash the hash
+     * @return returns the id of the hash
+     */
+    @Override
+    public int add(long hash) {
+        if(this.size == this.hashes.length) grow();
+        int id = this.size++;
+        this.hashes[id] = hash;
+        this.firstChild[id] = -1;
+        this.nextSibling[id] = -1;
+        if(id == 0) return id; // the root
+        int node = 0;
+        while(true){
+            int distance = Long.bitCount(this.hashes[node] ^ hash);
+            int child = this.firstChild[node];
+            while(child >= 0 && this.parentDistance[child] != distance){
+                child = this.nextSibling[child];
+            }
+            if(child < 0){
+                // no child at this distance yet: the new hash becomes one
+                this.parentDistance[id] = (byte) distance;
+                this.nextSibling[id] = this.firstChild[node];
+                this.firstChild[node] = id;
+                return id;
+            }
+            node = child;
+        }
+    }
+
+    /**
+     * @return returns the number of hashes in the index
+     */
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @param id the id of a hash
+     * @return returns the hash with the given id
+     */
+    @Override
+    public long getHash(int id) {
+        if(id < 0 || id >= this.size){
+            throw new IndexOutOfBoundsException("id " + id + " out of " + this.size);
+        }
+        return this.hashes[id];
+    }
+
+    /**
+     * This method finds every hash that differs from the query in at most radius bits
+     *
+     * @param query the query
+     * @param radius the largest Hamming distance, 0 - 64
+     * @return returns the ids of the hashes found, in increasing order
+     */
+    @Override
+    public int[] search(long query, int radius) {
+        if(radius < 0 || radius > 64){
+            throw new IllegalArgumentException("the radius must be between 0 and 64");
+        }
+        if(this.size == 0) return new int[0];
+        int[] found = new int[16];
+        int count = 0;
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = 0;
+        while(top > 0){
+            int node = stack[--top];
+            int distance = Long.bitCount(this.hashes[node] ^ query);
+            if(distance <= radius){
+                if(count == found.length) found = Arrays.copyOf(found, count * 2);
+                found[count++] = node;
+            }
+            // only the children at a distance within radius of this one can hold matches
+            for(int child = this.firstChild[node]; child >= 0; child = this.nextSibling[child]){
+                if(Math.abs(this.parentDistance[child] - distance) <= radius){
+                    if(top == stack.length) stack = Arrays.copyOf(stack, top * 2);
+                    stack[top++] = child;
+                }
+            }
+        }
+        int[] result = Arrays.copyOf(found, count);
+        Arrays.sort(result);
+        return result;
+    }
+
+    private void grow() {
+        int capacity = Math.max(16, this.hashes.length + (this.hashes.length >> 1));
+        this.hashes = Arrays.copyOf(this.hashes, capacity);
+        this.firstChild = Arrays.copyOf(this.firstChild, capacity);
+        this.nextSibling = Arrays.copyOf(this.nextSibling, capacity);
+        this.parentDistance = Arrays.copyOf(this.parentDistance, capacity);
+    }
+}
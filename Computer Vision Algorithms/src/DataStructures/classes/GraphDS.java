@@ -7,6 +7,7 @@ import javafx.scene.image.Image;
 
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -18,6 +19,14 @@ public class GraphDS<V, E> implements Graph<V, E> {
     private Map<String, Vertex<V, E>> graphVertexes;
     private Map<String, Edge<V, E>> graphEdges;
 
+    /**
+     * This constructor creates an empty graph
+     */
+    public GraphDS() {
+        this.graphVertexes = new HashMap<>();
+        this.graphEdges = new HashMap<>();
+    }
+
     /**
      * @return returns the number of vertexes in the graph
      */
@@ -50,6 +59,17 @@ public class GraphDS<V, E> implements Graph<V, E> {
         return new ArrayList<>(this.graphEdges.values());
     }
 
+    /**
+     * This method looks up the vertex holding an element
+     *
+     * @param element the element
+     * @return returns the vertex, null if the element is not on the graph
+     */
+    @Override
+    public Vertex<V, E> getVertex(V element) {
+        return this.graphVertexes.get(getVertexKey(element));
+    }
+
     /**
      * This method creates a vertex for an element and adds it into the graph
      *
@@ -82,13 +102,17 @@ public class GraphDS<V, E> implements Graph<V, E> {
         if(existingEdge(edgeKey)){
             throw new Exception("There's already an edge between these two elements");
         }
-        // create vertexes
-        Vertex<V, E> startVertex = new GraphVertex<>(startElement);
-        Vertex<V, E> endVertex = new GraphVertex<>(endElement);
+        // use the vertexes of the graph when the elements are on it, else create vertexes
+        Vertex<V, E> startVertex = getVertex(startElement);
+        Vertex<V, E> endVertex = getVertex(endElement);
+        if(startVertex == null) startVertex = new GraphVertex<>(startElement);
+        if(endVertex == null) endVertex = new GraphVertex<>(endElement);
         // add edge between the vertexes
         Edge<V, E> edge = new GraphEdge<>(startVertex, endVertex, weight);
-        // store the edge on the map
+        // store the edge on the map and on both vertexes, so that removing a vertex finds its edges
         this.graphEdges.put(edgeKey, edge);
+        startVertex.getEdges().add(edge);
+        if(endVertex != startVertex) endVertex.getEdges().add(edge);
         return edge; // return the newly added edge
     }
 
@@ -106,9 +130,12 @@ public class GraphDS<V, E> implements Graph<V, E> {
         }
         // iterate through all the edges  associated with this vertex
         for(Edge<V, E> edge: vertex.getEdges()){
-            // remove those edges from the graph
+            // remove those edges from the graph and from the vertex on their other end
             this.graphEdges.remove(getEdgeKey(edge.getStartVertex().element(), edge.getEndVertex().element()));
+            Vertex<V, E> other = edge.getStartVertex() == vertex ? edge.getEndVertex() : edge.getStartVertex();
+            if(other != vertex) other.getEdges().remove(edge);
         }
+        vertex.getEdges().clear();
         // then now remove the vertex from the graph
         this.graphVertexes.remove(getVertexKey(vertex.element()));
         // return the removed vertex
@@ -127,8 +154,10 @@ public class GraphDS<V, E> implements Graph<V, E> {
         if(!validateEdge(edge)){
             throw new Exception("This edge does not belong to the graph");
         }
-        // remove the edge from the graph
+        // remove the edge from the graph and from its vertexes
         this.graphEdges.remove(getEdgeKey(edge.getStartVertex().element(), edge.getEndVertex().element()));
+        edge.getStartVertex().getEdges().remove(edge);
+        edge.getEndVertex().getEdges().remove(edge);
         // return removed edge
         return edge;
     }
@@ -273,13 +302,16 @@ public class GraphDS<V, E> implements Graph<V, E> {
     }
 
     /**
-     * This method creates a key (Name of image)  for the given element
+     * This method creates a key (Name of image) for the given element, any other element (for example the Path of an
+     * image file) is keyed by its string form
      * @param element the element (image)
      * @return returns the keys
      */
     private String getVertexKey(V element){
-        Image ImageNode = (Image) element; // cast to Image object to use image class properties
-        return Paths.get(ImageNode.getUrl()).getFileName().toString(); // get the name of the image and return it as a key
+        if(element instanceof Image ImageNode){ // use image class properties
+            return Paths.get(ImageNode.getUrl()).getFileName().toString(); // get the name of the image and return it as a key
+        }
+        return String.valueOf(element);
     }
 
     /**
@@ -289,11 +321,8 @@ public class GraphDS<V, E> implements Graph<V, E> {
      * @return returns the key
      */
     private String getEdgeKey(V startElement, V endElement){
-        // cast to image object to use image class properties
-        Image startImageNode = (Image) startElement;
-        Image endImageNode = (Image) endElement;
         // get the name of images and create a key
-        return Paths.get(startImageNode.getUrl()).getFileName().toString() + " | " +  Paths.get(endImageNode.getUrl()).getFileName().toString();
+        return getVertexKey(startElement) + " | " +  getVertexKey(endElement);
     }
 
     /**
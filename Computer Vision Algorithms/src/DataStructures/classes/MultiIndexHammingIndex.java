@@ -0,0 +1,304 @@
+package DataStructures.classes;
+
+import DataStructures.interfaces.HammingIndex;
+
+import java.util.Arrays;
+
+/**
+ * This class is a multi-index hashing index over 64 bit hashes. The 64 bits are split into m substrings and every
+ * substring has its own hash table from substring value to the ids holding it. If two hashes differ in at most r
+ * bits, at least one of their m substrings differs in at most r / m bits (pigeonhole), so a search probes, in every
+ * table, each substring value within r / m bits of the query's, and checks the full distance of the ids found only.
+ * With m chosen so that substrings are about log2(size) bits long, a search touches few ids besides the matches.
+ * When the probes would outnumber the hashes (a large radius), the search scans all the hashes instead.
+ * <p>
+ * m is fixed when the index is created. Fewer, longer substrings keep the chains short on large indexes but multiply
+ * the probes of a given radius; more, shorter ones do the opposite. The default of 4 (16 bit substrings) suits up to
+ * about a hundred thousand hashes: at 50 million the chains hold about 760 ids each. substringsFor picks m from the
+ * expected number of hashes.
+ * <p>
+ * Everything is kept in primitive arrays: each table is an open addressing array of substring values with the head
+ * of a chain of ids, and the chains are linked through one int array per table indexed by id. A table grows with the
+ * number of distinct values of its substring, not with the number of hashes, so it never exceeds 2^(width + 1)
+ * slots. It is not thread safe.
+ */
+public class MultiIndexHammingIndex implements HammingIndex {
+    /*
+        number of substrings when none is given, 16 bits each
+     */
+    public static final int DEFAULT_SUBSTRINGS = 4;
+
+    /*
+        class variables
+     */
+    private final int substrings;
+    private final int[] shifts; // position of every substring in the hash
+    private final int[] widths; // number of bits of every substring
+    private long[] hashes;
+    private int size;
+    private int[][] tableKeys; // substring value of every slot
+    private int[][] tableHeads; // first id of the chain of every slot, -1 when the slot is empty
+    private int[][] nextInChain; // next id with the same substring value, -1 at the end
+    private final int[] tableMasks; // number of slots of every table minus one
+    private final int[] occupied; // number of distinct substring values in every table
+    private int[] seen; // query serial that last reached every id, so candidates are checked once
+    private int serial;
+
+    /**
+     * This constructor splits the hashes into DEFAULT_SUBSTRINGS substrings, for indexes of up to about a hundred
+     * thousand hashes (see substringsFor for larger ones)
+     */
+    public MultiIndexHammingIndex() {
+        this(DEFAULT_SUBSTRINGS);
+    }
+
+    /**
+     * @param substrings number of substrings the hashes are split into, 2 - 64
+     */
+    public MultiIndexHammingIndex(int substrings) {
+        if(substrings < 2 || substrings > 64){
+            throw new IllegalArgumentException("the number of substrings must be between 2 and 64");
+        }
+        this.substrings = substrings;
+        this.shifts = new int[substrings];
+        this.widths = new int[substrings];
+        for(int j = 0, shift = 0; j < substrings; j++){
+            // the first 64 % m substrings take one bit more
+            this.widths[j] = 64 / substrings + (j < 64 % substrings ? 1 : 0);
+            this.shifts[j] = shift;
+            shift += this.widths[j];
+        }
+        this.hashes = new long[16];
+        this.seen = new int[16];
+        this.nextInChain = new int[substrings][16];
+        this.tableKeys = new int[substrings][];
+        this.tableHeads = new int[substrings][];
+        this.tableMasks = new int[substrings];
+        this.occupied = new int[substrings];
+        for(int j = 0; j < substrings; j++){
+            allocateTable(j, 32);
+        }
+    }
+
+    /**
+     * This method picks the number of substrings for an index expected to hold the given number of hashes, so that
+     * substrings are about log2(expectedSize) bits long and the chains hold a few ids each
+     * @param expectedSize number of hashes the index is expected to hold
+     * @return returns the number of substrings, 2 - 8
+     */
+    public static int substringsFor(long expectedSize) {
+        if(expectedSize < 0){
+            throw new IllegalArgumentException("the expected size must not be negative");
+        }
+        // below 256 hashes a search is about as cheap as a scan anyway, more than 8 tables would only cost memory
+        double bits = Math.log(Math.max(256, expectedSize)) / Math.log(2);
+        return (int) Math.max(2, Math.round(64 / bits));
+    }
+
+    /**
+     * @return returns the number of substrings the hashes are split into
+     */
+    public int getSubstrings() {
+        return this.substrings;
+    }
+
+    /**
+     * This method adds a hash to every substring table
+     *
+     * @param hash the hash
+     * @return returns the id of the hash
+     */
+    @Override
+    public int add(long hash) {
+        if(this.size == this.hashes.length){
+            int capacity = this.hashes.length + (this.hashes.length >> 1);
+            this.hashes = Arrays.copyOf(this.hashes, capacity);
+            this.seen = Arrays.copyOf(this.seen, capacity);
+            for(int j = 0; j < this.substrings; j++){
+                this.nextInChain[j] = Arrays.copyOf(this.nextInChain[j], capacity);
+            }
+        }
+        int id = this.size++;
+        this.hashes[id] = hash;
+        for(int j = 0; j < this.substrings; j++){
+            insert(j, substring(hash, j), id);
+        }
+        return id;
+    }
+
+    /**
+     * @return returns the number of hashes in the index
+     */
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @param id the id of a hash
+     * @return returns the hash with the given id
+     */
+    @Override
+    public long getHash(int id) {
+        if(id < 0 || id >= this.size){
+            throw new IndexOutOfBoundsException("id " + id + " out of " + this.size);
+        }
+        return this.hashes[id];
+    }
+
+    /**
+     * This method finds every hash that differs from the query in at most radius bits
+     *
+     * @param query the query
+     * @param radius the largest Hamming distance, 0 - 64
+     * @return returns the ids of the hashes found, in increasing order
+     */
+    @Override
+    public int[] search(long query, int radius) {
+        if(radius < 0 || radius > 64){
+            throw new IllegalArgumentException("the radius must be between 0 and 64");
+        }
+        int[] found = new int[16];
+        int count = 0;
+        int substringRadius = radius / this.substrings;
+        if(probes(substringRadius) >= this.size){
+            // probing would cost more than looking at every hash
+            for(int id = 0; id < this.size; id++){
+                if(Long.bitCount(this.hashes[id] ^ query) <= radius){
+                    if(count == found.length) found = Arrays.copyOf(found, count * 2);
+                    found[count++] = id;
+                }
+            }
+            return Arrays.copyOf(found, count);
+        }
+        if(++this.serial == 0){
+            // the serial wrapped around: forget every mark
+            Arrays.fill(this.seen, 0);
+            this.serial = 1;
+        }
+        int[] flips = new int[substringRadius];
+        for(int j = 0; j < this.substrings; j++){
+            int key = substring(query, j);
+            for(int bits = 0; bits <= substringRadius; bits++){
+                // every combination of `bits` flipped positions, flips[] in increasing order
+                for(int k = 0; k < bits; k++) flips[k] = k;
+                while(true){
+                    int probe = key;
+                    for(int k = 0; k < bits; k++) probe ^= 1 << flips[k];
+                    for(int id = lookup(j, probe); id >= 0; id = this.nextInChain[j][id]){
+                        if(this.seen[id] == this.serial) continue;
+                        this.seen[id] = this.serial;
+                        if(Long.bitCount(this.hashes[id] ^ query) <= radius){
+                            if(count == found.length) found = Arrays.copyOf(found, count * 2);
+                            found[count++] = id;
+                        }
+                    }
+                    if(!nextCombination(flips, bits, this.widths[j])) break;
+                }
+            }
+        }
+        int[] result = Arrays.copyOf(found, count);
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * This method counts the probes a search with the given substring radius makes over all tables
+     */
+    private long probes(int substringRadius) {
+        long total = 0;
+        for(int j = 0; j < this.substrings; j++){
+            long combinations = 1;
+            for(int bits = 1; bits <= substringRadius && bits <= this.widths[j]; bits++){
+                // C(width, bits) from C(width, bits - 1)
+                combinations = combinations * (this.widths[j] - bits + 1) / bits;
+                total += combinations;
+            }
+            total++;
+        }
+        return total;
+    }
+
+    /**
+     * This method moves flips[] to the next combination of `bits` positions out of `width`
+     * @return returns false when there is none left
+     */
+    private static boolean nextCombination(int[] flips, int bits, int width) {
+        int k = bits - 1;
+        while(k >= 0 && flips[k] == width - bits + k) k--;
+        if(k < 0) return false;
+        flips[k]++;
+        for(int i = k + 1; i < bits; i++) flips[i] = flips[i - 1] + 1;
+        return true;
+    }
+
+    private int substring(long hash, int j) {
+        return (int) ((hash >>> this.shifts[j]) & ((1L << this.widths[j]) - 1));
+    }
+
+    /**
+     * This method spreads a substring value over the table, substrings of similar images share many low bits
+     */
+    private static int slotOf(int key, int mask) {
+        int mixed = key * 0x9E3779B9;
+        return (mixed ^ (mixed >>> 16)) & mask;
+    }
+
+    /**
+     * @return returns the first id of the chain holding the substring value, -1 when there is none
+     */
+    private int lookup(int j, int key) {
+        int[] keys = this.tableKeys[j], heads = this.tableHeads[j];
+        int mask = this.tableMasks[j];
+        for(int slot = slotOf(key, mask); heads[slot] >= 0; slot = (slot + 1) & mask){
+            if(keys[slot] == key) return heads[slot];
+        }
+        return -1;
+    }
+
+    private void insert(int j, int key, int id) {
+        int[] keys = this.tableKeys[j], heads = this.tableHeads[j];
+        int mask = this.tableMasks[j];
+        int slot = slotOf(key, mask);
+        while(heads[slot] >= 0 && keys[slot] != key){
+            slot = (slot + 1) & mask;
+        }
+        if(heads[slot] < 0 && ++this.occupied[j] * 2 > mask + 1){
+            // a new substring value would fill the table past half: grow it and look for the slot again
+            this.occupied[j]--;
+            rehash(j, (mask + 1) * 2);
+            insert(j, key, id);
+            return;
+        }
+        // prepend to the chain of this substring value (or start it)
+        this.nextInChain[j][id] = heads[slot];
+        keys[slot] = key;
+        heads[slot] = id;
+    }
+
+    private void allocateTable(int j, int capacity) {
+        this.tableMasks[j] = capacity - 1;
+        this.tableKeys[j] = new int[capacity];
+        this.tableHeads[j] = new int[capacity];
+        Arrays.fill(this.tableHeads[j], -1);
+    }
+
+    /**
+     * This method rebuilds a table with more slots, the chains keep their order
+     */
+    private void rehash(int j, int capacity) {
+        int[] oldKeys = this.tableKeys[j], oldHeads = this.tableHeads[j];
+        allocateTable(j, capacity);
+        int[] keys = this.tableKeys[j], heads = this.tableHeads[j];
+        int mask = this.tableMasks[j];
+        for(int slot = 0; slot < oldHeads.length; slot++){
+            if(oldHeads[slot] < 0) continue;
+            int target = slotOf(oldKeys[slot], mask);
+            while(heads[target] >= 0){
+                target = (target + 1) & mask;
+            }
+            keys[target] = oldKeys[slot];
+            heads[target] = oldHeads[slot];
+        }
+    }
+}
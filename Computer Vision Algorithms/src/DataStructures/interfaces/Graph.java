@@ -29,6 +29,13 @@ public interface Graph<V, E> {
      */
     ArrayList<Edge<V, E>> edges();
 
+    /**
+     * This method looks up the vertex holding an element
+     * @param element the element
+     * @return returns the vertex, null if the element is not on the graph
+     */
+    Vertex<V, E> getVertex(V element);
+
     /**
      * This method adds a vertex into the graph
      * @param element the element to be added on the graph
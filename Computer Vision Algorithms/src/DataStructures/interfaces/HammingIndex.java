@@ -0,0 +1,34 @@
+package DataStructures.interfaces;
+
+/**
+ * This interface defines an index over 64 bit hashes (for instance perceptual hashes) that finds every hash within a
+ * given Hamming distance of a query without comparing the query with all of them. Hashes are identified by the order
+ * they were added in: the first one added has id 0.
+ */
+public interface HammingIndex {
+    /**
+     * This method adds a hash to the index
+     * @param hash the hash
+     * @return returns the id of the hash
+     */
+    int add(long hash);
+
+    /**
+     * @return returns the number of hashes in the index
+     */
+    int size();
+
+    /**
+     * @param id the id of a hash
+     * @return returns the hash with the given id
+     */
+    long getHash(int id);
+
+    /**
+     * This method finds every hash that differs from the query in at most radius bits
+     * @param query the query
+     * @param radius the largest Hamming distance, 0 - 64
+     * @return returns the ids of the hashes found, in increasing order
+     */
+    int[] search(long query, int radius);
+}
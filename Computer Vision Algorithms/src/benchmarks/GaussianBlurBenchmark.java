@@ -0,0 +1,58 @@
+package benchmarks;
+
+import preprocessing.GaussianBlur;
+
+import java.util.Random;
+
+/**
+ * This class measures the throughput of GaussianBlur, to pick a sigma that fits a latency budget. It is a tool, not
+ * part of the library API: run its main method with the plane size and the sigmas to measure.
+ */
+public final class GaussianBlurBenchmark {
+    private GaussianBlurBenchmark() {
+    }
+
+    /**
+     * This method prints the throughput for every sigma given
+     * @param args width, height, iterations, then one or more sigmas (defaults: 1920 1080 20 1 2 4)
+     */
+    public static void main(String[] args) {
+        int width = args.length > 0 ? Integer.parseInt(args[0]) : 1920;
+        int height = args.length > 1 ? Integer.parseInt(args[1]) : 1080;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        double[] sigmas = {1, 2, 4};
+        if(args.length > 3){
+            sigmas = new double[args.length - 3];
+            for(int i = 3; i < args.length; i++){
+                sigmas[i - 3] = Double.parseDouble(args[i]);
+            }
+        }
+        for(double sigma : sigmas){
+            System.out.printf("sigma %.2f: %.1f megapixels/s%n", sigma, measureMegapixelsPerSecond(width, height, sigma, iterations));
+        }
+    }
+
+    /**
+     * This method measures the throughput of the luminance blur on a random plane
+     * @param width width of the test plane
+     * @param height height of the test plane
+     * @param sigma standard deviation to measure
+     * @param iterations number of timed runs (a few untimed warm up runs are done first)
+     * @return returns the throughput in megapixels per second
+     */
+    public static double measureMegapixelsPerSecond(int width, int height, double sigma, int iterations) {
+        byte[] source = new byte[width * height];
+        new Random(42).nextBytes(source);
+        byte[] destination = new byte[source.length];
+        GaussianBlur blur = new GaussianBlur(sigma);
+        for(int i = 0; i < 3; i++){
+            blur.blurLuma(source, width, height, destination);
+        }
+        long start = System.nanoTime();
+        for(int i = 0; i < iterations; i++){
+            blur.blurLuma(source, width, height, destination);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        return (double) width * height * iterations / 1e6 / seconds;
+    }
+}
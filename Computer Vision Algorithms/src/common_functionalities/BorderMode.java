@@ -0,0 +1,40 @@
+package common_functionalities;
+
+/**
+ * This enum defines how a neighbourhood operation reads pixels that fall outside the image
+ */
+public enum BorderMode {
+    /**
+     * the nearest edge pixel is repeated (aaa|abcd|ddd)
+     */
+    CLAMP,
+    /**
+     * the image is mirrored around the edge pixel, which is not repeated (cb|abcd|cb)
+     */
+    REFLECT,
+    /**
+     * pixels outside the image read as zero
+     */
+    ZERO;
+
+    /**
+     * This method maps a coordinate that may be outside the image onto a coordinate inside it
+     * @param index the coordinate
+     * @param length the size of the image along this axis
+     * @return returns the coordinate to read, or -1 when the pixel reads as zero
+     */
+    public int resolve(int index, int length) {
+        if(index >= 0 && index < length) return index;
+        switch (this){
+            case CLAMP:
+                return index < 0 ? 0 : length - 1;
+            case REFLECT:
+                if(length == 1) return 0;
+                int period = 2 * (length - 1);
+                int folded = Math.floorMod(index, period);
+                return folded < length ? folded : period - folded;
+            default:
+                return -1;
+        }
+    }
+}
@@ -1,7 +1,46 @@
 package common_functionalities;
 
 import javafx.scene.image.PixelReader;
+import raster.Raster;
 
 public interface CommonFunctionalities {
+    /**
+     * @deprecated the reader does not expose the image size, use the overload taking it
+     */
+    @Deprecated
     int convolutionApplicationPerPixel(PixelReader reader, int xcoord, int ycoord, int[][] convolutionMatrix);
+
+    /**
+     * This method applies a kernel to the gray value around a single pixel of an image, taps outside read as zero
+     * @param reader the pixel reader of the image
+     * @param width width of the image
+     * @param height height of the image
+     * @param xcoord x-coordinate of the pixel
+     * @param ycoord y-coordinate of the pixel
+     * @param convolutionMatrix the kernel indexed [row][column], with odd dimensions
+     * @return returns the weighted sum of the gray values around the pixel
+     */
+    int convolutionApplicationPerPixel(PixelReader reader, int width, int height, int xcoord, int ycoord, int[][] convolutionMatrix);
+
+    /**
+     * This method applies a kernel to the gray value around a single pixel of a raster, taps outside read as zero
+     * @param raster the raster
+     * @param xcoord x-coordinate of the pixel
+     * @param ycoord y-coordinate of the pixel
+     * @param convolutionMatrix the kernel indexed [row][column], with odd dimensions
+     * @return returns the weighted sum of the gray values around the pixel
+     */
+    int convolutionApplicationPerPixel(Raster raster, int xcoord, int ycoord, int[][] convolutionMatrix);
+
+    /**
+     * This method convolves a whole float plane with the given kernel
+     * @param source the plane to convolve (row major)
+     * @param width width of the plane
+     * @param height height of the plane
+     * @param kernel the kernel
+     * @param border how pixels outside the plane are read
+     * @param destination the plane to write to, a new one is allocated when it is null or too small
+     * @return returns the convolved plane
+     */
+    float[] convolve(float[] source, int width, int height, ConvolutionKernel kernel, BorderMode border, float[] destination);
 }
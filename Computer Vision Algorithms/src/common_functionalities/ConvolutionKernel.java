@@ -0,0 +1,218 @@
+package common_functionalities;
+
+import preprocessing.GaussianBlur;
+
+import java.util.Arrays;
+
+/**
+ * This class holds a flattened (row major) convolution kernel with odd dimensions. When the kernel is separable
+ * (rank 1, the outer product of a column and a row) the two 1D factors are worked out once when it is created.
+ */
+public final class ConvolutionKernel {
+    /*
+        relative tolerance used when checking whether the kernel is the outer product of two vectors
+     */
+    private static final float SEPARABLE_TOLERANCE = 1e-5f;
+
+    /*
+        class variables
+     */
+    private final int width;
+    private final int height;
+    private final float[] weights;
+    private final float[] rowFactor; // applied along x, null when the kernel is not separable
+    private final float[] columnFactor; // applied along y, null when the kernel is not separable
+
+    private ConvolutionKernel(float[] weights, int width, int height) {
+        if(width < 1 || height < 1 || width % 2 == 0 || height % 2 == 0){
+            throw new IllegalArgumentException("kernel dimensions must be odd and positive");
+        }
+        if(weights.length != width * height){
+            throw new IllegalArgumentException("kernel has " + weights.length + " weights, expected " + width * height);
+        }
+        this.width = width;
+        this.height = height;
+        this.weights = weights;
+        float[][] factors = factorize(weights, width, height);
+        this.rowFactor = factors == null ? null : factors[0];
+        this.columnFactor = factors == null ? null : factors[1];
+    }
+
+    /**
+     * This method creates a kernel from flattened float weights
+     * @param weights row major weights, copied
+     * @param width number of columns (odd)
+     * @param height number of rows (odd)
+     * @return returns the kernel
+     */
+    public static ConvolutionKernel of(float[] weights, int width, int height) {
+        return new ConvolutionKernel(weights.clone(), width, height);
+    }
+
+    /**
+     * This method creates a kernel from flattened integer weights, every weight is divided by the divisor
+     * @param weights row major weights
+     * @param width number of columns (odd)
+     * @param height number of rows (odd)
+     * @param divisor the value every weight is divided by (for example the sum of the weights)
+     * @return returns the kernel
+     */
+    public static ConvolutionKernel of(int[] weights, int width, int height, int divisor) {
+        if(divisor == 0){
+            throw new IllegalArgumentException("divisor must not be zero");
+        }
+        float[] scaled = new float[weights.length];
+        for(int i = 0; i < weights.length; i++){
+            scaled[i] = (float) weights[i] / divisor;
+        }
+        return new ConvolutionKernel(scaled, width, height);
+    }
+
+    /**
+     * This method creates a kernel from a matrix indexed [row][column]
+     * @param matrix the kernel matrix, every row must have the same length
+     * @return returns the kernel
+     */
+    public static ConvolutionKernel of(int[][] matrix) {
+        int height = matrix.length;
+        int width = height == 0 ? 0 : matrix[0].length;
+        int[] flattened = new int[width * height];
+        for(int y = 0; y < height; y++){
+            if(matrix[y].length != width){
+                throw new IllegalArgumentException("kernel rows must all have the same length");
+            }
+            System.arraycopy(matrix[y], 0, flattened, y * width, width);
+        }
+        return of(flattened, width, height, 1);
+    }
+
+    /**
+     * This method creates a normalized gaussian kernel using the same integer weights as GaussianBlur
+     * @param sigma standard deviation in pixels
+     * @return returns the kernel
+     */
+    public static ConvolutionKernel gaussian(double sigma) {
+        int[] taps = GaussianBlur.kernel(sigma, GaussianBlur.radiusForSigma(sigma));
+        float[] factor = new float[taps.length];
+        for(int i = 0; i < taps.length; i++){
+            factor[i] = taps[i] / (float) (1 << GaussianBlur.KERNEL_BITS);
+        }
+        return outerProduct(factor, factor);
+    }
+
+    /**
+     * This method creates a normalized square box (mean) kernel
+     * @param radius radius of the box, the kernel is 2 * radius + 1 wide
+     * @return returns the kernel
+     */
+    public static ConvolutionKernel box(int radius) {
+        int size = 2 * radius + 1;
+        float[] factor = new float[size];
+        Arrays.fill(factor, 1f / size);
+        return outerProduct(factor, factor);
+    }
+
+    /**
+     * @return returns the 3x3 sobel kernel for the horizontal gradient
+     */
+    public static ConvolutionKernel sobelX() {
+        return of(new int[]{-1, 0, 1, -2, 0, 2, -1, 0, 1}, 3, 3, 1);
+    }
+
+    /**
+     * @return returns the 3x3 sobel kernel for the vertical gradient
+     */
+    public static ConvolutionKernel sobelY() {
+        return of(new int[]{-1, -2, -1, 0, 0, 0, 1, 2, 1}, 3, 3, 1);
+    }
+
+    /**
+     * @return returns the 3x3 sharpening kernel (identity plus the negative laplacian)
+     */
+    public static ConvolutionKernel sharpen() {
+        return of(new int[]{0, -1, 0, -1, 5, -1, 0, -1, 0}, 3, 3, 1);
+    }
+
+    /**
+     * This method creates the kernel column * row
+     * @param row the factor applied along x
+     * @param column the factor applied along y
+     * @return returns the kernel
+     */
+    public static ConvolutionKernel outerProduct(float[] row, float[] column) {
+        float[] weights = new float[row.length * column.length];
+        for(int y = 0; y < column.length; y++){
+            for(int x = 0; x < row.length; x++){
+                weights[y * row.length + x] = column[y] * row[x];
+            }
+        }
+        return new ConvolutionKernel(weights, row.length, column.length);
+    }
+
+    /**
+     * @return returns the number of columns
+     */
+    public int getWidth() {
+        return this.width;
+    }
+
+    /**
+     * @return returns the number of rows
+     */
+    public int getHeight() {
+        return this.height;
+    }
+
+    /**
+     * @return returns true when the kernel is the outer product of a column and a row
+     */
+    public boolean isSeparable() {
+        return this.rowFactor != null;
+    }
+
+    /*
+        the arrays below are shared with the convolution engine and must not be modified
+     */
+    float[] weights() {
+        return this.weights;
+    }
+
+    float[] rowFactor() {
+        return this.rowFactor;
+    }
+
+    float[] columnFactor() {
+        return this.columnFactor;
+    }
+
+    /**
+     * This method checks whether the kernel has rank 1 and if so splits it into a row and a column factor
+     * @return returns {row, column} or null when the kernel is not separable
+     */
+    private static float[][] factorize(float[] weights, int width, int height) {
+        // use the largest weight as the pivot, its row and column are the two factors (up to scale)
+        int pivot = 0;
+        for(int i = 1; i < weights.length; i++){
+            if(Math.abs(weights[i]) > Math.abs(weights[pivot])) pivot = i;
+        }
+        float pivotValue = weights[pivot];
+        if(pivotValue == 0) return null;
+        int pivotRow = pivot / width;
+        int pivotColumn = pivot % width;
+        float[] row = new float[width];
+        float[] column = new float[height];
+        for(int x = 0; x < width; x++){
+            row[x] = weights[pivotRow * width + x];
+        }
+        for(int y = 0; y < height; y++){
+            column[y] = weights[y * width + pivotColumn] / pivotValue;
+        }
+        float tolerance = SEPARABLE_TOLERANCE * Math.abs(pivotValue);
+        for(int y = 0; y < height; y++){
+            for(int x = 0; x < width; x++){
+                if(Math.abs(weights[y * width + x] - column[y] * row[x]) > tolerance) return null;
+            }
+        }
+        return new float[][]{row, column};
+    }
+}
@@ -0,0 +1,365 @@
+package common_functionalities;
+
+import helpers.BufferPool;
+import helpers.ParallelRows;
+import helpers.SimdSupport;
+import javafx.scene.image.PixelReader;
+import mathematical.classes.SimdKernels;
+import raster.Luma;
+import raster.Raster;
+
+/**
+ * This class convolves whole primitive rasters (row major float or unsigned byte planes) with a ConvolutionKernel.
+ * Separable kernels are run as a horizontal and a vertical 1D pass, other kernels as a direct 2D pass. Pixels whose
+ * neighbourhood is fully inside the image take a fast path without any border logic, the border pixels resolve
+ * their taps through the BorderMode. The kernel is applied as a correlation (it is not flipped), like most image
+ * libraries do, and rows are split into bands across the common fork-join pool. The separable row passes use the
+ * Vector API when SimdSupport.ENABLED is true.
+ */
+public class ImageConvolution implements CommonFunctionalities {
+    /*
+        number of pixels a band should cover before it is worth a separate task
+     */
+    private static final int PIXELS_PER_BAND = 1 << 15;
+
+    /**
+     * This method applies a kernel to the gray value around a single pixel, taps that fall outside the image read as zero.
+     * The reader does not expose the image size, so taps past the right or bottom edge are only found by the exception
+     * the reader throws for them, one per tap: prefer the overload taking the size, or the Raster one.
+     *
+     * @param reader the pixel reader of the image
+     * @param xcoord x-coordinate of the pixel
+     * @param ycoord y-coordinate of the pixel
+     * @param convolutionMatrix the kernel indexed [row][column], with odd dimensions
+     * @return returns the weighted sum of the gray values around the pixel
+     * @deprecated use convolutionApplicationPerPixel(PixelReader, int, int, int, int, int[][]) with the image size
+     */
+    @Deprecated
+    @Override
+    public int convolutionApplicationPerPixel(PixelReader reader, int xcoord, int ycoord, int[][] convolutionMatrix) {
+        int radiusY = convolutionMatrix.length / 2;
+        int sum = 0;
+        for(int ky = 0; ky < convolutionMatrix.length; ky++){
+            int radiusX = convolutionMatrix[ky].length / 2;
+            for(int kx = 0; kx < convolutionMatrix[ky].length; kx++){
+                int x = xcoord + kx - radiusX;
+                int y = ycoord + ky - radiusY;
+                if(x < 0 || y < 0) continue;
+                try{
+                    sum += convolutionMatrix[ky][kx] * Luma.luma(reader.getArgb(x, y));
+                } catch (IndexOutOfBoundsException e){
+                    // taps past the right or bottom edge read as zero
+                }
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * This method applies a kernel to the gray value around a single pixel of an image of known size, taps that fall
+     * outside the image read as zero. It goes through the PixelReader one tap at a time, so it should only be used for
+     * a handful of pixels - whole images should go through convolve.
+     *
+     * @param reader the pixel reader of the image
+     * @param width width of the image
+     * @param height height of the image
+     * @param xcoord x-coordinate of the pixel
+     * @param ycoord y-coordinate of the pixel
+     * @param convolutionMatrix the kernel indexed [row][column], with odd dimensions
+     * @return returns the weighted sum of the gray values around the pixel
+     */
+    @Override
+    public int convolutionApplicationPerPixel(PixelReader reader, int width, int height, int xcoord, int ycoord, int[][] convolutionMatrix) {
+        int radiusY = convolutionMatrix.length / 2;
+        int sum = 0;
+        for(int ky = 0; ky < convolutionMatrix.length; ky++){
+            int radiusX = convolutionMatrix[ky].length / 2;
+            for(int kx = 0; kx < convolutionMatrix[ky].length; kx++){
+                int x = xcoord + kx - radiusX;
+                int y = ycoord + ky - radiusY;
+                if(x < 0 || y < 0 || x >= width || y >= height) continue;
+                sum += convolutionMatrix[ky][kx] * Luma.luma(reader.getArgb(x, y));
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * This method applies a kernel to the gray value around a single pixel of a raster, taps that fall outside the
+     * raster read as zero. Like the PixelReader version it is meant for a handful of pixels.
+     *
+     * @param raster the raster
+     * @param xcoord x-coordinate of the pixel
+     * @param ycoord y-coordinate of the pixel
+     * @param convolutionMatrix the kernel indexed [row][column], with odd dimensions
+     * @return returns the weighted sum of the gray values around the pixel
+     */
+    @Override
+    public int convolutionApplicationPerPixel(Raster raster, int xcoord, int ycoord, int[][] convolutionMatrix) {
+        int radiusY = convolutionMatrix.length / 2;
+        int sum = 0;
+        for(int ky = 0; ky < convolutionMatrix.length; ky++){
+            int radiusX = convolutionMatrix[ky].length / 2;
+            for(int kx = 0; kx < convolutionMatrix[ky].length; kx++){
+                int x = xcoord + kx - radiusX;
+                int y = ycoord + ky - radiusY;
+                if(x < 0 || y < 0 || x >= raster.getWidth() || y >= raster.getHeight()) continue;
+                sum += convolutionMatrix[ky][kx] * raster.getLuma(x, y);
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * This method convolves a float plane with the kernel
+     * @param source the plane to convolve
+     * @param width width of the plane
+     * @param height height of the plane
+     * @param kernel the kernel
+     * @param border how pixels outside the plane are read
+     * @param destination the plane to write to, a new one is allocated when it is null or too small (may not be the source)
+     * @return returns the convolved plane
+     */
+    @Override
+    public float[] convolve(float[] source, int width, int height, ConvolutionKernel kernel, BorderMode border, float[] destination) {
+        int size = width * height;
+        if(destination == null || destination.length < size){
+            destination = new float[size];
+        }
+        if(kernel.isSeparable()){
+            // the plane between the two passes is borrowed from the shared pool
+            float[] horizontal = BufferPool.shared().borrowFloats(size);
+            try{
+                horizontalPass(source, horizontal, width, height, kernel.rowFactor(), border);
+                verticalPass(horizontal, destination, width, height, kernel.columnFactor(), border);
+            } finally {
+                BufferPool.shared().release(horizontal);
+            }
+        } else {
+            directPass(source, destination, width, height, kernel, border);
+        }
+        return destination;
+    }
+
+    /**
+     * This method convolves a luminance plane (one unsigned byte per pixel) with the kernel
+     * @param source the plane to convolve
+     * @param width width of the plane
+     * @param height height of the plane
+     * @param kernel the kernel
+     * @param border how pixels outside the plane are read
+     * @param destination the plane to write to, a new one is allocated when it is null or too small
+     * @return returns the convolved (unclamped) values
+     */
+    public float[] convolve(byte[] source, int width, int height, ConvolutionKernel kernel, BorderMode border, float[] destination) {
+        float[] plane = toFloat(source, width * height);
+        try{
+            return convolve(plane, width, height, kernel, border, destination);
+        } finally {
+            BufferPool.shared().release(plane);
+        }
+    }
+
+    /**
+     * This method convolves a luminance plane and rounds the result back to unsigned bytes, saturating at 0 and 255
+     * @param source the plane to convolve
+     * @param width width of the plane
+     * @param height height of the plane
+     * @param kernel the kernel
+     * @param border how pixels outside the plane are read
+     * @param destination the plane to write to, a new one is allocated when it is null or too small
+     * @return returns the convolved plane
+     */
+    public byte[] convolveToBytes(byte[] source, int width, int height, ConvolutionKernel kernel, BorderMode border, byte[] destination) {
+        int size = width * height;
+        if(destination == null || destination.length < size){
+            destination = new byte[size];
+        }
+        float[] result = convolve(source, width, height, kernel, border, BufferPool.shared().borrowFloats(size));
+        try{
+            for(int i = 0; i < size; i++){
+                destination[i] = (byte) Math.min(255, Math.max(0, Math.round(result[i])));
+            }
+        } finally {
+            BufferPool.shared().release(result);
+        }
+        return destination;
+    }
+
+    /**
+     * This method blurs a luminance plane with a gaussian kernel
+     * @param source the plane to blur
+     * @param width width of the plane
+     * @param height height of the plane
+     * @param sigma standard deviation in pixels
+     * @param border how pixels outside the plane are read
+     * @return returns the blurred plane
+     */
+    public byte[] blur(byte[] source, int width, int height, double sigma, BorderMode border) {
+        return convolveToBytes(source, width, height, ConvolutionKernel.gaussian(sigma), border, null);
+    }
+
+    /**
+     * This method sharpens a luminance plane with the 3x3 sharpening kernel
+     * @param source the plane to sharpen
+     * @param width width of the plane
+     * @param height height of the plane
+     * @param border how pixels outside the plane are read
+     * @return returns the sharpened plane
+     */
+    public byte[] sharpen(byte[] source, int width, int height, BorderMode border) {
+        return convolveToBytes(source, width, height, ConvolutionKernel.sharpen(), border, null);
+    }
+
+    /**
+     * This method computes the sobel gradient magnitude of a luminance plane
+     * @param source the plane
+     * @param width width of the plane
+     * @param height height of the plane
+     * @param border how pixels outside the plane are read
+     * @return returns the gradient magnitude of every pixel
+     */
+    public float[] sobelMagnitude(byte[] source, int width, int height, BorderMode border) {
+        int size = width * height;
+        float[] plane = toFloat(source, size);
+        float[] gradientY = BufferPool.shared().borrowFloats(size);
+        try{
+            float[] gradientX = convolve(plane, width, height, ConvolutionKernel.sobelX(), border, null);
+            convolve(plane, width, height, ConvolutionKernel.sobelY(), border, gradientY);
+            // reuse the horizontal gradient for the magnitude
+            for(int i = 0; i < size; i++){
+                gradientX[i] = (float) Math.sqrt(gradientX[i] * gradientX[i] + gradientY[i] * gradientY[i]);
+            }
+            return gradientX;
+        } finally {
+            BufferPool.shared().release(plane);
+            BufferPool.shared().release(gradientY);
+        }
+    }
+
+    /**
+     * This method applies a 1D kernel along every row
+     */
+    private static void horizontalPass(float[] source, float[] destination, int width, int height, float[] taps, BorderMode border) {
+        int radius = taps.length / 2;
+        ParallelRows.forEachBand(height, ParallelRows.rowsFor(width, PIXELS_PER_BAND), (start, end) -> {
+            for(int y = start; y < end; y++){
+                int rowOffset = y * width;
+                int interiorStart = Math.min(radius, width);
+                int interiorEnd = Math.max(interiorStart, width - radius);
+                for(int x = 0; x < interiorStart; x++){
+                    destination[rowOffset + x] = borderTap(source, rowOffset, x, width, taps, border);
+                }
+                // interior: every tap lands inside the row
+                if(SimdSupport.ENABLED){
+                    SimdKernels.correlateRow(source, rowOffset, interiorStart, interiorEnd, taps, destination);
+                } else {
+                    for(int x = interiorStart; x < interiorEnd; x++){
+                        int base = rowOffset + x - radius;
+                        float sum = 0;
+                        for(int k = 0; k < taps.length; k++){
+                            sum += taps[k] * source[base + k];
+                        }
+                        destination[rowOffset + x] = sum;
+                    }
+                }
+                for(int x = interiorEnd; x < width; x++){
+                    destination[rowOffset + x] = borderTap(source, rowOffset, x, width, taps, border);
+                }
+            }
+        });
+    }
+
+    /**
+     * This method applies a 1D kernel along a row for a pixel near the left or right edge
+     */
+    private static float borderTap(float[] source, int rowOffset, int x, int width, float[] taps, BorderMode border) {
+        int radius = taps.length / 2;
+        float sum = 0;
+        for(int k = 0; k < taps.length; k++){
+            int sx = border.resolve(x + k - radius, width);
+            if(sx >= 0) sum += taps[k] * source[rowOffset + sx];
+        }
+        return sum;
+    }
+
+    /**
+     * This method applies a 1D kernel down every column, accumulating whole rows so the reads stay contiguous
+     */
+    private static void verticalPass(float[] source, float[] destination, int width, int height, float[] taps, BorderMode border) {
+        int radius = taps.length / 2;
+        ParallelRows.forEachBand(height, ParallelRows.rowsFor(width, PIXELS_PER_BAND), (start, end) -> {
+            for(int y = start; y < end; y++){
+                int outputOffset = y * width;
+                boolean interior = y >= radius && y + radius < height;
+                for(int x = 0; x < width; x++){
+                    destination[outputOffset + x] = 0;
+                }
+                for(int k = 0; k < taps.length; k++){
+                    int sy = interior ? y + k - radius : border.resolve(y + k - radius, height);
+                    if(sy < 0) continue;
+                    float weight = taps[k];
+                    int rowOffset = sy * width;
+                    if(SimdSupport.ENABLED){
+                        SimdKernels.accumulateScaled(source, rowOffset, weight, destination, outputOffset, width);
+                        continue;
+                    }
+                    for(int x = 0; x < width; x++){
+                        destination[outputOffset + x] += weight * source[rowOffset + x];
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * This method applies a non separable 2D kernel
+     */
+    private static void directPass(float[] source, float[] destination, int width, int height, ConvolutionKernel kernel, BorderMode border) {
+        float[] weights = kernel.weights();
+        int kernelWidth = kernel.getWidth();
+        int kernelHeight = kernel.getHeight();
+        int radiusX = kernelWidth / 2;
+        int radiusY = kernelHeight / 2;
+        ParallelRows.forEachBand(height, ParallelRows.rowsFor(width, PIXELS_PER_BAND), (start, end) -> {
+            for(int y = start; y < end; y++){
+                boolean interiorRow = y >= radiusY && y + radiusY < height;
+                for(int x = 0; x < width; x++){
+                    float sum = 0;
+                    if(interiorRow && x >= radiusX && x + radiusX < width){
+                        // interior: the whole neighbourhood is inside the image
+                        for(int ky = 0; ky < kernelHeight; ky++){
+                            int base = (y + ky - radiusY) * width + x - radiusX;
+                            int kernelOffset = ky * kernelWidth;
+                            for(int kx = 0; kx < kernelWidth; kx++){
+                                sum += weights[kernelOffset + kx] * source[base + kx];
+                            }
+                        }
+                    } else {
+                        for(int ky = 0; ky < kernelHeight; ky++){
+                            int sy = border.resolve(y + ky - radiusY, height);
+                            if(sy < 0) continue;
+                            for(int kx = 0; kx < kernelWidth; kx++){
+                                int sx = border.resolve(x + kx - radiusX, width);
+                                if(sx >= 0) sum += weights[ky * kernelWidth + kx] * source[sy * width + sx];
+                            }
+                        }
+                    }
+                    destination[y * width + x] = sum;
+                }
+            }
+        });
+    }
+
+    /**
+     * This method widens an unsigned byte plane to floats, into a plane borrowed from the shared pool that the caller
+     * releases
+     */
+    private static float[] toFloat(byte[] source, int size) {
+        float[] plane = BufferPool.shared().borrowFloats(size);
+        for(int i = 0; i < size; i++){
+            plane[i] = source[i] & 0xff;
+        }
+        return plane;
+    }
+}
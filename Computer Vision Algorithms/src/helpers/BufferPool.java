@@ -0,0 +1,282 @@
+package helpers;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
+
+/**
+ * This class keeps scratch int[], byte[] and float[] buffers for reuse so the image hot paths stop allocating a new
+ * raster on every call. Buffers come in power of two size classes: borrowing asks for a minimum length and gets an
+ * array of the next size class up (its content is whatever the previous user left in it), releasing hands it back.
+ * Every thread first looks in its own single slot per size class, so a loop that borrows and releases the same sizes
+ * never touches shared state; otherwise buffers go through a shared queue per size class holding at most
+ * maxPerClass buffers. Requests larger than the biggest size class are simply allocated and never retained.
+ * <p>
+ * Only buffers of at most MAX_SLOT_BYTES go to the thread slots, so a thread holds at most about twice that per type
+ * and its slots go away with it. Larger buffers are only kept by the shared queues, and only while the bytes they
+ * retain stay within maxRetainedBytes: a burst of large frames released at once cannot pin more than that.
+ * The pool is thread safe. A buffer must not be used after it has been released.
+ */
+public final class BufferPool {
+    /*
+        the smallest and largest size classes, as powers of two of the number of elements
+     */
+    private static final int MIN_CLASS_BITS = 6;
+    private static final int MAX_CLASS_BITS = 26;
+    private static final int CLASSES = MAX_CLASS_BITS - MIN_CLASS_BITS + 1;
+
+    /*
+        number of buffers kept per size class and type by the shared pool when none is given
+     */
+    public static final int DEFAULT_MAX_PER_CLASS = 8;
+
+    /*
+        bytes the shared queues may retain when no limit is given (an eighth of the heap), and the largest buffer a
+        thread slot keeps
+     */
+    public static final long DEFAULT_MAX_RETAINED_BYTES = Runtime.getRuntime().maxMemory() / 8;
+    public static final int MAX_SLOT_BYTES = 1 << 20;
+
+    private static final BufferPool SHARED = new BufferPool(DEFAULT_MAX_PER_CLASS);
+
+    /*
+        class variables
+     */
+    private final Kind<int[]> ints;
+    private final Kind<byte[]> bytes;
+    private final Kind<float[]> floats;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final AtomicLong bytesRetained = new AtomicLong();
+    private final long maxRetainedBytes;
+
+    /**
+     * This constructor limits the shared queues to DEFAULT_MAX_RETAINED_BYTES
+     * @param maxPerClass number of buffers the shared queues keep per size class and type (thread slots not included)
+     */
+    public BufferPool(int maxPerClass) {
+        this(maxPerClass, DEFAULT_MAX_RETAINED_BYTES);
+    }
+
+    /**
+     * @param maxPerClass number of buffers the shared queues keep per size class and type (thread slots not included)
+     * @param maxRetainedBytes number of bytes the shared queues may retain over all size classes and types
+     */
+    public BufferPool(int maxPerClass, long maxRetainedBytes) {
+        if(maxPerClass < 0 || maxRetainedBytes < 0){
+            throw new IllegalArgumentException("maxPerClass and maxRetainedBytes must not be negative");
+        }
+        this.maxRetainedBytes = maxRetainedBytes;
+        this.ints = new Kind<>(int[]::new, Integer.BYTES, maxPerClass);
+        this.bytes = new Kind<>(byte[]::new, Byte.BYTES, maxPerClass);
+        this.floats = new Kind<>(float[]::new, Float.BYTES, maxPerClass);
+    }
+
+    /**
+     * @return returns the pool shared by the preprocessing and vector operators
+     */
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * This method borrows an int[] of at least the given length
+     * @param minimumLength the length needed
+     * @return returns a buffer, possibly longer than asked and not cleared
+     */
+    public int[] borrowInts(int minimumLength) {
+        return borrow(this.ints, minimumLength);
+    }
+
+    /**
+     * This method borrows a byte[] of at least the given length
+     * @param minimumLength the length needed
+     * @return returns a buffer, possibly longer than asked and not cleared
+     */
+    public byte[] borrowBytes(int minimumLength) {
+        return borrow(this.bytes, minimumLength);
+    }
+
+    /**
+     * This method borrows a float[] of at least the given length
+     * @param minimumLength the length needed
+     * @return returns a buffer, possibly longer than asked and not cleared
+     */
+    public float[] borrowFloats(int minimumLength) {
+        return borrow(this.floats, minimumLength);
+    }
+
+    /**
+     * This method gives an int[] back to the pool, arrays that are not of a size class (or null) are ignored
+     * @param buffer the buffer
+     */
+    public void release(int[] buffer) {
+        if(buffer != null) release(this.ints, buffer, buffer.length);
+    }
+
+    /**
+     * This method gives a byte[] back to the pool, arrays that are not of a size class (or null) are ignored
+     * @param buffer the buffer
+     */
+    public void release(byte[] buffer) {
+        if(buffer != null) release(this.bytes, buffer, buffer.length);
+    }
+
+    /**
+     * This method gives a float[] back to the pool, arrays that are not of a size class (or null) are ignored
+     * @param buffer the buffer
+     */
+    public void release(float[] buffer) {
+        if(buffer != null) release(this.floats, buffer, buffer.length);
+    }
+
+    /**
+     * @return returns the number of borrows served by a retained buffer
+     */
+    public long getHits() {
+        return this.hits.sum();
+    }
+
+    /**
+     * @return returns the number of borrows that had to allocate
+     */
+    public long getMisses() {
+        return this.misses.sum();
+    }
+
+    /**
+     * @return returns the number of bytes held by the shared queues waiting to be borrowed, thread slots not included
+     */
+    public long getBytesRetained() {
+        return this.bytesRetained.get();
+    }
+
+    /**
+     * @return returns the number of bytes the shared queues may retain
+     */
+    public long getMaxRetainedBytes() {
+        return this.maxRetainedBytes;
+    }
+
+    /**
+     * This method empties the shared queues, buffers in the thread slots are dropped as their threads borrow them
+     */
+    public void clear() {
+        for(Kind<?> kind : new Kind<?>[]{this.ints, this.bytes, this.floats}){
+            for(int sizeClass = 0; sizeClass < CLASSES; sizeClass++){
+                while(kind.shared[sizeClass].poll() != null){
+                    kind.counts[sizeClass].decrementAndGet();
+                    this.bytesRetained.addAndGet(-((long) kind.bytesPerElement << (sizeClass + MIN_CLASS_BITS)));
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool{hits=" + getHits() + ", misses=" + getMisses() + ", bytesRetained=" + getBytesRetained() + "}";
+    }
+
+    private <A> A borrow(Kind<A> kind, int minimumLength) {
+        if(minimumLength < 0){
+            throw new IllegalArgumentException("negative buffer length");
+        }
+        int sizeClass = sizeClassFor(minimumLength);
+        if(sizeClass >= CLASSES){
+            this.misses.increment();
+            return kind.allocator.apply(minimumLength);
+        }
+        long size = (long) kind.bytesPerElement << (sizeClass + MIN_CLASS_BITS);
+        if(size <= MAX_SLOT_BYTES){
+            Object[] slots = kind.slots.get();
+            Object cached = slots[sizeClass];
+            if(cached != null){
+                slots[sizeClass] = null;
+                this.hits.increment();
+                return kind.type.cast(cached);
+            }
+        }
+        A pooled = kind.shared[sizeClass].poll();
+        if(pooled != null){
+            kind.counts[sizeClass].decrementAndGet();
+            this.hits.increment();
+            this.bytesRetained.addAndGet(-size);
+            return pooled;
+        }
+        this.misses.increment();
+        return kind.allocator.apply(1 << (sizeClass + MIN_CLASS_BITS));
+    }
+
+    private <A> void release(Kind<A> kind, A buffer, int length) {
+        int sizeClass = Integer.numberOfTrailingZeros(length) - MIN_CLASS_BITS;
+        // only exact size classes come from this pool
+        if(Integer.bitCount(length) != 1 || sizeClass < 0 || sizeClass >= CLASSES) return;
+        long size = (long) kind.bytesPerElement * length;
+        if(size <= MAX_SLOT_BYTES){
+            Object[] slots = kind.slots.get();
+            if(slots[sizeClass] == null){
+                slots[sizeClass] = buffer;
+                return;
+            }
+        }
+        // reserve a place in the shared queue and the bytes before adding, so that neither bound is ever exceeded
+        if(kind.counts[sizeClass].incrementAndGet() > kind.maxPerClass){
+            kind.counts[sizeClass].decrementAndGet();
+            return;
+        }
+        if(!reserve(size)){
+            kind.counts[sizeClass].decrementAndGet();
+            return;
+        }
+        kind.shared[sizeClass].offer(buffer);
+    }
+
+    /**
+     * This method adds to the retained bytes unless that would go over maxRetainedBytes
+     * @return returns true when the bytes were added
+     */
+    private boolean reserve(long size) {
+        while(true){
+            long retained = this.bytesRetained.get();
+            if(retained + size > this.maxRetainedBytes) return false;
+            if(this.bytesRetained.compareAndSet(retained, retained + size)) return true;
+        }
+    }
+
+    /**
+     * @return returns the index of the smallest size class holding the given length
+     */
+    private static int sizeClassFor(int length) {
+        if(length <= 1 << MIN_CLASS_BITS) return 0;
+        return 32 - Integer.numberOfLeadingZeros(length - 1) - MIN_CLASS_BITS;
+    }
+
+    /**
+     * This class holds the queues and thread slots of one array type
+     */
+    private static final class Kind<A> {
+        private final IntFunction<A> allocator;
+        private final Class<A> type;
+        private final int bytesPerElement;
+        private final int maxPerClass;
+        private final ConcurrentLinkedQueue<A>[] shared;
+        private final AtomicInteger[] counts;
+        private final ThreadLocal<Object[]> slots = ThreadLocal.withInitial(() -> new Object[CLASSES]);
+
+        @SuppressWarnings({"unchecked", "rawtypes"}) // generic arrays can only be created raw
+        private Kind(IntFunction<A> allocator, int bytesPerElement, int maxPerClass) {
+            this.allocator = allocator;
+            this.type = (Class<A>) allocator.apply(0).getClass();
+            this.bytesPerElement = bytesPerElement;
+            this.maxPerClass = maxPerClass;
+            this.shared = new ConcurrentLinkedQueue[CLASSES];
+            this.counts = new AtomicInteger[CLASSES];
+            for(int sizeClass = 0; sizeClass < CLASSES; sizeClass++){
+                this.shared[sizeClass] = new ConcurrentLinkedQueue<>();
+                this.counts[sizeClass] = new AtomicInteger();
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package helpers;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * This class splits the rows of an image into bands and runs them on the common fork-join pool
+ */
+public final class ParallelRows {
+
+    /**
+     * This interface defines the work done on one band of rows
+     */
+    @FunctionalInterface
+    public interface BandAction {
+        /**
+         * This method processes the rows in the given range
+         * @param startRow first row of the band (inclusive)
+         * @param endRow last row of the band (exclusive)
+         */
+        void apply(int startRow, int endRow);
+    }
+
+    private ParallelRows() {
+    }
+
+    /**
+     * This method runs the action over all the rows, splitting them in halves until a band is no larger than minBandRows
+     * @param rows number of rows to process
+     * @param minBandRows the smallest band worth handing to another thread
+     * @param action the work to do on each band
+     */
+    public static void forEachBand(int rows, int minBandRows, BandAction action) {
+        if(rows <= 0) return;
+        int threshold = Math.max(1, minBandRows);
+        // small jobs are not worth the scheduling cost, run them on the calling thread
+        if(rows <= threshold || ForkJoinPool.getCommonPoolParallelism() <= 1){
+            action.apply(0, rows);
+            return;
+        }
+        ForkJoinPool.commonPool().invoke(new BandTask(0, rows, threshold, action));
+    }
+
+    /**
+     * This method picks a band size so that a band covers roughly the given number of pixels
+     * @param width width of a row in pixels
+     * @param pixelsPerBand the number of pixels a band should cover
+     * @return returns the number of rows per band
+     */
+    public static int rowsFor(int width, int pixelsPerBand) {
+        return Math.max(1, pixelsPerBand / Math.max(1, width));
+    }
+
+    /**
+     * This class recursively halves a row range until it is small enough to process directly, tasks are never
+     * serialized
+     */
+    @SuppressWarnings("serial")
+    private static final class BandTask extends RecursiveAction {
+        private final int startRow;
+        private final int endRow;
+        private final int threshold;
+        private final BandAction action;
+
+        BandTask(int startRow, int endRow, int threshold, BandAction action) {
+            this.startRow = startRow;
+            this.endRow = endRow;
+            this.threshold = threshold;
+            this.action = action;
+        }
+
+        @Override
+        protected void compute() {
+            if(this.endRow - this.startRow <= this.threshold){
+                this.action.apply(this.startRow, this.endRow);
+                return;
+            }
+            int middle = (this.startRow + this.endRow) >>> 1;
+            invokeAll(new BandTask(this.startRow, middle, this.threshold, this.action),
+                    new BandTask(middle, this.endRow, this.threshold, this.action));
+        }
+    }
+}
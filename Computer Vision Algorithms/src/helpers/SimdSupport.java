@@ -0,0 +1,47 @@
+package helpers;
+
+import jdk.incubator.vector.IntVector;
+
+/**
+ * This class decides once whether the Vector API (jdk.incubator.vector) code paths - mathematical.classes.SimdKernels
+ * and the luma lanes of raster.Luma - can be used. They are used when the module was resolved at startup
+ * (--add-modules jdk.incubator.vector), the preferred vectors hold at least 8 ints and the "vision.simd" system
+ * property is not set to false. Callers must check ENABLED before touching vector code, so those classes are never
+ * loaded when the module is missing and the scalar code runs instead. The class sits in helpers, below every package
+ * with vector code, so using it never creates a dependency cycle.
+ */
+public final class SimdSupport {
+    /*
+        true when the SIMD kernels can be used
+     */
+    public static final boolean ENABLED = detect();
+
+    private SimdSupport() {
+    }
+
+    /**
+     * This method checks that the module is present and that the preferred vectors are wide enough to be worth using
+     * @return returns true when the SIMD kernels can be used
+     */
+    private static boolean detect() {
+        if(!Boolean.parseBoolean(System.getProperty("vision.simd", "true"))) return false;
+        if(ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) return false;
+        try{
+            return Probe.intLanes() >= 8;
+        } catch (LinkageError e){
+            return false;
+        }
+    }
+
+    /**
+     * This class is the only one touching the Vector API here, it is loaded once the module is known to be present
+     */
+    private static final class Probe {
+        private Probe() {
+        }
+
+        static int intLanes() {
+            return IntVector.SPECIES_PREFERRED.length();
+        }
+    }
+}
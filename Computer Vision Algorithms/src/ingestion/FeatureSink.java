@@ -0,0 +1,26 @@
+package ingestion;
+
+import java.nio.file.Path;
+
+/**
+ * This interface receives the results of an IngestionPipeline. All its methods are called from the thread that runs
+ * the pipeline, one result at a time, so implementations do not need to be thread safe. A slow sink slows the whole
+ * pipeline down through the bounded queues instead of letting results pile up in memory.
+ */
+public interface FeatureSink {
+    /**
+     * This method receives the feature vector of a file, the vector belongs to the sink
+     * @param path the file
+     * @param vector the feature vector
+     */
+    void accept(Path path, int[] vector);
+
+    /**
+     * This method is told about a file that could not be read or decoded, the pipeline carries on with the next file
+     * @param path the file, null when listing the files failed (the pipeline then stops after the files listed so far)
+     * @param error what went wrong, an Error (out of memory on a huge image, a missing class) stops the worker that
+     * hit it
+     */
+    default void failed(Path path, Throwable error) {
+    }
+}
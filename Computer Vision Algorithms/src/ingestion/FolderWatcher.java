@@ -0,0 +1,405 @@
+package ingestion;
+
+import DataStructures.interfaces.Graph;
+import DataStructures.interfaces.Vertex;
+import mathematical.classes.DistanceKernels;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class keeps a similarity graph in step with a folder of images. Every image file under the folder (and its
+ * subfolders) is a vertex of the graph, keyed by its Path, and two images are joined by an edge weighted with the
+ * euclidean distance of their feature vectors when that distance is at most maxDistance.
+ * <p>
+ * Changes are picked up through a WatchService. Events are not acted upon one by one: they are collected until the
+ * folder has been quiet for the debounce delay (or for at most MAX_DEBOUNCE_FACTOR times that delay while events keep
+ * coming), so a burst - a copy of hundreds of files, an editor saving a file in several writes - becomes a single
+ * batch. A batch extracts the features of the created or modified files only, through an IngestionPipeline, and then
+ * updates the graph in one go: vertexes of deleted or modified files are removed with their edges, and the new ones
+ * are added with edges to every close enough vertex. When the watch service overflows, the whole folder is compared
+ * with what the graph holds. Starting the watcher adds every image already in the folder as a first batch.
+ * <p>
+ * The graph is updated from the watcher thread while holding the graph's monitor: code reading the graph while the
+ * watcher runs should synchronize on it as well.
+ * <p>
+ * Errors do not stop the watcher: a subfolder that cannot be walked, a batch that cannot be applied or a listener
+ * that throws is reported to the listener's failed method (and counted by getErrors), and watching goes on with the
+ * next event. The files of a batch that failed are not on the graph until they change again.
+ */
+public class FolderWatcher implements Closeable {
+    /**
+     * This interface is told about every batch applied to the graph, from the watcher thread
+     */
+    public interface BatchListener {
+        /**
+         * @param updated files added to the graph or whose vertex was replaced
+         * @param removed files removed from the graph
+         * @param failed files that could not be read or decoded, they are not on the graph until they change again
+         */
+        void batchApplied(List<Path> updated, List<Path> removed, List<Path> failed);
+
+        /**
+         * This method is told about an error the watcher carried on after, it does nothing by default
+         * @param error a folder that could not be walked, a batch that could not be applied, or what batchApplied threw
+         */
+        default void failed(Throwable error) {
+        }
+    }
+
+    /*
+        quiet time that ends a batch when none is given, and how much longer than that a batch may be held back while
+        events keep coming
+     */
+    public static final Duration DEFAULT_DEBOUNCE = Duration.ofMillis(500);
+    public static final int MAX_DEBOUNCE_FACTOR = 10;
+
+    /*
+        class variables
+     */
+    private final Path directory;
+    private final Graph<Path, Double> graph;
+    private final IngestionPipeline pipeline;
+    private final double maxDistance;
+    private final long debounceNanos;
+    private final BatchListener listener;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> watchedDirectories = new HashMap<>();
+    private final Map<Path, int[]> vectors = new HashMap<>(); // feature vectors of the files on the graph
+    private final Map<Path, Boolean> pending = new LinkedHashMap<>(); // true to (re)extract, false to remove
+    private Thread thread;
+    private volatile boolean closed;
+    private volatile long batches;
+    private volatile long errors;
+
+    /**
+     * This constructor uses the DEFAULT_DEBOUNCE delay and no listener
+     * @param directory the folder to watch
+     * @param graph the graph to keep up to date
+     * @param pipeline extracts the feature vectors
+     * @param maxDistance the largest distance between two vectors that still gets an edge
+     * @throws IOException when no watch service can be created
+     */
+    public FolderWatcher(Path directory, Graph<Path, Double> graph, IngestionPipeline pipeline, double maxDistance) throws IOException {
+        this(directory, graph, pipeline, maxDistance, DEFAULT_DEBOUNCE, null);
+    }
+
+    /**
+     * @param directory the folder to watch
+     * @param graph the graph to keep up to date
+     * @param pipeline extracts the feature vectors
+     * @param maxDistance the largest distance between two vectors that still gets an edge
+     * @param debounce how long the folder must be quiet before a batch is applied
+     * @param listener told about every batch, may be null
+     * @throws IOException when no watch service can be created
+     */
+    public FolderWatcher(Path directory, Graph<Path, Double> graph, IngestionPipeline pipeline, double maxDistance, Duration debounce, BatchListener listener) throws IOException {
+        if(!Files.isDirectory(directory)){
+            throw new IllegalArgumentException(directory + " is not a directory");
+        }
+        if(maxDistance < 0 || debounce.isNegative()){
+            throw new IllegalArgumentException("the distance and the debounce delay must not be negative");
+        }
+        this.directory = directory.toAbsolutePath().normalize();
+        this.graph = graph;
+        this.pipeline = pipeline;
+        this.maxDistance = maxDistance;
+        this.debounceNanos = debounce.toNanos();
+        this.listener = listener;
+        this.watchService = FileSystems.getDefault().newWatchService();
+    }
+
+    /**
+     * This method starts watching on a daemon thread, the files already in the folder make up the first batch
+     * @throws IOException when the folder cannot be walked
+     */
+    public synchronized void start() throws IOException {
+        if(this.thread != null || this.closed){
+            throw new IllegalStateException("the watcher has already been started");
+        }
+        // registering before listing means no file created meanwhile is missed (at worst it is seen twice)
+        registerTree(this.directory);
+        this.thread = Thread.ofPlatform().daemon().name("folder-watcher").start(this::watch);
+    }
+
+    /**
+     * @return returns the number of batches applied to the graph so far
+     */
+    public long getBatches() {
+        return this.batches;
+    }
+
+    /**
+     * @return returns the number of errors the watcher carried on after so far
+     */
+    public long getErrors() {
+        return this.errors;
+    }
+
+    /**
+     * This method stops watching and waits for the watcher thread, a batch being applied is finished first
+     * @throws IOException when the watch service cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        this.closed = true;
+        this.watchService.close();
+        Thread thread;
+        synchronized (this){
+            thread = this.thread;
+        }
+        if(thread != null && thread != Thread.currentThread()){
+            try{
+                thread.join();
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * This method is the watcher thread: it collects events into the pending batch and applies the batch once the
+     * folder has been quiet for the debounce delay
+     */
+    private void watch() {
+        long firstEvent = System.nanoTime(), lastEvent = firstEvent; // the initial listing counts as an event
+        try{
+            while(!this.closed){
+                WatchKey key;
+                if(this.pending.isEmpty()){
+                    key = this.watchService.take();
+                    firstEvent = System.nanoTime();
+                } else {
+                    long now = System.nanoTime();
+                    long wait = Math.min(lastEvent + this.debounceNanos, firstEvent + MAX_DEBOUNCE_FACTOR * this.debounceNanos) - now;
+                    key = wait > 0 ? this.watchService.poll(wait, TimeUnit.NANOSECONDS) : null;
+                    if(key == null){
+                        try{
+                            applyBatch();
+                        } catch (RuntimeException e){
+                            report(e);
+                        }
+                        continue;
+                    }
+                }
+                lastEvent = System.nanoTime();
+                try{
+                    handle(key);
+                } catch (RuntimeException e){
+                    report(e);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e){
+            // closed: the pending events are dropped, the graph stays as the last batch left it
+        }
+    }
+
+    /**
+     * This method turns the events of a key into pending work
+     */
+    private void handle(WatchKey key) {
+        try{
+            Path parent = this.watchedDirectories.get(key);
+            for(WatchEvent<?> event : key.pollEvents()){
+                if(event.kind() == StandardWatchEventKinds.OVERFLOW || parent == null){
+                    // events were lost: compare the whole folder with the graph
+                    resynchronize();
+                    continue;
+                }
+                Path path = parent.resolve((Path) event.context());
+                if(event.kind() == StandardWatchEventKinds.ENTRY_DELETE){
+                    removeTree(path);
+                } else if(Files.isDirectory(path)){
+                    if(event.kind() == StandardWatchEventKinds.ENTRY_CREATE){
+                        // a folder moved or copied in: watch it and pick up what it already contains
+                        try{
+                            registerTree(path);
+                        } catch (IOException e){
+                            // the folder vanished again, its delete event follows
+                        }
+                    }
+                } else if(IngestionPipeline.isImageFile(path)){
+                    this.pending.put(path, true);
+                }
+            }
+        } finally {
+            // a key that is not reset gets no more events, whatever went wrong above
+            if(!key.reset()){
+                // the directory is gone or no longer accessible
+                this.watchedDirectories.remove(key);
+            }
+        }
+    }
+
+    /**
+     * This method watches a directory and its subdirectories and queues every image file in them. A subdirectory that
+     * vanishes during the walk is skipped (its delete event follows), one that cannot be read is reported and skipped
+     * @throws IOException when the root itself cannot be walked or watched
+     */
+    private void registerTree(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) throws IOException {
+                try{
+                    WatchKey key = directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                    watchedDirectories.put(key, directory);
+                    return FileVisitResult.CONTINUE;
+                } catch (IOException e){
+                    return skip(directory, e);
+                }
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if(attributes.isRegularFile() && IngestionPipeline.isImageFile(file)) pending.put(file, true);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+                return skip(file, e);
+            }
+
+            private FileVisitResult skip(Path path, IOException e) throws IOException {
+                if(path.equals(root)) throw e;
+                if(!(e instanceof NoSuchFileException)) report(e);
+                return FileVisitResult.SKIP_SUBTREE;
+            }
+        });
+    }
+
+    /**
+     * This method queues the removal of a file, or of every file under a deleted directory
+     */
+    private void removeTree(Path path) {
+        for(Path known : this.vectors.keySet()){
+            if(known.startsWith(path)) this.pending.put(known, false);
+        }
+        for(Map.Entry<Path, Boolean> entry : this.pending.entrySet()){
+            if(entry.getKey().startsWith(path)) entry.setValue(false);
+        }
+        if(IngestionPipeline.isImageFile(path)) this.pending.put(path, false);
+    }
+
+    /**
+     * This method queues every file on the graph that is gone and every file on disk, used after an overflow
+     */
+    private void resynchronize() {
+        for(Path known : this.vectors.keySet()){
+            if(!Files.isRegularFile(known)) this.pending.put(known, false);
+        }
+        try{
+            registerTree(this.directory);
+        } catch (IOException e){
+            // the folder itself is gone, its files were queued for removal above
+        }
+    }
+
+    /**
+     * This method extracts the vectors of the pending files and applies the whole batch to the graph
+     */
+    private void applyBatch() throws InterruptedException {
+        List<Path> extract = new ArrayList<>(), removed = new ArrayList<>();
+        for(Map.Entry<Path, Boolean> entry : this.pending.entrySet()){
+            if(entry.getValue() && Files.isRegularFile(entry.getKey())){
+                extract.add(entry.getKey());
+            } else if(this.vectors.containsKey(entry.getKey())){
+                removed.add(entry.getKey());
+            }
+        }
+        this.pending.clear();
+        Map<Path, int[]> extracted = new LinkedHashMap<>();
+        List<Path> failed = new ArrayList<>();
+        this.pipeline.run(extract.iterator(), new FeatureSink() {
+            @Override
+            public void accept(Path path, int[] vector) {
+                extracted.put(path, vector);
+            }
+
+            @Override
+            public void failed(Path path, Throwable error) {
+                // often a file still being written: it comes back with its next modify event
+                if(path != null) failed.add(path);
+            }
+        });
+        synchronized (this.graph){
+            try{
+                for(Path path : removed) removeFromGraph(path);
+                for(Path path : failed){
+                    if(this.vectors.containsKey(path)) removeFromGraph(path);
+                }
+                for(Map.Entry<Path, int[]> entry : extracted.entrySet()){
+                    addToGraph(entry.getKey(), entry.getValue());
+                }
+            } catch (Exception e){
+                // the graph only throws on vertexes or edges it does not hold, which the vector map rules out
+                throw new IllegalStateException("the graph is out of step with the watched folder", e);
+            }
+        }
+        this.batches++;
+        if(this.listener != null){
+            try{
+                this.listener.batchApplied(new ArrayList<>(extracted.keySet()), removed, failed);
+            } catch (RuntimeException e){
+                report(e);
+            }
+        }
+    }
+
+    /**
+     * This method counts an error the watcher carries on after and tells the listener about it
+     */
+    private void report(Throwable error) {
+        this.errors++;
+        if(this.listener == null) return;
+        try{
+            this.listener.failed(error);
+        } catch (RuntimeException e){
+            // the listener failing on its own error callback must not stop the watcher either
+        }
+    }
+
+    private void removeFromGraph(Path path) throws Exception {
+        this.vectors.remove(path);
+        Vertex<Path, Double> vertex = this.graph.getVertex(path);
+        if(vertex != null) this.graph.removeVertex(vertex);
+    }
+
+    /**
+     * This method adds (or replaces) the vertex of a file and joins it to every vertex close enough
+     */
+    private void addToGraph(Path path, int[] vector) throws Exception {
+        if(this.vectors.containsKey(path)) removeFromGraph(path);
+        this.graph.addVertex(path);
+        // the squared distances are whole numbers, so comparing with the floor of maxDistance squared is exact
+        long maxSquared = (long) Math.floor(this.maxDistance * this.maxDistance);
+        for(Map.Entry<Path, int[]> other : this.vectors.entrySet()){
+            if(other.getValue().length != vector.length) continue;
+            long squared = DistanceKernels.squaredL2(vector, other.getValue(), maxSquared);
+            if(squared <= maxSquared){
+                this.graph.addEdge(path, other.getKey(), Math.sqrt(squared));
+            }
+        }
+        this.vectors.put(path, vector);
+    }
+}
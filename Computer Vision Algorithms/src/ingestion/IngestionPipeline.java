@@ -0,0 +1,360 @@
+package ingestion;
+
+import preprocessing.FusedFeatureExtractor;
+import raster.Raster;
+import raster.RasterDecoder;
+import storage.FeatureCache;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * This class turns a folder (or any list) of image files into feature vectors, using three stages:
+ * <ol>
+ *     <li>every file is read into memory on its own virtual thread, at most queueCapacity reads are in flight</li>
+ *     <li>a fixed pool of platform threads (one per core by default) decodes the bytes into a Raster and extracts
+ *     the vector with a FusedFeatureExtractor of its own</li>
+ *     <li>the thread that called run hands every vector to the FeatureSink</li>
+ * </ol>
+ * The stages are connected by bounded queues, so a slow decoder or sink makes the readers wait instead of filling
+ * the heap. A file that cannot be read or decoded is counted, reported to FeatureSink.failed and skipped. A decoder
+ * that hits an Error reports its file the same way and stops, the remaining decoders finish the run (when none is
+ * left, run returns without the files still queued). Progress can be followed through getStats while the pipeline
+ * runs. Decoding goes through RasterDecoder and raster.Raster, so the JavaFX runtime is not needed.
+ * <p>
+ * An optional FeatureCache skips the work already done: a file whose modification time and size match the cache's
+ * stamp is not even read, and a file whose content hash is cached is not decoded. The cache is shared by the workers
+ * and must be used for this target size and sigma only; the pipeline does not flush it, its owner does.
+ */
+public class IngestionPipeline {
+    /*
+        extensions (lower case) of the files picked up when a directory is walked
+     */
+    public static final Set<String> IMAGE_EXTENSIONS = Set.of("png", "jpg", "jpeg", "bmp", "gif", "pgm", "ppm", "pnm");
+
+    /*
+        capacity of each queue when none is given
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+    /**
+     * This class carries one file through the queues: its bytes after reading, its vector after decoding, or the
+     * error that stopped it. END tells the next stage that nothing else will come.
+     */
+    private static final class Item {
+        private static final Item END = new Item(null, null, null, null, null);
+
+        private final Path path;
+        private final byte[] bytes;
+        private final int[] vector;
+        private final Throwable error;
+        private final BasicFileAttributes attributes; // read before the bytes when there is a cache
+
+        private Item(Path path, byte[] bytes, int[] vector, Throwable error, BasicFileAttributes attributes) {
+            this.path = path;
+            this.bytes = bytes;
+            this.vector = vector;
+            this.error = error;
+            this.attributes = attributes;
+        }
+    }
+
+    /*
+        class variables
+     */
+    private final int targetWidth;
+    private final int targetHeight;
+    private final double sigma;
+    private final int workers;
+    private final int queueCapacity;
+    private final FeatureCache cache;
+    private volatile IngestionStats stats = new IngestionStats();
+
+    /**
+     * This constructor uses one decoding worker per core and queues of DEFAULT_QUEUE_CAPACITY files
+     * @param targetWidth width the images are resampled to
+     * @param targetHeight height the images are resampled to
+     * @param sigma standard deviation of the gaussian blur applied before resampling, 0 for no blur
+     */
+    public IngestionPipeline(int targetWidth, int targetHeight, double sigma) {
+        this(targetWidth, targetHeight, sigma, Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param targetWidth width the images are resampled to
+     * @param targetHeight height the images are resampled to
+     * @param sigma standard deviation of the gaussian blur applied before resampling, 0 for no blur
+     * @param workers number of decoding threads
+     * @param queueCapacity capacity of each queue, also the largest number of reads in flight
+     */
+    public IngestionPipeline(int targetWidth, int targetHeight, double sigma, int workers, int queueCapacity) {
+        this(targetWidth, targetHeight, sigma, workers, queueCapacity, null);
+    }
+
+    /**
+     * @param targetWidth width the images are resampled to
+     * @param targetHeight height the images are resampled to
+     * @param sigma standard deviation of the gaussian blur applied before resampling, 0 for no blur
+     * @param workers number of decoding threads
+     * @param queueCapacity capacity of each queue, also the largest number of reads in flight
+     * @param cache cache of the vectors of this target size and sigma, null for none
+     */
+    public IngestionPipeline(int targetWidth, int targetHeight, double sigma, int workers, int queueCapacity, FeatureCache cache) {
+        if(workers < 1 || queueCapacity < 1){
+            throw new IllegalArgumentException("workers and queue capacity must be positive");
+        }
+        // fail now rather than in every worker
+        new FusedFeatureExtractor(targetWidth, targetHeight, sigma);
+        this.targetWidth = targetWidth;
+        this.targetHeight = targetHeight;
+        this.sigma = sigma;
+        this.workers = workers;
+        this.queueCapacity = queueCapacity;
+        this.cache = cache;
+    }
+
+    /**
+     * @return returns the statistics of the current (or last) run, updated live
+     */
+    public IngestionStats getStats() {
+        return this.stats;
+    }
+
+    /**
+     * This method ingests every image file (by extension) under a directory and its subdirectories
+     * @param directory the root directory
+     * @param sink receives the vectors
+     * @return returns the final statistics
+     * @throws IOException when the directory cannot be walked
+     * @throws InterruptedException when the calling thread is interrupted, the pipeline is stopped
+     */
+    public IngestionStats run(Path directory, FeatureSink sink) throws IOException, InterruptedException {
+        try(Stream<Path> files = Files.walk(directory)){
+            return run(files.filter(Files::isRegularFile).filter(IngestionPipeline::isImageFile).iterator(), sink);
+        }
+    }
+
+    /**
+     * This method ingests the given files
+     * @param files the files, iterated on a separate thread
+     * @param sink receives the vectors
+     * @return returns the final statistics
+     * @throws InterruptedException when the calling thread is interrupted, the pipeline is stopped
+     */
+    public IngestionStats run(Iterator<Path> files, FeatureSink sink) throws InterruptedException {
+        IngestionStats stats = new IngestionStats();
+        this.stats = stats;
+        BlockingQueue<Item> readQueue = new ArrayBlockingQueue<>(this.queueCapacity);
+        BlockingQueue<Item> resultQueue = new ArrayBlockingQueue<>(this.queueCapacity);
+        stats.readQueue = readQueue;
+        stats.resultQueue = resultQueue;
+        AtomicInteger runningWorkers = new AtomicInteger(this.workers);
+
+        Thread walker = Thread.ofVirtual().name("ingestion-walker").start(() -> readAll(files, readQueue, stats));
+        Thread[] decoders = new Thread[this.workers];
+        for(int i = 0; i < this.workers; i++){
+            decoders[i] = Thread.ofPlatform().daemon().name("ingestion-decoder-" + i)
+                    .start(() -> decodeAll(readQueue, resultQueue, runningWorkers, stats));
+        }
+        boolean finished = false;
+        try{
+            while(true){
+                Item item = resultQueue.take();
+                if(item == Item.END) break;
+                long start = System.nanoTime();
+                if(item.error != null){
+                    sink.failed(item.path, item.error);
+                } else {
+                    sink.accept(item.path, item.vector);
+                    stats.delivered.increment();
+                }
+                stats.sinkNanos.add(System.nanoTime() - start);
+            }
+            finished = true;
+        } finally {
+            if(!finished || walker.isAlive()){
+                // the sink threw, we were interrupted or every decoder stopped on an Error: stop the other stages,
+                // they may be blocked on full queues
+                walker.interrupt();
+                for(Thread decoder : decoders) decoder.interrupt();
+            }
+            stats.finish();
+        }
+        return stats;
+    }
+
+    /**
+     * @return returns true when the file name has one of the IMAGE_EXTENSIONS
+     */
+    public static boolean isImageFile(Path path) {
+        String name = path.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 && IMAGE_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * This method is the first stage: it starts a virtual thread per file to read it into the read queue, then tells
+     * every worker that the input has ended
+     */
+    private void readAll(Iterator<Path> files, BlockingQueue<Item> readQueue, IngestionStats stats) {
+        Semaphore inFlight = new Semaphore(this.queueCapacity);
+        ExecutorService readers = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("ingestion-reader-", 0).factory());
+        try{
+            while(files.hasNext()){
+                Path path = files.next();
+                stats.found.increment();
+                inFlight.acquire();
+                readers.execute(() -> {
+                    try{
+                        long start = System.nanoTime();
+                        Item item;
+                        try{
+                            BasicFileAttributes attributes = null;
+                            int[] vector = null;
+                            if(this.cache != null){
+                                attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                                vector = this.cache.getIfUnchanged(path, attributes);
+                            }
+                            if(vector != null){
+                                // unchanged since the cache saw it: neither read nor decoded
+                                stats.cached.increment();
+                                stats.cacheNanos.add(System.nanoTime() - start);
+                                item = new Item(path, null, vector, null, null);
+                            } else {
+                                byte[] bytes = Files.readAllBytes(path);
+                                stats.read.increment();
+                                stats.bytesRead.add(bytes.length);
+                                stats.readNanos.add(System.nanoTime() - start);
+                                item = new Item(path, bytes, null, null, attributes);
+                            }
+                        } catch (IOException | RuntimeException | Error e){
+                            // an Error here is most likely a file too large for an array, it only costs that file
+                            item = new Item(path, null, null, e, null);
+                        }
+                        readQueue.put(item);
+                        IngestionStats.entered(readQueue, stats.maxReadQueueDepth);
+                    } catch (InterruptedException e){
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+            // waits for the reads still in flight
+            readers.close();
+            for(int i = 0; i < this.workers; i++){
+                readQueue.put(Item.END);
+            }
+        } catch (InterruptedException e){
+            readers.shutdownNow();
+        } catch (RuntimeException | Error e){
+            // the listing itself failed (for example an unreadable subdirectory): report it and end the input
+            stats.failed.increment();
+            readers.close();
+            try{
+                readQueue.put(new Item(null, null, null, e, null));
+                IngestionStats.entered(readQueue, stats.maxReadQueueDepth);
+                for(int i = 0; i < this.workers; i++){
+                    readQueue.put(Item.END);
+                }
+            } catch (InterruptedException interrupted){
+                readers.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * This method is the second stage: it decodes files from the read queue into vectors on the result queue, the
+     * last worker to finish ends the result queue however the workers stopped
+     */
+    private void decodeAll(BlockingQueue<Item> readQueue, BlockingQueue<Item> resultQueue, AtomicInteger runningWorkers, IngestionStats stats) {
+        try{
+            FusedFeatureExtractor extractor = new FusedFeatureExtractor(this.targetWidth, this.targetHeight, this.sigma);
+            // what the cache calls when it does not hold a vector, on this thread; it counts its calls to tell the files
+            // decoded from those the cache found by their content hash
+            int[] decodes = new int[1];
+            FeatureCache.Extractor decoder = (file, content) -> {
+                decodes[0]++;
+                return decode(content, extractor);
+            };
+            boolean stop = false;
+            while(!stop){
+                Item item = readQueue.take();
+                if(item == Item.END) break;
+                Item result;
+                if(item.error != null){
+                    result = item;
+                    if(item.path != null) stats.failed.increment();
+                } else if(item.vector != null){
+                    // served by the cache in the first stage
+                    result = item;
+                } else {
+                    long start = System.nanoTime();
+                    try{
+                        int[] vector;
+                        int before = decodes[0];
+                        if(this.cache == null){
+                            vector = decoder.extract(item.path, item.bytes);
+                        } else {
+                            vector = this.cache.get(item.path, item.attributes, item.bytes, decoder);
+                        }
+                        if(decodes[0] == before){
+                            // found by its content hash: only hashed and looked up
+                            stats.cached.increment();
+                            stats.cacheNanos.add(System.nanoTime() - start);
+                        } else {
+                            stats.decoded.increment();
+                            stats.decodeNanos.add(System.nanoTime() - start);
+                        }
+                        result = new Item(item.path, null, vector, null, null);
+                    } catch (IOException | RuntimeException e){
+                        // a corrupt or unsupported file only costs its own vector
+                        result = new Item(item.path, null, null, e, null);
+                        stats.failed.increment();
+                    } catch (Error e){
+                        // the JVM may not be fit to go on (out of memory, a missing class): report the file and stop
+                        // this worker
+                        result = new Item(item.path, null, null, e, null);
+                        stats.failed.increment();
+                        stop = true;
+                    }
+                }
+                resultQueue.put(result);
+                IngestionStats.entered(resultQueue, stats.maxResultQueueDepth);
+            }
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        } finally {
+            if(runningWorkers.decrementAndGet() == 0){
+                try{
+                    resultQueue.put(Item.END);
+                } catch (InterruptedException e){
+                    // only run interrupts the workers, and then it no longer waits for the end
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * This method decodes the bytes of a file and extracts its vector, large images are decoded straight at a reduced
+     * size since only the target size matters
+     */
+    private int[] decode(byte[] bytes, FusedFeatureExtractor extractor) throws IOException {
+        Raster raster = RasterDecoder.readForTarget(new ByteArrayInputStream(bytes), this.targetWidth, this.targetHeight);
+        return extractor.extract(raster, null);
+    }
+}
@@ -0,0 +1,206 @@
+package ingestion;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class counts what every stage of an IngestionPipeline has done: files found, files read (and bytes), files
+ * decoded into vectors, vectors served by a FeatureCache, results handed to the sink and failures, the time spent in
+ * each stage and the depth of the two queues between them. It is updated live by the pipeline threads and can be
+ * read at any time, for example from a monitoring thread while a long ingestion runs.
+ */
+public class IngestionStats {
+    /*
+        class variables
+     */
+    private final long startNanos = System.nanoTime();
+    private volatile long endNanos = -1;
+    final LongAdder found = new LongAdder();
+    final LongAdder read = new LongAdder();
+    final LongAdder bytesRead = new LongAdder();
+    final LongAdder readNanos = new LongAdder();
+    final LongAdder decoded = new LongAdder();
+    final LongAdder cached = new LongAdder();
+    final LongAdder cacheNanos = new LongAdder();
+    final LongAdder decodeNanos = new LongAdder();
+    final LongAdder delivered = new LongAdder();
+    final LongAdder sinkNanos = new LongAdder();
+    final LongAdder failed = new LongAdder();
+    volatile BlockingQueue<?> readQueue;
+    volatile BlockingQueue<?> resultQueue;
+    final AtomicInteger maxReadQueueDepth = new AtomicInteger();
+    final AtomicInteger maxResultQueueDepth = new AtomicInteger();
+
+    /**
+     * @return returns the number of image files found so far
+     */
+    public long getFilesFound() {
+        return this.found.sum();
+    }
+
+    /**
+     * @return returns the number of files read from disk
+     */
+    public long getFilesRead() {
+        return this.read.sum();
+    }
+
+    /**
+     * @return returns the number of bytes read from disk
+     */
+    public long getBytesRead() {
+        return this.bytesRead.sum();
+    }
+
+    /**
+     * @return returns the number of files decoded into feature vectors
+     */
+    public long getFilesDecoded() {
+        return this.decoded.sum();
+    }
+
+    /**
+     * @return returns the number of vectors served by the FeatureCache, read or not, without decoding
+     */
+    public long getCacheHits() {
+        return this.cached.sum();
+    }
+
+    /**
+     * @return returns the number of vectors handed to the sink
+     */
+    public long getVectorsDelivered() {
+        return this.delivered.sum();
+    }
+
+    /**
+     * @return returns the number of files that could not be read or decoded
+     */
+    public long getFailures() {
+        return this.failed.sum();
+    }
+
+    /**
+     * @return returns the number of files waiting to be decoded
+     */
+    public int getReadQueueDepth() {
+        BlockingQueue<?> queue = this.readQueue;
+        return queue == null ? 0 : queue.size();
+    }
+
+    /**
+     * @return returns the number of results waiting for the sink
+     */
+    public int getResultQueueDepth() {
+        BlockingQueue<?> queue = this.resultQueue;
+        return queue == null ? 0 : queue.size();
+    }
+
+    /**
+     * @return returns the deepest the read queue has been
+     */
+    public int getMaxReadQueueDepth() {
+        return this.maxReadQueueDepth.get();
+    }
+
+    /**
+     * @return returns the deepest the result queue has been
+     */
+    public int getMaxResultQueueDepth() {
+        return this.maxResultQueueDepth.get();
+    }
+
+    /**
+     * @return returns the seconds since the pipeline started, up to its end once it has finished
+     */
+    public double getElapsedSeconds() {
+        long end = this.endNanos < 0 ? System.nanoTime() : this.endNanos;
+        return (end - this.startNanos) / 1e9;
+    }
+
+    /**
+     * @return returns the files read per second of elapsed time
+     */
+    public double getReadThroughput() {
+        return rate(getFilesRead());
+    }
+
+    /**
+     * @return returns the files decoded per second of elapsed time
+     */
+    public double getDecodeThroughput() {
+        return rate(getFilesDecoded());
+    }
+
+    /**
+     * @return returns the vectors delivered per second of elapsed time
+     */
+    public double getSinkThroughput() {
+        return rate(getVectorsDelivered());
+    }
+
+    /**
+     * @return returns the average milliseconds a thread spent reading one file, cache hits and failures left out
+     */
+    public double getAverageReadMillis() {
+        return average(this.readNanos.sum(), getFilesRead());
+    }
+
+    /**
+     * @return returns the average milliseconds a worker spent decoding and extracting one file, cache hits and
+     * failures left out
+     */
+    public double getAverageDecodeMillis() {
+        return average(this.decodeNanos.sum(), getFilesDecoded());
+    }
+
+    /**
+     * @return returns the average milliseconds spent finding one vector in the FeatureCache, by its file stamp or
+     * by the hash of its content
+     */
+    public double getAverageCacheMillis() {
+        return average(this.cacheNanos.sum(), getCacheHits());
+    }
+
+    /**
+     * @return returns the average milliseconds the sink spent on one vector
+     */
+    public double getAverageSinkMillis() {
+        return average(this.sinkNanos.sum(), getVectorsDelivered());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("found %d, read %d (%.1f/s, %.2f ms), decoded %d (%.1f/s, %.2f ms), cached %d (%.2f ms), delivered %d (%.1f/s, %.2f ms), "
+                        + "failed %d, queues read %d (max %d) result %d (max %d), %.1f s",
+                getFilesFound(), getFilesRead(), getReadThroughput(), getAverageReadMillis(),
+                getFilesDecoded(), getDecodeThroughput(), getAverageDecodeMillis(), getCacheHits(), getAverageCacheMillis(),
+                getVectorsDelivered(), getSinkThroughput(), getAverageSinkMillis(),
+                getFailures(), getReadQueueDepth(), getMaxReadQueueDepth(), getResultQueueDepth(), getMaxResultQueueDepth(),
+                getElapsedSeconds());
+    }
+
+    /**
+     * This method records the depth of a queue after an item entered it
+     */
+    static void entered(BlockingQueue<?> queue, AtomicInteger maximum) {
+        maximum.accumulateAndGet(queue.size(), Math::max);
+    }
+
+    void finish() {
+        this.endNanos = System.nanoTime();
+        // the queues are empty once the run is over, do not keep them alive
+        this.readQueue = null;
+        this.resultQueue = null;
+    }
+
+    private double rate(long count) {
+        double seconds = getElapsedSeconds();
+        return seconds <= 0 ? 0 : count / seconds;
+    }
+
+    private static double average(long nanos, long count) {
+        return count == 0 ? 0 : nanos / 1e6 / count;
+    }
+}
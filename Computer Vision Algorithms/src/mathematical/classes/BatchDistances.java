@@ -0,0 +1,335 @@
+package mathematical.classes;
+
+import helpers.ParallelRows;
+
+
+/**
+ * This class computes many distances at once with the DistanceKernels: one query against a whole collection, or every
+ * vector of a set against every other. The work is split on the common fork-join pool.
+ * <p>
+ * The all pairs computations go through the set in blocks of vectors small enough that two blocks stay in the L2
+ * cache (BLOCK_BYTES), so each vector is read from memory once per block pair rather than once per pair. Only the
+ * block pairs on or above the diagonal are computed since d(i, j) = d(j, i), which is half the work. The blocks of a
+ * row get shorter towards the bottom of the matrix, so each task takes a block row from the top together with the
+ * matching one from the bottom to keep the tasks even. Cosine similarity uses norms computed once per vector.
+ * <p>
+ * Every vector of a call must have the same length, else an IllegalArgumentException is thrown.
+ */
+public final class BatchDistances {
+    /**
+     * This enum defines what is computed between two vectors
+     */
+    public enum Metric {
+        SQUARED_L2, L2, L1, DOT, COSINE
+    }
+
+    /*
+        bytes of vectors in one block of the all pairs computations, two blocks fit in a typical L2 cache
+     */
+    public static final int BLOCK_BYTES = 128 * 1024;
+
+    /*
+        components a one to many task should cover at least, so that scheduling costs stay small
+     */
+    private static final int COMPONENTS_PER_TASK = 1 << 16;
+
+    /**
+     * This interface computes the value for the pair (i, j) of the set
+     */
+    @FunctionalInterface
+    private interface PairKernel {
+        double apply(int i, int j);
+    }
+
+    /**
+     * This interface computes the value for the query and vector j of the collection
+     */
+    @FunctionalInterface
+    private interface QueryKernel {
+        double apply(int j);
+    }
+
+    private BatchDistances() {
+    }
+
+    /**
+     * This method compares a query with every vector of a collection
+     * @param metric what to compute
+     * @param query the query
+     * @param collection the vectors
+     * @param destination filled with one value per vector of the collection, a new array is allocated when it is null
+     *                    or too small
+     * @return returns the values
+     */
+    public static double[] distances(Metric metric, int[] query, int[][] collection, double[] destination) {
+        checkLengths(query.length, collection);
+        double queryNorm = metric == Metric.COSINE ? DistanceKernels.norm(query) : 0;
+        QueryKernel kernel = switch (metric){
+            case SQUARED_L2 -> j -> DistanceKernels.squaredL2(query, collection[j]);
+            case L2 -> j -> DistanceKernels.l2(query, collection[j]);
+            case L1 -> j -> DistanceKernels.l1(query, collection[j]);
+            case DOT -> j -> DistanceKernels.dotAsDouble(query, collection[j]);
+            case COSINE -> j -> DistanceKernels.dotAsDouble(query, collection[j]) / (queryNorm * DistanceKernels.norm(collection[j]));
+        };
+        return distances(kernel, collection.length, query.length, destination);
+    }
+
+    /**
+     * This method compares a query with every vector of a collection of unsigned byte vectors
+     * @param metric what to compute
+     * @param query the query
+     * @param collection the vectors
+     * @param destination filled with one value per vector of the collection, a new array is allocated when it is null
+     *                    or too small
+     * @return returns the values
+     */
+    public static double[] distances(Metric metric, byte[] query, byte[][] collection, double[] destination) {
+        checkLengths(query.length, collection);
+        double queryNorm = metric == Metric.COSINE ? Math.sqrt(DistanceKernels.dot(query, query)) : 0;
+        QueryKernel kernel = switch (metric){
+            case SQUARED_L2 -> j -> DistanceKernels.squaredL2(query, collection[j]);
+            case L2 -> j -> DistanceKernels.l2(query, collection[j]);
+            case L1 -> j -> DistanceKernels.l1(query, collection[j]);
+            case DOT -> j -> DistanceKernels.dot(query, collection[j]);
+            case COSINE -> j -> DistanceKernels.dot(query, collection[j]) / (queryNorm * Math.sqrt(DistanceKernels.dot(collection[j], collection[j])));
+        };
+        return distances(kernel, collection.length, query.length, destination);
+    }
+
+    /**
+     * This method compares a query with every vector of a collection of float vectors
+     * @param metric what to compute
+     * @param query the query
+     * @param collection the vectors
+     * @param destination filled with one value per vector of the collection, a new array is allocated when it is null
+     *                    or too small
+     * @return returns the values
+     */
+    public static double[] distances(Metric metric, float[] query, float[][] collection, double[] destination) {
+        checkLengths(query.length, collection);
+        double queryNorm = metric == Metric.COSINE ? Math.sqrt(DistanceKernels.dot(query, query)) : 0;
+        QueryKernel kernel = switch (metric){
+            case SQUARED_L2 -> j -> DistanceKernels.squaredL2(query, collection[j]);
+            case L2 -> j -> DistanceKernels.l2(query, collection[j]);
+            case L1 -> j -> DistanceKernels.l1(query, collection[j]);
+            case DOT -> j -> DistanceKernels.dot(query, collection[j]);
+            case COSINE -> j -> DistanceKernels.dot(query, collection[j]) / (queryNorm * Math.sqrt(DistanceKernels.dot(collection[j], collection[j])));
+        };
+        return distances(kernel, collection.length, query.length, destination);
+    }
+
+    /**
+     * This method compares every vector of a set with every other
+     * @param metric what to compute
+     * @param vectors the set
+     * @param destination the n x n matrix, row major, a new array is allocated when it is null or too small
+     * @return returns the matrix, value (i, j) at index i * n + j
+     */
+    public static double[] matrix(Metric metric, int[][] vectors, double[] destination) {
+        checkLengths(vectors.length == 0 ? 0 : vectors[0].length, vectors);
+        return allPairs(pairKernel(metric, vectors), vectors.length, dimension(vectors) * 4, destination, true);
+    }
+
+    /**
+     * This method compares every vector of a set of unsigned byte vectors with every other
+     * @param metric what to compute
+     * @param vectors the set
+     * @param destination the n x n matrix, row major, a new array is allocated when it is null or too small
+     * @return returns the matrix, value (i, j) at index i * n + j
+     */
+    public static double[] matrix(Metric metric, byte[][] vectors, double[] destination) {
+        checkLengths(vectors.length == 0 ? 0 : vectors[0].length, vectors);
+        return allPairs(pairKernel(metric, vectors), vectors.length, dimension(vectors), destination, true);
+    }
+
+    /**
+     * This method compares every vector of a set of float vectors with every other
+     * @param metric what to compute
+     * @param vectors the set
+     * @param destination the n x n matrix, row major, a new array is allocated when it is null or too small
+     * @return returns the matrix, value (i, j) at index i * n + j
+     */
+    public static double[] matrix(Metric metric, float[][] vectors, double[] destination) {
+        checkLengths(vectors.length == 0 ? 0 : vectors[0].length, vectors);
+        return allPairs(pairKernel(metric, vectors), vectors.length, dimension(vectors) * 4, destination, true);
+    }
+
+    /**
+     * This method compares every vector of a set with every later one, half the memory of the full matrix
+     * @param metric what to compute
+     * @param vectors the set
+     * @param destination the n * (n - 1) / 2 values above the diagonal, a new array is allocated when it is null or
+     *                    too small
+     * @return returns the values, value (i, j) with i &lt; j at index triangleIndex(i, j, n)
+     */
+    public static double[] upperTriangle(Metric metric, int[][] vectors, double[] destination) {
+        checkLengths(vectors.length == 0 ? 0 : vectors[0].length, vectors);
+        return allPairs(pairKernel(metric, vectors), vectors.length, dimension(vectors) * 4, destination, false);
+    }
+
+    /**
+     * This method compares every vector of a set of unsigned byte vectors with every later one
+     * @param metric what to compute
+     * @param vectors the set
+     * @param destination the n * (n - 1) / 2 values above the diagonal, a new array is allocated when it is null or
+     *                    too small
+     * @return returns the values, value (i, j) with i &lt; j at index triangleIndex(i, j, n)
+     */
+    public static double[] upperTriangle(Metric metric, byte[][] vectors, double[] destination) {
+        checkLengths(vectors.length == 0 ? 0 : vectors[0].length, vectors);
+        return allPairs(pairKernel(metric, vectors), vectors.length, dimension(vectors), destination, false);
+    }
+
+    /**
+     * This method compares every vector of a set of float vectors with every later one
+     * @param metric what to compute
+     * @param vectors the set
+     * @param destination the n * (n - 1) / 2 values above the diagonal, a new array is allocated when it is null or
+     *                    too small
+     * @return returns the values, value (i, j) with i &lt; j at index triangleIndex(i, j, n)
+     */
+    public static double[] upperTriangle(Metric metric, float[][] vectors, double[] destination) {
+        checkLengths(vectors.length == 0 ? 0 : vectors[0].length, vectors);
+        return allPairs(pairKernel(metric, vectors), vectors.length, dimension(vectors) * 4, destination, false);
+    }
+
+    /**
+     * This method returns where the pair (i, j), i &lt; j, is stored in the result of upperTriangle
+     * @param i the first vector
+     * @param j the second vector, after the first
+     * @param n the number of vectors
+     * @return returns the index
+     */
+    public static int triangleIndex(int i, int j, int n) {
+        if(i < 0 || i >= j || j >= n){
+            throw new IllegalArgumentException("expected 0 <= i < j < n, got i = " + i + ", j = " + j + ", n = " + n);
+        }
+        return (int) ((long) i * n - (long) i * (i + 1) / 2 + (j - i - 1));
+    }
+
+    private static PairKernel pairKernel(Metric metric, int[][] vectors) {
+        return switch (metric){
+            case SQUARED_L2 -> (i, j) -> DistanceKernels.squaredL2(vectors[i], vectors[j]);
+            case L2 -> (i, j) -> DistanceKernels.l2(vectors[i], vectors[j]);
+            case L1 -> (i, j) -> DistanceKernels.l1(vectors[i], vectors[j]);
+            case DOT -> (i, j) -> DistanceKernels.dotAsDouble(vectors[i], vectors[j]);
+            case COSINE -> {
+                double[] norms = new double[vectors.length];
+                ParallelRows.forEachBand(vectors.length, taskSize(dimension(vectors)), (start, end) -> {
+                    for(int i = start; i < end; i++) norms[i] = DistanceKernels.norm(vectors[i]);
+                });
+                yield (i, j) -> DistanceKernels.dotAsDouble(vectors[i], vectors[j]) / (norms[i] * norms[j]);
+            }
+        };
+    }
+
+    private static PairKernel pairKernel(Metric metric, byte[][] vectors) {
+        return switch (metric){
+            case SQUARED_L2 -> (i, j) -> DistanceKernels.squaredL2(vectors[i], vectors[j]);
+            case L2 -> (i, j) -> DistanceKernels.l2(vectors[i], vectors[j]);
+            case L1 -> (i, j) -> DistanceKernels.l1(vectors[i], vectors[j]);
+            case DOT -> (i, j) -> DistanceKernels.dot(vectors[i], vectors[j]);
+            case COSINE -> {
+                double[] norms = new double[vectors.length];
+                ParallelRows.forEachBand(vectors.length, taskSize(dimension(vectors)), (start, end) -> {
+                    for(int i = start; i < end; i++) norms[i] = Math.sqrt(DistanceKernels.dot(vectors[i], vectors[i]));
+                });
+                yield (i, j) -> DistanceKernels.dot(vectors[i], vectors[j]) / (norms[i] * norms[j]);
+            }
+        };
+    }
+
+    private static PairKernel pairKernel(Metric metric, float[][] vectors) {
+        return switch (metric){
+            case SQUARED_L2 -> (i, j) -> DistanceKernels.squaredL2(vectors[i], vectors[j]);
+            case L2 -> (i, j) -> DistanceKernels.l2(vectors[i], vectors[j]);
+            case L1 -> (i, j) -> DistanceKernels.l1(vectors[i], vectors[j]);
+            case DOT -> (i, j) -> DistanceKernels.dot(vectors[i], vectors[j]);
+            case COSINE -> {
+                double[] norms = new double[vectors.length];
+                ParallelRows.forEachBand(vectors.length, taskSize(dimension(vectors)), (start, end) -> {
+                    for(int i = start; i < end; i++) norms[i] = Math.sqrt(DistanceKernels.dot(vectors[i], vectors[i]));
+                });
+                yield (i, j) -> DistanceKernels.dot(vectors[i], vectors[j]) / (norms[i] * norms[j]);
+            }
+        };
+    }
+
+    /**
+     * This method runs a query kernel over a collection in parallel
+     */
+    private static double[] distances(QueryKernel kernel, int count, int dimension, double[] destination) {
+        double[] values = destination == null || destination.length < count ? new double[count] : destination;
+        ParallelRows.forEachBand(count, taskSize(dimension), (start, end) -> {
+            for(int j = start; j < end; j++){
+                values[j] = kernel.apply(j);
+            }
+        });
+        return values;
+    }
+
+    /**
+     * This method runs a pair kernel over the block pairs on and above the diagonal, filling either the full matrix
+     * (both halves and the diagonal) or the packed upper triangle
+     */
+    private static double[] allPairs(PairKernel kernel, int count, int vectorBytes, double[] destination, boolean full) {
+        long size = full ? (long) count * count : (long) count * (count - 1) / 2;
+        if(size > Integer.MAX_VALUE - 8){
+            throw new IllegalArgumentException(count + " vectors give too many pairs for one array");
+        }
+        double[] values = destination == null || destination.length < size ? new double[(int) size] : destination;
+        int block = Math.max(1, BLOCK_BYTES / Math.max(1, vectorBytes));
+        int blocks = (count + block - 1) / block;
+        // task t handles block row t and block row blocks - 1 - t, together they always hold blocks + 1 block pairs
+        ParallelRows.forEachBand((blocks + 1) / 2, 1, (start, end) -> {
+            for(int task = start; task < end; task++){
+                blockRow(kernel, count, block, task, blocks, values, full);
+                if(blocks - 1 - task != task){
+                    blockRow(kernel, count, block, blocks - 1 - task, blocks, values, full);
+                }
+            }
+        });
+        return values;
+    }
+
+    /**
+     * This method computes the block pairs (row, column) for every column from row to the last
+     */
+    private static void blockRow(PairKernel kernel, int count, int block, int row, int blocks, double[] values, boolean full) {
+        int rowStart = row * block, rowEnd = Math.min(count, rowStart + block);
+        for(int column = row; column < blocks; column++){
+            int columnStart = column * block, columnEnd = Math.min(count, columnStart + block);
+            for(int i = rowStart; i < rowEnd; i++){
+                if(full && column == row){
+                    values[i * count + i] = kernel.apply(i, i);
+                }
+                long rowIndex = full ? (long) i * count : (long) i * count - (long) i * (i + 1) / 2 - i - 1;
+                for(int j = Math.max(columnStart, i + 1); j < columnEnd; j++){
+                    double value = kernel.apply(i, j);
+                    values[(int) (rowIndex + j)] = value;
+                    if(full) values[j * count + i] = value;
+                }
+            }
+        }
+    }
+
+    private static int taskSize(int dimension) {
+        return ParallelRows.rowsFor(dimension, COMPONENTS_PER_TASK);
+    }
+
+    private static int dimension(Object[] vectors) {
+        if(vectors.length == 0) return 0;
+        Object first = vectors[0];
+        return first instanceof int[] ints ? ints.length : first instanceof byte[] bytes ? bytes.length : ((float[]) first).length;
+    }
+
+    /**
+     * This method rejects a set whose vectors do not all have the given length
+     */
+    private static void checkLengths(int length, Object[] vectors) {
+        for(Object vector : vectors){
+            int vectorLength = vector instanceof int[] ints ? ints.length : vector instanceof byte[] bytes ? bytes.length : ((float[]) vector).length;
+            DistanceKernels.checkLengths(length, vectorLength);
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package mathematical.classes;
+
+import helpers.BufferPool;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This class is a feature vector of gray levels stored one unsigned byte per component, a quarter of the memory of the
+ * int[] flattenImage returns. The bytes live either on the heap (a byte[], for instance Raster.toLuminancePlane) or
+ * in a ByteBuffer, which may be off heap - a direct buffer or a VectorStore.vectorView straight over the page cache.
+ * <p>
+ * The distance kernels work on the bytes directly: every difference or product of two components fits in an int, so
+ * they accumulate in int over blocks short enough not to overflow and add the blocks into a long, and never convert
+ * a component to double. Array backed vectors go through DistanceKernels; buffer backed ones are copied CHUNK bytes
+ * at a time into scratch arrays with bulk gets (a plain memory copy, the chunks stay in the L1 cache) and go through
+ * the same kernels, so they are vectorized as well. Vectors are compared with vectors of the same dimension only.
+ */
+public final class ByteFeatureVector {
+    /**
+     * This interface is one of the DistanceKernels loops over two runs of unsigned bytes
+     */
+    @FunctionalInterface
+    private interface RunKernel {
+        long apply(byte[] one, int offsetOne, byte[] two, int offsetTwo, int length);
+    }
+
+    /*
+        number of components of a buffer copied into a scratch array at a time
+     */
+    private static final int CHUNK = 4096;
+
+    /*
+        class variables, exactly one of array and buffer is set
+     */
+    private final byte[] array;
+    private final int offset;
+    private final ByteBuffer buffer;
+    private final int dimension;
+
+    private ByteFeatureVector(byte[] array, int offset, ByteBuffer buffer, int dimension) {
+        this.array = array;
+        this.offset = offset;
+        this.buffer = buffer;
+        this.dimension = dimension;
+    }
+
+    /**
+     * This method wraps a byte array without copying it
+     * @param components the components, one unsigned byte each
+     * @return returns the vector
+     */
+    public static ByteFeatureVector of(byte[] components) {
+        return of(components, 0, components.length);
+    }
+
+    /**
+     * This method wraps part of a byte array without copying it
+     * @param components the array
+     * @param offset index of the first component
+     * @param dimension number of components
+     * @return returns the vector
+     */
+    public static ByteFeatureVector of(byte[] components, int offset, int dimension) {
+        if(offset < 0 || dimension < 0 || offset + dimension > components.length){
+            throw new IllegalArgumentException("the vector does not fit in the array");
+        }
+        return new ByteFeatureVector(components, offset, null, dimension);
+    }
+
+    /**
+     * This method wraps the remaining bytes of a buffer (heap, direct or mapped) without copying them, later changes
+     * to the buffer's position do not affect the vector
+     * @param components the buffer
+     * @return returns the vector
+     */
+    public static ByteFeatureVector of(ByteBuffer components) {
+        if(components.hasArray()){
+            // heap buffers go through the array kernels
+            return new ByteFeatureVector(components.array(), components.arrayOffset() + components.position(), null, components.remaining());
+        }
+        return new ByteFeatureVector(null, 0, components.slice(), components.remaining());
+    }
+
+    /**
+     * This method packs an int vector (for instance from flattenImage) into bytes, values are clamped to 0 - 255
+     * @param components the components
+     * @return returns the vector
+     */
+    public static ByteFeatureVector fromInts(int[] components) {
+        byte[] packed = new byte[components.length];
+        for(int i = 0; i < components.length; i++){
+            packed[i] = (byte) Math.min(255, Math.max(0, components[i]));
+        }
+        return new ByteFeatureVector(packed, 0, null, packed.length);
+    }
+
+    /**
+     * @return returns the number of components
+     */
+    public int getDimension() {
+        return this.dimension;
+    }
+
+    /**
+     * @return returns true when the bytes are in a buffer rather than a heap array
+     */
+    public boolean isBufferBacked() {
+        return this.buffer != null;
+    }
+
+    /**
+     * @return returns the component at the given index, 0 - 255
+     */
+    public int get(int index) {
+        if(index < 0 || index >= this.dimension){
+            throw new IndexOutOfBoundsException("index " + index + " out of " + this.dimension);
+        }
+        return this.buffer == null ? this.array[this.offset + index] & 0xff : this.buffer.get(index) & 0xff;
+    }
+
+    /**
+     * This method widens the vector back into ints
+     * @param destination the array to fill, a new one is allocated when it is null or too small
+     * @return returns the components
+     */
+    public int[] toInts(int[] destination) {
+        if(destination == null || destination.length < this.dimension){
+            destination = new int[this.dimension];
+        }
+        for(int i = 0; i < this.dimension; i++){
+            destination[i] = this.buffer == null ? this.array[this.offset + i] & 0xff : this.buffer.get(i) & 0xff;
+        }
+        return destination;
+    }
+
+    /**
+     * @return returns the sum of squared differences with another vector
+     */
+    public long squaredEuclideanDistance(ByteFeatureVector other) {
+        checkDimension(other);
+        if(this.buffer == null && other.buffer == null){
+            return DistanceKernels.squaredL2(this.array, this.offset, other.array, other.offset, this.dimension);
+        }
+        return overChunks(other, DistanceKernels::squaredL2);
+    }
+
+    /**
+     * @return returns the euclidean distance to another vector
+     */
+    public double euclideanDistance(ByteFeatureVector other) {
+        return Math.sqrt(squaredEuclideanDistance(other));
+    }
+
+    /**
+     * @return returns the sum of absolute differences (manhattan distance) with another vector
+     */
+    public long l1Distance(ByteFeatureVector other) {
+        checkDimension(other);
+        if(this.buffer == null && other.buffer == null){
+            return DistanceKernels.l1(this.array, this.offset, other.array, other.offset, this.dimension);
+        }
+        return overChunks(other, DistanceKernels::l1);
+    }
+
+    /**
+     * @return returns the dot product with another vector
+     */
+    public long dot(ByteFeatureVector other) {
+        checkDimension(other);
+        if(this.buffer == null && other.buffer == null){
+            return DistanceKernels.dot(this.array, this.offset, other.array, other.offset, this.dimension);
+        }
+        return overChunks(other, DistanceKernels::dot);
+    }
+
+    /**
+     * @return returns the squared euclidean norm of the vector
+     */
+    public long squaredNorm() {
+        return dot(this);
+    }
+
+    /**
+     * @return returns the cosine similarity with another vector, NaN when one of them is all zeros
+     */
+    public double cosineSimilarity(ByteFeatureVector other) {
+        return dot(other) / (Math.sqrt(squaredNorm()) * Math.sqrt(other.squaredNorm()));
+    }
+
+    /**
+     * This method runs a kernel over this vector and another one when at least one is buffer backed, copying CHUNK
+     * components of every buffer at a time into a scratch array borrowed from the shared BufferPool
+     */
+    private long overChunks(ByteFeatureVector other, RunKernel kernel) {
+        byte[] mine = this.buffer == null ? null : BufferPool.shared().borrowBytes(CHUNK);
+        byte[] theirs = other.buffer == null || other == this ? null : BufferPool.shared().borrowBytes(CHUNK);
+        try{
+            long total = 0;
+            for(int start = 0; start < this.dimension; start += CHUNK){
+                int length = Math.min(CHUNK, this.dimension - start);
+                byte[] one = this.array, two = other.array;
+                int offsetOne = this.offset + start, offsetTwo = other.offset + start;
+                if(mine != null){
+                    this.buffer.get(start, mine, 0, length);
+                    one = mine;
+                    offsetOne = 0;
+                }
+                if(theirs != null){
+                    other.buffer.get(start, theirs, 0, length);
+                    two = theirs;
+                    offsetTwo = 0;
+                } else if(other == this){
+                    // squaredNorm: both sides are the chunk already copied
+                    two = one;
+                    offsetTwo = offsetOne;
+                }
+                total += kernel.apply(one, offsetOne, two, offsetTwo, length);
+            }
+            return total;
+        } finally {
+            BufferPool.shared().release(mine);
+            BufferPool.shared().release(theirs);
+        }
+    }
+
+    private void checkDimension(ByteFeatureVector other) {
+        DistanceKernels.checkLengths(this.dimension, other.dimension);
+    }
+}
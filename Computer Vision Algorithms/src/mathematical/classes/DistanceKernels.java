@@ -0,0 +1,583 @@
+package mathematical.classes;
+
+import helpers.SimdSupport;
+
+/**
+ * This class holds the distance kernels used to compare feature vectors: squared euclidean (L2), euclidean, manhattan
+ * (L1), dot product and cosine similarity, over int[], unsigned byte[] and float[] vectors. They allocate nothing.
+ * <p>
+ * int vectors accumulate in long, unsigned byte vectors in int over blocks short enough not to overflow and then in
+ * long, and float vectors in double. The int loops are kept in the plain single sum form the JIT vectorizes by itself
+ * (unrolling them by hand stops it, and is four times slower); the unsigned byte loops go through SimdKernels when
+ * SimdSupport.ENABLED; the float loops, whose double sums the JIT cannot reorder, are unrolled by four into
+ * independent sums. Vectors of different lengths are rejected with an IllegalArgumentException.
+ * <p>
+ * The long sums of int vectors are exact for gray-level and other bounded features: a pass ahead of the sums ors
+ * together the magnitudes of the components, which bounds the sum, and when that bound does not rule an overflow out
+ * the sum is done with overflow checks instead. A squared distance that does not fit a long is returned as Long.MAX_VALUE, a dot
+ * product as Long.MAX_VALUE or Long.MIN_VALUE, and cosine similarity and the euclidean distance fall back to double
+ * sums, so none of them wraps around to a negative distance.
+ * <p>
+ * The early abandon variants take a threshold and stop as soon as the partial sum is above it: in a nearest neighbour
+ * scan the threshold is the distance of the worst candidate kept so far, and most vectors are rejected after a
+ * fraction of their components. They return the exact distance when it is at most the threshold, otherwise some value
+ * above the threshold.
+ */
+public final class DistanceKernels {
+    /*
+        number of unsigned byte components summed in int before the block goes into the long total: 255 * 255 * BLOCK
+        stays below Integer.MAX_VALUE
+     */
+    static final int BLOCK = 32768;
+
+    /*
+        number of components between two checks of an early abandon threshold
+     */
+    static final int ABANDON_STRIDE = 32;
+
+    /*
+        number of int components whose magnitudes an early abandon variant checks at once, so the check costs little
+        next to the sums even when the scan gives up early
+     */
+    static final int GUARD_STRIDE = 256;
+
+    private DistanceKernels() {
+    }
+
+    /**
+     * @return returns the sum of squared differences of two vectors, Long.MAX_VALUE when it does not fit a long
+     */
+    public static long squaredL2(int[] one, int[] two) {
+        checkLengths(one.length, two.length);
+        if(!fitsLong(magnitudes(one, two, 0, one.length), 1, one.length)){
+            return saturatedSquaredL2(one, two, 0, one.length);
+        }
+        if(SimdSupport.ENABLED){
+            return SimdKernels.squaredDistance(one, two);
+        }
+        return squaredL2(one, two, 0, one.length);
+    }
+
+    /**
+     * This method computes the sum of squared differences, giving up once it is above the threshold
+     * @return returns the sum when it is at most threshold, else a partial sum above threshold (Long.MAX_VALUE when
+     * it does not fit a long)
+     */
+    public static long squaredL2(int[] one, int[] two, long threshold) {
+        checkLengths(one.length, two.length);
+        long sum = 0;
+        for(int chunk = 0; chunk < one.length; chunk += GUARD_STRIDE){
+            int chunkEnd = Math.min(one.length, chunk + GUARD_STRIDE);
+            if(!fitsLong(magnitudes(one, two, chunk, chunkEnd), 1, chunkEnd - chunk)){
+                sum += saturatedSquaredL2(one, two, chunk, chunkEnd);
+                if(sum < 0 || sum == Long.MAX_VALUE) return Long.MAX_VALUE;
+                if(sum > threshold) return sum;
+                continue;
+            }
+            for(int start = chunk; start < chunkEnd; start += ABANDON_STRIDE){
+                int end = Math.min(chunkEnd, start + ABANDON_STRIDE);
+                for(int i = start; i < end; i++){
+                    long difference = (long) one[i] - two[i];
+                    sum += difference * difference;
+                }
+                // every chunk sum fits a long, a negative total has wrapped around
+                if(sum < 0) return Long.MAX_VALUE;
+                if(sum > threshold) return sum;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * @return returns the euclidean distance of two vectors
+     */
+    public static double l2(int[] one, int[] two) {
+        checkLengths(one.length, two.length);
+        long squared = squaredL2(one, two);
+        return squared < Long.MAX_VALUE ? Math.sqrt(squared) : Math.sqrt(squaredL2InDouble(one, two));
+    }
+
+    /**
+     * @return returns the sum of absolute differences of two vectors (it always fits a long: fewer than 2^31
+     * differences below 2^32)
+     */
+    public static long l1(int[] one, int[] two) {
+        checkLengths(one.length, two.length);
+        return l1(one, two, 0, one.length);
+    }
+
+    /**
+     * This method computes the sum of absolute differences, giving up once it is above the threshold
+     * @return returns the sum when it is at most threshold, else a partial sum above threshold
+     */
+    public static long l1(int[] one, int[] two, long threshold) {
+        checkLengths(one.length, two.length);
+        long sum = 0;
+        for(int start = 0; start < one.length; start += ABANDON_STRIDE){
+            sum += l1(one, two, start, Math.min(one.length, start + ABANDON_STRIDE));
+            if(sum > threshold) return sum;
+        }
+        return sum;
+    }
+
+    /**
+     * @return returns the dot product of two vectors, Long.MAX_VALUE or Long.MIN_VALUE when it does not fit a long
+     */
+    public static long dot(int[] one, int[] two) {
+        checkLengths(one.length, two.length);
+        if(!fitsLong(magnitudes(one, two, 0, one.length), 0, one.length)){
+            return saturatedDot(one, two);
+        }
+        long sum = 0;
+        for(int i = 0; i < one.length; i++){
+            sum += (long) one[i] * two[i];
+        }
+        return sum;
+    }
+
+    /**
+     * This method computes the cosine similarity of two vectors, the dot product and both norms in one pass
+     * @return returns the similarity, NaN when one of the vectors is all zeros
+     */
+    public static double cosine(int[] one, int[] two) {
+        checkLengths(one.length, two.length);
+        if(!fitsLong(magnitudes(one, two, 0, one.length), 0, one.length)){
+            return cosineInDouble(one, two);
+        }
+        if(SimdSupport.ENABLED){
+            return SimdKernels.cosine(one, two);
+        }
+        long dot = 0, normOne = 0, normTwo = 0;
+        for(int i = 0; i < one.length; i++){
+            long a = one[i], b = two[i];
+            dot += a * b;
+            normOne += a * a;
+            normTwo += b * b;
+        }
+        return dot / (Math.sqrt(normOne) * Math.sqrt(normTwo));
+    }
+
+    /**
+     * This method computes the dot product of two vectors as a double, exact as long as it fits a long
+     */
+    static double dotAsDouble(int[] one, int[] two) {
+        long dot = dot(one, two);
+        if(dot != Long.MAX_VALUE && dot != Long.MIN_VALUE) return dot;
+        double sum = 0;
+        for(int i = 0; i < one.length; i++){
+            sum += (double) one[i] * two[i];
+        }
+        return sum;
+    }
+
+    /**
+     * @return returns the euclidean norm of a vector
+     */
+    static double norm(int[] vector) {
+        return Math.sqrt(dotAsDouble(vector, vector));
+    }
+
+    private static long squaredL2(int[] one, int[] two, int from, int to) {
+        long sum = 0;
+        for(int i = from; i < to; i++){
+            // difference in long, two ints far apart do not fit an int difference
+            long difference = (long) one[i] - two[i];
+            sum += difference * difference;
+        }
+        return sum;
+    }
+
+    private static long l1(int[] one, int[] two, int from, int to) {
+        long sum = 0;
+        for(int i = from; i < to; i++){
+            sum += Math.abs((long) one[i] - two[i]);
+        }
+        return sum;
+    }
+
+    /**
+     * This method returns the bits of |value| (|value| - 1 for negative values), or-ing them over a vector bounds
+     * every component by a power of two
+     */
+    static int magnitude(int value) {
+        return value ^ (value >> 31);
+    }
+
+    /**
+     * This method ors the magnitudes of [from, to) of both vectors, in a loop of its own: mixed into the sums it
+     * would keep the JIT from vectorizing them
+     */
+    private static int magnitudes(int[] one, int[] two, int from, int to) {
+        if(SimdSupport.ENABLED){
+            return SimdKernels.magnitudes(one, two, from, to);
+        }
+        int bits = 0;
+        for(int i = from; i < to; i++){
+            bits |= (one[i] ^ (one[i] >> 31)) | (two[i] ^ (two[i] >> 31));
+        }
+        return bits;
+    }
+
+    /**
+     * This method tells whether a sum of count products of components bounded by the or-ed magnitudes cannot overflow a
+     * long. The bound is conservative, it holds for gray-level and other bounded features.
+     * @param magnitudes the or of magnitude() over every component
+     * @param extraBits 1 when the factors are differences of two components, 0 when they are components
+     * @param count number of products summed
+     */
+    private static boolean fitsLong(int magnitudes, int extraBits, int count) {
+        int componentBits = 32 - Integer.numberOfLeadingZeros(magnitudes) + extraBits;
+        return 2 * componentBits + 32 - Integer.numberOfLeadingZeros(count) <= 63;
+    }
+
+    /**
+     * This method sums the squared differences of [from, to) with overflow checks, for vectors whose magnitudes do
+     * not rule an overflow out
+     * @return returns the sum, Long.MAX_VALUE when it does not fit a long
+     */
+    private static long saturatedSquaredL2(int[] one, int[] two, int from, int to) {
+        long sum = 0;
+        for(int i = from; i < to; i++){
+            long difference = Math.abs((long) one[i] - two[i]);
+            // the largest difference whose square fits a long
+            if(difference > 3037000499L) return Long.MAX_VALUE;
+            sum += difference * difference;
+            if(sum < 0) return Long.MAX_VALUE;
+        }
+        return sum;
+    }
+
+    /**
+     * This method computes the dot product with the carries out of the long sum counted
+     * @return returns the dot product, Long.MAX_VALUE or Long.MIN_VALUE when it does not fit a long
+     */
+    private static long saturatedDot(int[] one, int[] two) {
+        long sum = 0;
+        int carries = 0;
+        for(int i = 0; i < one.length; i++){
+            long product = (long) one[i] * two[i];
+            long next = sum + product;
+            // the sign flipped while adding a term of the other sign: the sum wrapped around
+            if(((sum ^ next) & (product ^ next)) < 0) carries += product < 0 ? -1 : 1;
+            sum = next;
+        }
+        return carries > 0 ? Long.MAX_VALUE : carries < 0 ? Long.MIN_VALUE : sum;
+    }
+
+    private static double squaredL2InDouble(int[] one, int[] two) {
+        double sum = 0;
+        for(int i = 0; i < one.length; i++){
+            double difference = (double) one[i] - two[i];
+            sum += difference * difference;
+        }
+        return sum;
+    }
+
+    /**
+     * This method computes the cosine similarity in double arithmetic, for vectors whose magnitudes do not rule an
+     * overflow of the long sums out
+     */
+    private static double cosineInDouble(int[] one, int[] two) {
+        double dot = 0, normOne = 0, normTwo = 0;
+        for(int i = 0; i < one.length; i++){
+            double a = one[i], b = two[i];
+            dot += a * b;
+            normOne += a * a;
+            normTwo += b * b;
+        }
+        return dot / (Math.sqrt(normOne) * Math.sqrt(normTwo));
+    }
+
+    /**
+     * @return returns the sum of squared differences of two vectors of unsigned bytes
+     */
+    public static long squaredL2(byte[] one, byte[] two) {
+        checkLengths(one.length, two.length);
+        return squaredL2(one, 0, two, 0, one.length);
+    }
+
+    /**
+     * This method computes the sum of squared differences of two runs of unsigned bytes
+     */
+    public static long squaredL2(byte[] one, int offsetOne, byte[] two, int offsetTwo, int length) {
+        long total = 0;
+        for(int start = 0; start < length; start += BLOCK){
+            total += squaredL2Block(one, offsetOne, two, offsetTwo, start, Math.min(length, start + BLOCK));
+        }
+        return total;
+    }
+
+    /**
+     * This method computes the sum of squared differences of two runs of unsigned bytes, giving up once it is above
+     * the threshold
+     * @return returns the sum when it is at most threshold, else a partial sum above threshold
+     */
+    public static long squaredL2(byte[] one, int offsetOne, byte[] two, int offsetTwo, int length, long threshold) {
+        long total = 0;
+        for(int start = 0; start < length; start += ABANDON_STRIDE){
+            total += squaredL2Block(one, offsetOne, two, offsetTwo, start, Math.min(length, start + ABANDON_STRIDE));
+            if(total > threshold) return total;
+        }
+        return total;
+    }
+
+    /**
+     * This method computes the sum of squared differences of two vectors of unsigned bytes, giving up once it is
+     * above the threshold
+     * @return returns the sum when it is at most threshold, else a partial sum above threshold
+     */
+    public static long squaredL2(byte[] one, byte[] two, long threshold) {
+        checkLengths(one.length, two.length);
+        return squaredL2(one, 0, two, 0, one.length, threshold);
+    }
+
+    /**
+     * @return returns the euclidean distance of two vectors of unsigned bytes
+     */
+    public static double l2(byte[] one, byte[] two) {
+        return Math.sqrt(squaredL2(one, two));
+    }
+
+    /**
+     * @return returns the sum of absolute differences of two vectors of unsigned bytes
+     */
+    public static long l1(byte[] one, byte[] two) {
+        checkLengths(one.length, two.length);
+        return l1(one, 0, two, 0, one.length);
+    }
+
+    /**
+     * This method computes the sum of absolute differences of two runs of unsigned bytes
+     */
+    public static long l1(byte[] one, int offsetOne, byte[] two, int offsetTwo, int length) {
+        long total = 0;
+        for(int start = 0; start < length; start += BLOCK){
+            total += l1Block(one, offsetOne, two, offsetTwo, start, Math.min(length, start + BLOCK));
+        }
+        return total;
+    }
+
+    /**
+     * This method computes the sum of absolute differences of two runs of unsigned bytes, giving up once it is above
+     * the threshold
+     * @return returns the sum when it is at most threshold, else a partial sum above threshold
+     */
+    public static long l1(byte[] one, int offsetOne, byte[] two, int offsetTwo, int length, long threshold) {
+        long total = 0;
+        for(int start = 0; start < length; start += ABANDON_STRIDE){
+            total += l1Block(one, offsetOne, two, offsetTwo, start, Math.min(length, start + ABANDON_STRIDE));
+            if(total > threshold) return total;
+        }
+        return total;
+    }
+
+    /**
+     * @return returns the dot product of two vectors of unsigned bytes
+     */
+    public static long dot(byte[] one, byte[] two) {
+        checkLengths(one.length, two.length);
+        return dot(one, 0, two, 0, one.length);
+    }
+
+    /**
+     * This method computes the dot product of two runs of unsigned bytes
+     */
+    public static long dot(byte[] one, int offsetOne, byte[] two, int offsetTwo, int length) {
+        long total = 0;
+        for(int start = 0; start < length; start += BLOCK){
+            int end = Math.min(length, start + BLOCK);
+            if(SimdSupport.ENABLED){
+                total += SimdKernels.dot(one, offsetOne + start, two, offsetTwo + start, end - start);
+                continue;
+            }
+            int sum = 0;
+            for(int i = start; i < end; i++){
+                sum += (one[offsetOne + i] & 0xff) * (two[offsetTwo + i] & 0xff);
+            }
+            total += sum;
+        }
+        return total;
+    }
+
+    /**
+     * @return returns the cosine similarity of two vectors of unsigned bytes, NaN when one of them is all zeros
+     */
+    public static double cosine(byte[] one, byte[] two) {
+        checkLengths(one.length, two.length);
+        return dot(one, 0, two, 0, one.length)
+                / (Math.sqrt(dot(one, 0, one, 0, one.length)) * Math.sqrt(dot(two, 0, two, 0, two.length)));
+    }
+
+    /**
+     * This method sums the squared differences of [from, to), at most BLOCK components so the int sums cannot overflow
+     */
+    private static long squaredL2Block(byte[] one, int offsetOne, byte[] two, int offsetTwo, int from, int to) {
+        if(SimdSupport.ENABLED){
+            return SimdKernels.squaredDistance(one, offsetOne + from, two, offsetTwo + from, to - from);
+        }
+        int sum = 0;
+        for(int i = from; i < to; i++){
+            int difference = (one[offsetOne + i] & 0xff) - (two[offsetTwo + i] & 0xff);
+            sum += difference * difference;
+        }
+        return sum;
+    }
+
+    private static long l1Block(byte[] one, int offsetOne, byte[] two, int offsetTwo, int from, int to) {
+        if(SimdSupport.ENABLED){
+            return SimdKernels.absoluteDistance(one, offsetOne + from, two, offsetTwo + from, to - from);
+        }
+        int sum = 0;
+        for(int i = from; i < to; i++){
+            sum += Math.abs((one[offsetOne + i] & 0xff) - (two[offsetTwo + i] & 0xff));
+        }
+        return sum;
+    }
+
+    /**
+     * @return returns the sum of squared differences of two vectors
+     */
+    public static double squaredL2(float[] one, float[] two) {
+        checkLengths(one.length, two.length);
+        return squaredL2(one, two, 0, one.length);
+    }
+
+    /**
+     * This method computes the sum of squared differences, giving up once it is above the threshold
+     * @return returns the sum when it is at most threshold, else a partial sum above threshold
+     */
+    public static double squaredL2(float[] one, float[] two, double threshold) {
+        checkLengths(one.length, two.length);
+        double sum = 0;
+        for(int start = 0; start < one.length; start += ABANDON_STRIDE){
+            sum += squaredL2(one, two, start, Math.min(one.length, start + ABANDON_STRIDE));
+            if(sum > threshold) return sum;
+        }
+        return sum;
+    }
+
+    /**
+     * @return returns the euclidean distance of two vectors
+     */
+    public static double l2(float[] one, float[] two) {
+        return Math.sqrt(squaredL2(one, two));
+    }
+
+    /**
+     * @return returns the sum of absolute differences of two vectors
+     */
+    public static double l1(float[] one, float[] two) {
+        checkLengths(one.length, two.length);
+        return l1(one, two, 0, one.length);
+    }
+
+    /**
+     * This method computes the sum of absolute differences, giving up once it is above the threshold
+     * @return returns the sum when it is at most threshold, else a partial sum above threshold
+     */
+    public static double l1(float[] one, float[] two, double threshold) {
+        checkLengths(one.length, two.length);
+        double sum = 0;
+        for(int start = 0; start < one.length; start += ABANDON_STRIDE){
+            sum += l1(one, two, start, Math.min(one.length, start + ABANDON_STRIDE));
+            if(sum > threshold) return sum;
+        }
+        return sum;
+    }
+
+    /**
+     * @return returns the dot product of two vectors
+     */
+    public static double dot(float[] one, float[] two) {
+        checkLengths(one.length, two.length);
+        return dot(one, 0, two, 0, one.length);
+    }
+
+    /**
+     * This method computes the dot product of two runs of floats
+     */
+    public static double dot(float[] one, int offsetOne, float[] two, int offsetTwo, int length) {
+        double sum0 = 0, sum1 = 0, sum2 = 0, sum3 = 0;
+        int i = 0;
+        for(; i + 3 < length; i += 4){
+            sum0 += one[offsetOne + i] * two[offsetTwo + i];
+            sum1 += one[offsetOne + i + 1] * two[offsetTwo + i + 1];
+            sum2 += one[offsetOne + i + 2] * two[offsetTwo + i + 2];
+            sum3 += one[offsetOne + i + 3] * two[offsetTwo + i + 3];
+        }
+        for(; i < length; i++){
+            sum0 += one[offsetOne + i] * two[offsetTwo + i];
+        }
+        return sum0 + sum1 + sum2 + sum3;
+    }
+
+    /**
+     * This method computes the cosine similarity of two vectors, the dot product and both norms in one pass
+     * @return returns the similarity, NaN when one of the vectors is all zeros
+     */
+    public static double cosine(float[] one, float[] two) {
+        checkLengths(one.length, two.length);
+        double dot0 = 0, dot1 = 0, normOne0 = 0, normOne1 = 0, normTwo0 = 0, normTwo1 = 0;
+        int i = 0;
+        for(; i + 1 < one.length; i += 2){
+            double a0 = one[i], b0 = two[i], a1 = one[i + 1], b1 = two[i + 1];
+            dot0 += a0 * b0;
+            dot1 += a1 * b1;
+            normOne0 += a0 * a0;
+            normOne1 += a1 * a1;
+            normTwo0 += b0 * b0;
+            normTwo1 += b1 * b1;
+        }
+        if(i < one.length){
+            double a = one[i], b = two[i];
+            dot0 += a * b;
+            normOne0 += a * a;
+            normTwo0 += b * b;
+        }
+        return (dot0 + dot1) / (Math.sqrt(normOne0 + normOne1) * Math.sqrt(normTwo0 + normTwo1));
+    }
+
+    private static double squaredL2(float[] one, float[] two, int from, int to) {
+        double sum0 = 0, sum1 = 0, sum2 = 0, sum3 = 0;
+        int i = from;
+        for(; i + 3 < to; i += 4){
+            float d0 = one[i] - two[i];
+            float d1 = one[i + 1] - two[i + 1];
+            float d2 = one[i + 2] - two[i + 2];
+            float d3 = one[i + 3] - two[i + 3];
+            sum0 += d0 * d0;
+            sum1 += d1 * d1;
+            sum2 += d2 * d2;
+            sum3 += d3 * d3;
+        }
+        for(; i < to; i++){
+            float d = one[i] - two[i];
+            sum0 += d * d;
+        }
+        return sum0 + sum1 + sum2 + sum3;
+    }
+
+    private static double l1(float[] one, float[] two, int from, int to) {
+        double sum0 = 0, sum1 = 0, sum2 = 0, sum3 = 0;
+        int i = from;
+        for(; i + 3 < to; i += 4){
+            sum0 += Math.abs(one[i] - two[i]);
+            sum1 += Math.abs(one[i + 1] - two[i + 1]);
+            sum2 += Math.abs(one[i + 2] - two[i + 2]);
+            sum3 += Math.abs(one[i + 3] - two[i + 3]);
+        }
+        for(; i < to; i++){
+            sum0 += Math.abs(one[i] - two[i]);
+        }
+        return sum0 + sum1 + sum2 + sum3;
+    }
+
+    /**
+     * This method rejects vectors of different lengths
+     */
+    static void checkLengths(int lengthOne, int lengthTwo) {
+        if(lengthOne != lengthTwo){
+            throw new IllegalArgumentException("vectors of length " + lengthOne + " and " + lengthTwo);
+        }
+    }
+}
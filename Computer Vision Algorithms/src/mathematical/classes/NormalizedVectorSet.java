@@ -0,0 +1,217 @@
+package mathematical.classes;
+
+
+import helpers.ParallelRows;
+
+import java.util.Arrays;
+
+/**
+ * This class stores feature vectors for cosine similarity queries. Every vector is normalized once when it is added
+ * and kept in one contiguous float array, row after row, so a query scans memory in order. A query is normalized once
+ * per call, after which every stored vector costs a single dot product. Large sets are scanned in parallel on the
+ * common fork-join pool. Adding is not thread safe, queries may run concurrently when no vector is being added.
+ */
+public class NormalizedVectorSet {
+    /**
+     * This class collects the best match of every band of a parallel scan
+     */
+    private static final class Best {
+        private int index = -1;
+        private double similarity = Double.NEGATIVE_INFINITY;
+
+        synchronized void offer(int index, double similarity) {
+            // ties go to the lower index, as in a scan in order
+            if(similarity > this.similarity || (similarity == this.similarity && index < this.index)){
+                this.index = index;
+                this.similarity = similarity;
+            }
+        }
+    }
+
+    /*
+        components a query task should cover at least, so that scheduling costs stay small
+     */
+    private static final int COMPONENTS_PER_TASK = 1 << 16;
+
+    /*
+        class variables
+     */
+    private final int dimension;
+    private float[] units;
+    private double[] norms;
+    private int size;
+
+    /**
+     * @param dimension number of components of every vector
+     */
+    public NormalizedVectorSet(int dimension) {
+        this(dimension, 16);
+    }
+
+    /**
+     * @param dimension number of components of every vector
+     * @param capacity number of vectors to make room for
+     */
+    public NormalizedVectorSet(int dimension, int capacity) {
+        if(dimension < 1 || capacity < 0 || (long) dimension * capacity > Integer.MAX_VALUE - 8){
+            throw new IllegalArgumentException("invalid dimension or capacity");
+        }
+        this.dimension = dimension;
+        this.units = new float[dimension * capacity];
+        this.norms = new double[capacity];
+    }
+
+    /**
+     * This method adds a vector
+     * @param vector the vector
+     * @return returns the index of the vector
+     */
+    public int add(int[] vector) {
+        return add(NormalizedVector.of(vector));
+    }
+
+    /**
+     * This method adds a vector of unsigned bytes
+     * @param vector the vector
+     * @return returns the index of the vector
+     */
+    public int add(byte[] vector) {
+        return add(NormalizedVector.of(vector));
+    }
+
+    /**
+     * This method adds a float vector
+     * @param vector the vector
+     * @return returns the index of the vector
+     */
+    public int add(float[] vector) {
+        return add(NormalizedVector.of(vector));
+    }
+
+    /**
+     * This method adds a vector that is already normalized
+     * @param vector the vector
+     * @return returns the index of the vector
+     */
+    public int add(NormalizedVector vector) {
+        DistanceKernels.checkLengths(this.dimension, vector.getDimension());
+        if(this.size == this.norms.length){
+            int capacity = Math.max(16, this.size + (this.size >> 1));
+            if((long) capacity * this.dimension > Integer.MAX_VALUE - 8){
+                capacity = (Integer.MAX_VALUE - 8) / this.dimension;
+                if(capacity <= this.size) throw new IllegalStateException("the set is full");
+            }
+            this.units = Arrays.copyOf(this.units, capacity * this.dimension);
+            this.norms = Arrays.copyOf(this.norms, capacity);
+        }
+        System.arraycopy(vector.unit(), 0, this.units, this.size * this.dimension, this.dimension);
+        this.norms[this.size] = vector.getNorm();
+        return this.size++;
+    }
+
+    /**
+     * @return returns the number of vectors
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @return returns the number of components of every vector
+     */
+    public int getDimension() {
+        return this.dimension;
+    }
+
+    /**
+     * @return returns the norm the vector at the given index had before normalization
+     */
+    public double getNorm(int index) {
+        checkIndex(index);
+        return this.norms[index];
+    }
+
+    /**
+     * @return returns the cosine similarity between a stored vector and a query
+     */
+    public double cosineSimilarity(int index, NormalizedVector query) {
+        checkIndex(index);
+        DistanceKernels.checkLengths(this.dimension, query.getDimension());
+        if(this.norms[index] == 0 || query.getNorm() == 0) return Double.NaN;
+        return NormalizedVector.unitDot(this.units, index * this.dimension, query.unit(), 0, this.dimension);
+    }
+
+    /**
+     * This method computes the cosine similarity of a query with every stored vector, the query is normalized once
+     * @param query the query
+     * @param destination filled with one similarity per vector, a new array is allocated when it is null or too small
+     * @return returns the similarities
+     */
+    public double[] similarities(int[] query, double[] destination) {
+        return similarities(NormalizedVector.of(query), destination);
+    }
+
+    /**
+     * This method computes the cosine similarity of a query with every stored vector
+     * @param query the normalized query
+     * @param destination filled with one similarity per vector, a new array is allocated when it is null or too small
+     * @return returns the similarities
+     */
+    public double[] similarities(NormalizedVector query, double[] destination) {
+        DistanceKernels.checkLengths(this.dimension, query.getDimension());
+        int count = this.size;
+        double[] values = destination == null || destination.length < count ? new double[count] : destination;
+        float[] unit = query.unit();
+        boolean zeroQuery = query.getNorm() == 0;
+        ParallelRows.forEachBand(count, ParallelRows.rowsFor(this.dimension, COMPONENTS_PER_TASK), (start, end) -> {
+            for(int i = start; i < end; i++){
+                values[i] = zeroQuery || this.norms[i] == 0 ? Double.NaN
+                        : NormalizedVector.unitDot(this.units, i * this.dimension, unit, 0, this.dimension);
+            }
+        });
+        return values;
+    }
+
+    /**
+     * This method finds the stored vector most similar to a query
+     * @param query the query
+     * @return returns the index of the vector, -1 when the set is empty or the query is all zeros
+     */
+    public int mostSimilar(int[] query) {
+        return mostSimilar(NormalizedVector.of(query));
+    }
+
+    /**
+     * This method finds the stored vector most similar to a query, every band of the scan keeps its own best match
+     * and hands it over once
+     * @param query the normalized query
+     * @return returns the index of the vector (the lowest one on a tie), -1 when the set is empty or the query is all
+     * zeros
+     */
+    public int mostSimilar(NormalizedVector query) {
+        DistanceKernels.checkLengths(this.dimension, query.getDimension());
+        if(query.getNorm() == 0) return -1;
+        float[] unit = query.unit();
+        Best best = new Best();
+        ParallelRows.forEachBand(this.size, ParallelRows.rowsFor(this.dimension, COMPONENTS_PER_TASK), (start, end) -> {
+            int bandBest = -1;
+            double bandSimilarity = Double.NEGATIVE_INFINITY;
+            for(int i = start; i < end; i++){
+                if(this.norms[i] == 0) continue;
+                double similarity = NormalizedVector.unitDot(this.units, i * this.dimension, unit, 0, this.dimension);
+                if(similarity > bandSimilarity){
+                    bandSimilarity = similarity;
+                    bandBest = i;
+                }
+            }
+            if(bandBest >= 0) best.offer(bandBest, bandSimilarity);
+        });
+        return best.index;
+    }
+
+    private void checkIndex(int index) {
+        if(index < 0 || index >= this.size){
+            throw new IndexOutOfBoundsException("index " + index + " out of " + this.size);
+        }
+    }
+}
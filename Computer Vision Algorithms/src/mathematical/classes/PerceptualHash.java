@@ -0,0 +1,269 @@
+package mathematical.classes;
+
+import helpers.BufferPool;
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.PixelReader;
+import raster.Luma;
+import raster.Raster;
+
+import java.util.Arrays;
+
+/**
+ * This class computes 64 bit perceptual hashes of images, for near duplicate detection: two images that look alike
+ * (rescaled, recompressed, slightly retouched) have hashes a few bits apart, and comparing two hashes is a single
+ * Long.bitCount, millions of times faster than comparing flattened feature vectors.
+ * <ul>
+ *     <li>averageHash: the image reduced to 8 x 8, one bit per cell brighter than the mean</li>
+ *     <li>differenceHash: the image reduced to 9 x 8, one bit per cell brighter than its left neighbour</li>
+ *     <li>dctHash (pHash): the image reduced to 32 x 32, one bit per coefficient of the 8 x 8 lowest frequencies of
+ *     its DCT above their median - the most robust of the three</li>
+ * </ul>
+ * The image goes through the same luma conversion as the rest of the library (raster.Luma), then is reduced by
+ * averaging every source pixel into its cell: plain resampling would keep only a few pixels of a large image and make
+ * the hash depend on noise. Bits are packed row major from the most significant bit, so the hex form of a hash reads
+ * like its grid.
+ */
+public final class PerceptualHash {
+    /*
+        side of the reduced image the DCT hash is computed on, and of the block of low frequencies it keeps
+     */
+    public static final int DCT_SIZE = 32;
+    public static final int DCT_KEPT = 8;
+
+    /*
+        DCT-II basis for the kept frequencies: COSINES[u * DCT_SIZE + x] = c(u) * cos((2x + 1) u pi / (2 DCT_SIZE))
+     */
+    private static final double[] COSINES = new double[DCT_KEPT * DCT_SIZE];
+
+    static {
+        for(int u = 0; u < DCT_KEPT; u++){
+            double scale = u == 0 ? Math.sqrt(1.0 / DCT_SIZE) : Math.sqrt(2.0 / DCT_SIZE);
+            for(int x = 0; x < DCT_SIZE; x++){
+                COSINES[u * DCT_SIZE + x] = scale * Math.cos((2 * x + 1) * u * Math.PI / (2 * DCT_SIZE));
+            }
+        }
+    }
+
+    /**
+     * This interface reads one row of luma values
+     */
+    @FunctionalInterface
+    private interface LumaRows {
+        void read(int y, byte[] row);
+    }
+
+    private PerceptualHash() {
+    }
+
+    /**
+     * @return returns the number of bits that differ between two hashes
+     */
+    public static int hammingDistance(long hashOne, long hashTwo) {
+        return Long.bitCount(hashOne ^ hashTwo);
+    }
+
+    /**
+     * @return returns the average hash of a raster
+     */
+    public static long averageHash(Raster raster) {
+        return averageHash(reduce(raster, 8, 8));
+    }
+
+    /**
+     * @return returns the average hash of an image
+     */
+    public static long averageHash(Image image) {
+        return averageHash(reduce(image, 8, 8));
+    }
+
+    /**
+     * @return returns the average hash of a luminance plane (row major, stride equal to the width)
+     */
+    public static long averageHash(byte[] luma, int width, int height) {
+        return averageHash(reduce(luma, width, height, 8, 8));
+    }
+
+    /**
+     * @return returns the difference hash of a raster
+     */
+    public static long differenceHash(Raster raster) {
+        return differenceHash(reduce(raster, 9, 8));
+    }
+
+    /**
+     * @return returns the difference hash of an image
+     */
+    public static long differenceHash(Image image) {
+        return differenceHash(reduce(image, 9, 8));
+    }
+
+    /**
+     * @return returns the difference hash of a luminance plane (row major, stride equal to the width)
+     */
+    public static long differenceHash(byte[] luma, int width, int height) {
+        return differenceHash(reduce(luma, width, height, 9, 8));
+    }
+
+    /**
+     * @return returns the DCT hash of a raster
+     */
+    public static long dctHash(Raster raster) {
+        return dctHash(reduce(raster, DCT_SIZE, DCT_SIZE));
+    }
+
+    /**
+     * @return returns the DCT hash of an image
+     */
+    public static long dctHash(Image image) {
+        return dctHash(reduce(image, DCT_SIZE, DCT_SIZE));
+    }
+
+    /**
+     * @return returns the DCT hash of a luminance plane (row major, stride equal to the width)
+     */
+    public static long dctHash(byte[] luma, int width, int height) {
+        return dctHash(reduce(luma, width, height, DCT_SIZE, DCT_SIZE));
+    }
+
+    /**
+     * This method sets a bit for every cell of the 8 x 8 grid above the mean
+     */
+    private static long averageHash(double[] cells) {
+        double mean = 0;
+        for(double cell : cells) mean += cell;
+        mean /= cells.length;
+        long hash = 0;
+        for(double cell : cells){
+            hash = (hash << 1) | (cell > mean ? 1 : 0);
+        }
+        return hash;
+    }
+
+    /**
+     * This method sets a bit for every pair of horizontal neighbours of the 9 x 8 grid where the right one is brighter
+     */
+    private static long differenceHash(double[] cells) {
+        long hash = 0;
+        for(int y = 0; y < 8; y++){
+            for(int x = 0; x < 8; x++){
+                hash = (hash << 1) | (cells[y * 9 + x + 1] > cells[y * 9 + x] ? 1 : 0);
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * This method computes the lowest 8 x 8 frequencies of the DCT of the 32 x 32 grid (separably, rows then
+     * columns) and sets a bit for every coefficient above their median
+     */
+    private static long dctHash(double[] cells) {
+        // rows: partial[y * DCT_KEPT + u] = sum over x of cells[y][x] * basis[u][x]
+        double[] partial = new double[DCT_SIZE * DCT_KEPT];
+        for(int y = 0; y < DCT_SIZE; y++){
+            for(int u = 0; u < DCT_KEPT; u++){
+                double sum = 0;
+                for(int x = 0; x < DCT_SIZE; x++){
+                    sum += cells[y * DCT_SIZE + x] * COSINES[u * DCT_SIZE + x];
+                }
+                partial[y * DCT_KEPT + u] = sum;
+            }
+        }
+        // columns: coefficients[v * DCT_KEPT + u] = sum over y of partial[y][u] * basis[v][y]
+        double[] coefficients = new double[DCT_KEPT * DCT_KEPT];
+        for(int v = 0; v < DCT_KEPT; v++){
+            for(int u = 0; u < DCT_KEPT; u++){
+                double sum = 0;
+                for(int y = 0; y < DCT_SIZE; y++){
+                    sum += partial[y * DCT_KEPT + u] * COSINES[v * DCT_SIZE + y];
+                }
+                coefficients[v * DCT_KEPT + u] = sum;
+            }
+        }
+        double[] sorted = coefficients.clone();
+        Arrays.sort(sorted);
+        double median = (sorted[sorted.length / 2 - 1] + sorted[sorted.length / 2]) / 2;
+        long hash = 0;
+        for(double coefficient : coefficients){
+            hash = (hash << 1) | (coefficient > median ? 1 : 0);
+        }
+        return hash;
+    }
+
+    private static double[] reduce(Raster raster, int cellsX, int cellsY) {
+        return reduce(raster.getWidth(), raster.getHeight(), cellsX, cellsY, (y, row) -> raster.readLumaRow(y, row, 0));
+    }
+
+    private static double[] reduce(Image image, int cellsX, int cellsY) {
+        int width = (int) image.getWidth(), height = (int) image.getHeight();
+        PixelReader reader = image.getPixelReader();
+        int[] argb = BufferPool.shared().borrowInts(width);
+        try{
+            // one row at a time, the image is never copied whole
+            return reduce(width, height, cellsX, cellsY, (y, row) -> {
+                reader.getPixels(0, y, width, 1, PixelFormat.getIntArgbInstance(), argb, 0, width);
+                Luma.argbToLuma(argb, 0, row, 0, width);
+            });
+        } finally {
+            BufferPool.shared().release(argb);
+        }
+    }
+
+    private static double[] reduce(byte[] luma, int width, int height, int cellsX, int cellsY) {
+        if(luma.length < width * height){
+            throw new IllegalArgumentException("the plane is smaller than width * height");
+        }
+        return reduce(width, height, cellsX, cellsY, (y, row) -> System.arraycopy(luma, y * width, row, 0, width));
+    }
+
+    /**
+     * This method averages every pixel into the cell of a cellsX x cellsY grid it falls in, in one pass over the rows.
+     * An image smaller than the grid has its pixels repeated over several cells.
+     */
+    private static double[] reduce(int width, int height, int cellsX, int cellsY, LumaRows rows) {
+        if(width < 1 || height < 1){
+            throw new IllegalArgumentException("the image is empty");
+        }
+        if(width < cellsX || height < cellsY){
+            // too small to average: sample every cell at its centre instead
+            byte[] row = new byte[width];
+            double[] cells = new double[cellsX * cellsY];
+            for(int cy = 0; cy < cellsY; cy++){
+                rows.read((int) ((cy + 0.5) * height / cellsY), row);
+                for(int cx = 0; cx < cellsX; cx++){
+                    cells[cy * cellsX + cx] = row[(int) ((cx + 0.5) * width / cellsX)] & 0xff;
+                }
+            }
+            return cells;
+        }
+        int[] cellOfColumn = new int[width];
+        int[] columnsPerCell = new int[cellsX];
+        for(int x = 0; x < width; x++){
+            cellOfColumn[x] = (int) ((long) x * cellsX / width);
+            columnsPerCell[cellOfColumn[x]]++;
+        }
+        long[] sums = new long[cellsX * cellsY];
+        int[] rowsPerCell = new int[cellsY];
+        byte[] row = BufferPool.shared().borrowBytes(width);
+        try{
+            for(int y = 0; y < height; y++){
+                int cy = (int) ((long) y * cellsY / height);
+                rowsPerCell[cy]++;
+                rows.read(y, row);
+                int base = cy * cellsX;
+                for(int x = 0; x < width; x++){
+                    sums[base + cellOfColumn[x]] += row[x] & 0xff;
+                }
+            }
+        } finally {
+            BufferPool.shared().release(row);
+        }
+        double[] cells = new double[cellsX * cellsY];
+        for(int cy = 0; cy < cellsY; cy++){
+            for(int cx = 0; cx < cellsX; cx++){
+                cells[cy * cellsX + cx] = (double) sums[cy * cellsX + cx] / ((long) columnsPerCell[cx] * rowsPerCell[cy]);
+            }
+        }
+        return cells;
+    }
+}
@@ -0,0 +1,234 @@
+package mathematical.classes;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * This class holds the Vector API versions of the hot loops: the convolution row passes and the distance / dot
+ * product loops (the luma lanes live in raster.Luma). Every method handles the tail that does not fill a whole vector
+ * with scalar code and gives the same result as its scalar counterpart (the float row passes may differ in the last
+ * bits because of fma).
+ * Only call these when helpers.SimdSupport.ENABLED is true.
+ */
+public final class SimdKernels {
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Long> LONGS = LongVector.SPECIES_PREFERRED;
+    // bytes with one lane per int lane, so a vector of bytes widens into ints in one conversion
+    private static final VectorSpecies<Byte> BYTES = VectorSpecies.of(byte.class, VectorShape.forBitSize(INTS.length() * 8));
+
+    private SimdKernels() {
+    }
+
+    /**
+     * @return returns the number of int lanes in a vector
+     */
+    public static int intLanes() {
+        return INTS.length();
+    }
+
+    /**
+     * This method applies a 1D kernel along a row for the output pixels [from, to), every tap must be inside the row
+     * @param source the source plane
+     * @param rowOffset index of the first pixel of the row
+     * @param from first output column
+     * @param to last output column (exclusive)
+     * @param taps the kernel, centred on the output pixel
+     * @param destination the plane to write to
+     */
+    public static void correlateRow(float[] source, int rowOffset, int from, int to, float[] taps, float[] destination) {
+        int radius = taps.length / 2;
+        int x = from;
+        for(int upper = from + FLOATS.loopBound(to - from); x < upper; x += FLOATS.length()){
+            int base = rowOffset + x - radius;
+            FloatVector sum = FloatVector.zero(FLOATS);
+            for(int k = 0; k < taps.length; k++){
+                sum = FloatVector.fromArray(FLOATS, source, base + k).fma(FloatVector.broadcast(FLOATS, taps[k]), sum);
+            }
+            sum.intoArray(destination, rowOffset + x);
+        }
+        for(; x < to; x++){
+            int base = rowOffset + x - radius;
+            float sum = 0;
+            for(int k = 0; k < taps.length; k++){
+                sum += taps[k] * source[base + k];
+            }
+            destination[rowOffset + x] = sum;
+        }
+    }
+
+    /**
+     * This method adds weight * source[sourceOffset + i] to destination[destinationOffset + i] for count elements
+     */
+    public static void accumulateScaled(float[] source, int sourceOffset, float weight, float[] destination, int destinationOffset, int count) {
+        FloatVector scale = FloatVector.broadcast(FLOATS, weight);
+        int i = 0;
+        for(int upper = FLOATS.loopBound(count); i < upper; i += FLOATS.length()){
+            FloatVector.fromArray(FLOATS, source, sourceOffset + i)
+                    .fma(scale, FloatVector.fromArray(FLOATS, destination, destinationOffset + i))
+                    .intoArray(destination, destinationOffset + i);
+        }
+        for(; i < count; i++){
+            destination[destinationOffset + i] += weight * source[sourceOffset + i];
+        }
+    }
+
+    /**
+     * This method computes the sum of squared differences of two vectors in long arithmetic, the caller checks with
+     * magnitudes that it cannot overflow
+     */
+    public static long squaredDistance(int[] vectorOne, int[] vectorTwo) {
+        LongVector accumulator = LongVector.zero(LONGS);
+        int i = 0;
+        for(int upper = INTS.loopBound(vectorOne.length); i < upper; i += INTS.length()){
+            IntVector one = IntVector.fromArray(INTS, vectorOne, i);
+            IntVector two = IntVector.fromArray(INTS, vectorTwo, i);
+            // widen both halves to long before subtracting, two ints far apart do not fit an int difference
+            for(int part = 0; part < 2; part++){
+                LongVector difference = ((LongVector) one.convertShape(VectorOperators.I2L, LONGS, part))
+                        .sub((LongVector) two.convertShape(VectorOperators.I2L, LONGS, part));
+                accumulator = accumulator.add(difference.mul(difference));
+            }
+        }
+        long sum = accumulator.reduceLanes(VectorOperators.ADD);
+        for(; i < vectorOne.length; i++){
+            long difference = (long) vectorOne[i] - vectorTwo[i];
+            sum += difference * difference;
+        }
+        return sum;
+    }
+
+    /**
+     * This method computes the cosine similarity of two vectors, the dot product and both norms in one pass in long
+     * arithmetic, the caller checks with magnitudes that the sums cannot overflow
+     * @return returns the similarity, NaN when one of the vectors is all zeros
+     */
+    public static double cosine(int[] vectorOne, int[] vectorTwo) {
+        LongVector dot = LongVector.zero(LONGS);
+        LongVector normOne = LongVector.zero(LONGS);
+        LongVector normTwo = LongVector.zero(LONGS);
+        int i = 0;
+        for(int upper = INTS.loopBound(vectorOne.length); i < upper; i += INTS.length()){
+            IntVector one = IntVector.fromArray(INTS, vectorOne, i);
+            IntVector two = IntVector.fromArray(INTS, vectorTwo, i);
+            for(int part = 0; part < 2; part++){
+                LongVector a = (LongVector) one.convertShape(VectorOperators.I2L, LONGS, part);
+                LongVector b = (LongVector) two.convertShape(VectorOperators.I2L, LONGS, part);
+                dot = dot.add(a.mul(b));
+                normOne = normOne.add(a.mul(a));
+                normTwo = normTwo.add(b.mul(b));
+            }
+        }
+        long dotProduct = dot.reduceLanes(VectorOperators.ADD);
+        long squaredNormOne = normOne.reduceLanes(VectorOperators.ADD);
+        long squaredNormTwo = normTwo.reduceLanes(VectorOperators.ADD);
+        for(; i < vectorOne.length; i++){
+            long a = vectorOne[i], b = vectorTwo[i];
+            dotProduct += a * b;
+            squaredNormOne += a * a;
+            squaredNormTwo += b * b;
+        }
+        return dotProduct / (Math.sqrt(squaredNormOne) * Math.sqrt(squaredNormTwo));
+    }
+
+    /**
+     * This method ors DistanceKernels.magnitude over [from, to) of both vectors
+     */
+    public static int magnitudes(int[] vectorOne, int[] vectorTwo, int from, int to) {
+        IntVector bits = IntVector.zero(INTS);
+        int i = from;
+        for(int upper = from + INTS.loopBound(to - from); i < upper; i += INTS.length()){
+            IntVector one = IntVector.fromArray(INTS, vectorOne, i);
+            IntVector two = IntVector.fromArray(INTS, vectorTwo, i);
+            bits = bits.or(one.lanewise(VectorOperators.XOR, one.lanewise(VectorOperators.ASHR, 31)))
+                    .or(two.lanewise(VectorOperators.XOR, two.lanewise(VectorOperators.ASHR, 31)));
+        }
+        int result = bits.reduceLanes(VectorOperators.OR);
+        for(; i < to; i++){
+            result |= DistanceKernels.magnitude(vectorOne[i]) | DistanceKernels.magnitude(vectorTwo[i]);
+        }
+        return result;
+    }
+
+    /**
+     * This method computes the sum of squared differences of two runs of unsigned bytes, at most
+     * DistanceKernels.BLOCK long so the int lanes cannot overflow
+     */
+    public static long squaredDistance(byte[] one, int offsetOne, byte[] two, int offsetTwo, int length) {
+        IntVector accumulator = IntVector.zero(INTS);
+        int i = 0;
+        for(int upper = INTS.loopBound(length); i < upper; i += INTS.length()){
+            IntVector difference = unsigned(one, offsetOne + i).sub(unsigned(two, offsetTwo + i));
+            accumulator = accumulator.add(difference.mul(difference));
+        }
+        long sum = accumulator.reduceLanesToLong(VectorOperators.ADD);
+        for(; i < length; i++){
+            int difference = (one[offsetOne + i] & 0xff) - (two[offsetTwo + i] & 0xff);
+            sum += difference * difference;
+        }
+        return sum;
+    }
+
+    /**
+     * This method computes the sum of absolute differences of two runs of unsigned bytes, at most
+     * DistanceKernels.BLOCK long so the int lanes cannot overflow
+     */
+    public static long absoluteDistance(byte[] one, int offsetOne, byte[] two, int offsetTwo, int length) {
+        IntVector accumulator = IntVector.zero(INTS);
+        int i = 0;
+        for(int upper = INTS.loopBound(length); i < upper; i += INTS.length()){
+            accumulator = accumulator.add(unsigned(one, offsetOne + i).sub(unsigned(two, offsetTwo + i)).abs());
+        }
+        long sum = accumulator.reduceLanesToLong(VectorOperators.ADD);
+        for(; i < length; i++){
+            sum += Math.abs((one[offsetOne + i] & 0xff) - (two[offsetTwo + i] & 0xff));
+        }
+        return sum;
+    }
+
+    /**
+     * This method computes the dot product of two runs of unsigned bytes, at most DistanceKernels.BLOCK long so the
+     * int lanes cannot overflow
+     */
+    public static long dot(byte[] one, int offsetOne, byte[] two, int offsetTwo, int length) {
+        IntVector accumulator = IntVector.zero(INTS);
+        int i = 0;
+        for(int upper = INTS.loopBound(length); i < upper; i += INTS.length()){
+            accumulator = accumulator.add(unsigned(one, offsetOne + i).mul(unsigned(two, offsetTwo + i)));
+        }
+        long sum = accumulator.reduceLanesToLong(VectorOperators.ADD);
+        for(; i < length; i++){
+            sum += (one[offsetOne + i] & 0xff) * (two[offsetTwo + i] & 0xff);
+        }
+        return sum;
+    }
+
+    /**
+     * This method loads one int lane per byte, read as unsigned
+     */
+    private static IntVector unsigned(byte[] bytes, int offset) {
+        return ((IntVector) ByteVector.fromArray(BYTES, bytes, offset).convertShape(VectorOperators.B2I, INTS, 0)).and(0xff);
+    }
+
+    /**
+     * This method computes the dot product of two runs of floats, summed in float lanes with fma - meant for unit
+     * vectors, whose products are small enough for float sums to stay accurate
+     */
+    public static float dot(float[] one, int offsetOne, float[] two, int offsetTwo, int length) {
+        FloatVector accumulator = FloatVector.zero(FLOATS);
+        int i = 0;
+        for(int upper = FLOATS.loopBound(length); i < upper; i += FLOATS.length()){
+            accumulator = FloatVector.fromArray(FLOATS, one, offsetOne + i).fma(FloatVector.fromArray(FLOATS, two, offsetTwo + i), accumulator);
+        }
+        float sum = accumulator.reduceLanes(VectorOperators.ADD);
+        for(; i < length; i++){
+            sum += one[offsetOne + i] * two[offsetTwo + i];
+        }
+        return sum;
+    }
+}
@@ -1,12 +1,14 @@
 package mathematical.classes;
 
+import helpers.BufferPool;
 import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
 import javafx.scene.image.PixelReader;
 import javafx.scene.image.PixelWriter;
 import javafx.scene.image.WritableImage;
 import mathematical.interfaces.Algorithms;
-
-import java.io.IOException;
+import raster.Luma;
+import raster.Raster;
 
 public class VectorCalculations implements Algorithms {
     /**
@@ -17,29 +19,68 @@ public class VectorCalculations implements Algorithms {
      */
     @Override
     public int[] flattenImage(Image image) {
+        return flattenImage(image, null);
+    }
+
+    /**
+     * This method flattens an image into the given vector, so a caller can reuse (or pool) its vectors
+     *
+     * @param image the image to be processed
+     * @param destination the vector to fill, a new one is allocated when it is null or too small
+     * @return return a vector of the image
+     */
+    @Override
+    public int[] flattenImage(Image image, int[] destination) {
         // get the dimensions
         int width = (int) image.getWidth();
         int height = (int) image.getHeight();
-        // create the vector
-        int[] imageVector = new int[width * height];
-        // create pixel reader
-        PixelReader reader = image.getPixelReader();
-        // iterate and get all the pixels
-        for(int x = 0; x < height; x++){
-            for(int y = 0; y < width; y++){
-                // get argb
-                int argb = reader.getArgb(x, y);
-                // extract channels
-                int red = (argb >> 16) & 0xFF;
-                int green = (argb >> 8) & 0xFF;
-                int blue = argb & 0xFF;
+        int size = width * height;
+        // create the vector when the caller did not give one
+        int[] imageVector = destination == null || destination.length < size ? new int[size] : destination;
+        // read all the pixels row wise in one call, then replace every pixel with its gray value in place
+        image.getPixelReader().getPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(), imageVector, 0, width);
+        Luma.argbToLumaInPlace(imageVector, 0, size);
+        return imageVector;
+    }
+
+    /**
+     * This method takes a raster and flattens it into a vector(1D array) of luma values, without the JavaFX toolkit
+     *
+     * @param raster the raster to be processed
+     * @return return a vector of the raster
+     */
+    @Override
+    public int[] flattenImage(Raster raster) {
+        return flattenImage(raster, null);
+    }
 
-                // compute gray value
-                int grayValue = (int) (0.299 * red + 0.587 * green + 0.144 * blue);
-                // flatten row wise
-                imageVector[x * width + y] = grayValue;
+    /**
+     * This method flattens a raster into the given vector
+     *
+     * @param raster the raster to be processed
+     * @param destination the vector to fill, a new one is allocated when it is null or too small
+     * @return return a vector of the raster
+     */
+    @Override
+    public int[] flattenImage(Raster raster, int[] destination) {
+        int width = raster.getWidth();
+        int height = raster.getHeight();
+        int size = width * height;
+        int[] imageVector = destination == null || destination.length < size ? new int[size] : destination;
+        if(raster.isGray()){
+            byte[] luma = raster.getGrayData();
+            for(int y = 0; y < height; y++){
+                for(int x = 0, from = raster.getOffset() + y * raster.getStride(), to = y * width; x < width; x++){
+                    imageVector[to + x] = luma[from + x] & 0xff;
+                }
             }
+            return imageVector;
         }
+        // copy the argb rows into the vector, then replace every pixel with its gray value in place
+        for(int y = 0; y < height; y++){
+            raster.readArgbRow(y, imageVector, y * width);
+        }
+        Luma.argbToLumaInPlace(imageVector, 0, size);
         return imageVector;
     }
 
@@ -52,14 +93,8 @@ public class VectorCalculations implements Algorithms {
      */
     @Override
     public double EuclideanDistance(int[] vectorOne, int[] vectorTwo) {
-        double sum = 0;
-        // ensure vectors have the same length
-        assert vectorOne.length == vectorTwo.length;
-        for(int i= 0; i < vectorOne.length; i++){
-            sum += Math.pow(vectorOne[i] - vectorTwo[i], 2);
-        }
-        // return square root of sum
-        return Math.sqrt(sum);
+        // long accumulation without Math.pow, vectors of different lengths are rejected
+        return DistanceKernels.l2(vectorOne, vectorTwo);
     }
 
     /**
@@ -71,17 +106,8 @@ public class VectorCalculations implements Algorithms {
      */
     @Override
     public double cosineSimilarity(int[] vectorOne, int[] vectorTwo) {
-        double dotProduct = 0, NormOfVectorOne = 0, NormOfVectorTwo = 0;
-        // ensure lengths are the same
-        assert vectorOne.length == vectorTwo.length;
-        // calculate the dot product and norms of the two vectors
-        for(int i = 0; i < vectorOne.length; i++){
-            dotProduct += vectorOne[i] * vectorTwo[i];
-            NormOfVectorOne += Math.pow(vectorOne[i], 2);
-            NormOfVectorTwo += Math.pow(vectorTwo[i], 2);
-        }
-        // return the cosine angle of the two vectors
-        return dotProduct / (Math.sqrt(NormOfVectorOne) * Math.sqrt(NormOfVectorTwo));
+        // the dot product and both norms in one pass, vectors of different lengths are rejected
+        return DistanceKernels.cosine(vectorOne, vectorTwo);
     }
 
     /**
@@ -94,23 +120,97 @@ public class VectorCalculations implements Algorithms {
      */
     @Override
     public Image resizeImage(Image image, int desiredWidth, int desiredHeight) {
-        // creating a writable image object with the desired dimensions
-        WritableImage resizedImage = new WritableImage(desiredWidth, desiredHeight);
-        // get pixel reader and writer
-        PixelReader pixelReader = image.getPixelReader();
-        PixelWriter pixelWriter = resizedImage.getPixelWriter();
-        // creating scale factors
-        double xScaleFactor = image.getHeight() / desiredHeight;
-        double yScaleFactor = image.getWidth() / desiredWidth;
-        // get each pixel from the current image and write it on the new image
-        for(int x = 0; x < desiredHeight; x++){
-            for(int y = 0; y < desiredWidth; y++){
-                int xLocation = (int) (x * xScaleFactor);
-                int yLocation = (int) (y * yScaleFactor);
-                pixelWriter.setArgb(x,  y, pixelReader.getArgb(x, y));
+        return JavaFxPaths.resizeImage(image, desiredWidth, desiredHeight);
+    }
+
+    /**
+     * This method resizes the given raster to the desired dimension with the same nearest neighbour sampling as the
+     * image version, without the JavaFX toolkit
+     *
+     * @param raster        the raster to be resized
+     * @param desiredWidth  desired width
+     * @param desiredHeight desired height
+     * @return returns the new resized raster, of the same type
+     */
+    @Override
+    public Raster resizeImage(Raster raster, int desiredWidth, int desiredHeight) {
+        int width = raster.getWidth();
+        int height = raster.getHeight();
+        int[] columns = new int[desiredWidth];
+        for(int x = 0; x < desiredWidth; x++){
+            columns[x] = sourceIndex(x, width, desiredWidth);
+        }
+        if(raster.isGray()){
+            Raster resized = Raster.createGray(desiredWidth, desiredHeight);
+            byte[] source = raster.getGrayData(), target = resized.getGrayData();
+            for(int y = 0; y < desiredHeight; y++){
+                int row = raster.getOffset() + sourceIndex(y, height, desiredHeight) * raster.getStride();
+                for(int x = 0; x < desiredWidth; x++){
+                    target[y * desiredWidth + x] = source[row + columns[x]];
+                }
+            }
+            return resized;
+        }
+        Raster resized = Raster.createArgb(desiredWidth, desiredHeight);
+        int[] source = raster.getArgbData(), target = resized.getArgbData();
+        for(int y = 0; y < desiredHeight; y++){
+            int row = raster.getOffset() + sourceIndex(y, height, desiredHeight) * raster.getStride();
+            for(int x = 0; x < desiredWidth; x++){
+                target[y * desiredWidth + x] = source[row + columns[x]];
+            }
+        }
+        return resized;
+    }
+
+    /**
+     * This method maps a destination coordinate to the source coordinate used by nearest neighbour resizing,
+     * in integer arithmetic so every resizing path picks exactly the same pixels
+     * @param destinationIndex coordinate in the resized image
+     * @param sourceLength size of the source along this axis
+     * @param destinationLength size of the resized image along this axis
+     * @return returns the source coordinate
+     */
+    public static int sourceIndex(int destinationIndex, int sourceLength, int destinationLength) {
+        return (int) ((long) destinationIndex * sourceLength / destinationLength);
+    }
+
+    /**
+     * This class holds the JavaFX code that would make the verifier load JavaFX with VectorCalculations (see raster.Luma)
+     */
+    private static final class JavaFxPaths {
+        private JavaFxPaths() {
+        }
+
+        /**
+         * This method resizes an image with nearest neighbour sampling, see resizeImage(Image, int, int)
+         */
+        static Image resizeImage(Image image, int desiredWidth, int desiredHeight) {
+            int width = (int) image.getWidth();
+            int height = (int) image.getHeight();
+            // creating a writable image object with the desired dimensions
+            WritableImage resizedImage = new WritableImage(desiredWidth, desiredHeight);
+            // get pixel reader and writer
+            PixelReader pixelReader = image.getPixelReader();
+            PixelWriter pixelWriter = resizedImage.getPixelWriter();
+            // the row buffers are borrowed from the shared pool and given back once the image is written
+            int[] sourceRow = BufferPool.shared().borrowInts(width);
+            int[] resizedRow = BufferPool.shared().borrowInts(desiredWidth);
+            try{
+                // nearest neighbour: every destination pixel takes the source pixel its top left corner falls in
+                for(int y = 0; y < desiredHeight; y++){
+                    int yLocation = sourceIndex(y, height, desiredHeight);
+                    pixelReader.getPixels(0, yLocation, width, 1, PixelFormat.getIntArgbInstance(), sourceRow, 0, width);
+                    for(int x = 0; x < desiredWidth; x++){
+                        resizedRow[x] = sourceRow[sourceIndex(x, width, desiredWidth)];
+                    }
+                    pixelWriter.setPixels(0, y, desiredWidth, 1, PixelFormat.getIntArgbInstance(), resizedRow, 0, desiredWidth);
+                }
+            } finally {
+                BufferPool.shared().release(sourceRow);
+                BufferPool.shared().release(resizedRow);
             }
+            // return the scaled image
+            return resizedImage;
         }
-        // return the scaled image
-        return resizedImage;
     }
 }
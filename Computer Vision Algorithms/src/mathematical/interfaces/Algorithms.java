@@ -2,6 +2,7 @@ package mathematical.interfaces;
 
 import javafx.scene.image.Image;
 import javafx.scene.image.WritableImage;
+import raster.Raster;
 
 public interface Algorithms {
     /**
@@ -11,6 +12,14 @@ public interface Algorithms {
      */
     int[] flattenImage(Image image);
 
+    /**
+     * This method flattens an image into the given vector, so a caller can reuse (or pool) its vectors
+     * @param image the image to be processed
+     * @param destination the vector to fill, a new one is allocated when it is null or too small
+     * @return return a vector of the image
+     */
+    int[] flattenImage(Image image, int[] destination);
+
     /**
      * This method calculates the Euclidean distance between two vectors
      * @param vectorOne the first vector
@@ -35,4 +44,28 @@ public interface Algorithms {
      * @return returns the new resized image
      */
     Image resizeImage(Image image, int desiredWidth, int desiredHeight);
+
+    /**
+     * This method takes a raster and flattens it into a vector(1D array) of luma values, without the JavaFX toolkit
+     * @param raster the raster to be processed
+     * @return return a vector of the raster
+     */
+    int[] flattenImage(Raster raster);
+
+    /**
+     * This method flattens a raster into the given vector
+     * @param raster the raster to be processed
+     * @param destination the vector to fill, a new one is allocated when it is null or too small
+     * @return return a vector of the raster
+     */
+    int[] flattenImage(Raster raster, int[] destination);
+
+    /**
+     * This method resizes the given raster to the desired dimension, without the JavaFX toolkit
+     * @param raster the raster to be resized
+     * @param desiredWidth desired width
+     * @param desiredHeight desired height
+     * @return returns the new resized raster, of the same type
+     */
+    Raster resizeImage(Raster raster, int desiredWidth, int desiredHeight);
 }
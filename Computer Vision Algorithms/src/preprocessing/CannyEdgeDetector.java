@@ -0,0 +1,174 @@
+package preprocessing;
+
+import java.util.Arrays;
+
+/**
+ * This class detects edges with the canny algorithm. The sobel gradient is streamed row by row and non-maximum
+ * suppression runs over a rolling buffer of three gradient rows, so apart from the output edge map the memory used
+ * does not grow with the image. Hysteresis then grows the strong edges into the weak ones with an explicit worklist
+ * instead of recursion, so long edges cannot overflow the stack.
+ */
+public class CannyEdgeDetector {
+    /*
+        values in the edge map
+     */
+    public static final byte EDGE = (byte) 255;
+    public static final byte NO_EDGE = 0;
+    private static final byte WEAK_EDGE = 1; // only used while the detector runs
+
+    /*
+        class variables
+     */
+    private final int lowThreshold;
+    private final int highThreshold;
+    private final SobelOperator sobelOperator = new SobelOperator();
+
+    /**
+     * This constructor creates a detector with the given hysteresis thresholds on the gradient magnitude
+     * @param lowThreshold magnitude from which a pixel is kept when it is connected to a strong edge
+     * @param highThreshold magnitude from which a pixel is a strong edge on its own
+     */
+    public CannyEdgeDetector(int lowThreshold, int highThreshold) {
+        if(lowThreshold < 0 || highThreshold < lowThreshold){
+            throw new IllegalArgumentException("thresholds must satisfy 0 <= low <= high");
+        }
+        this.lowThreshold = lowThreshold;
+        this.highThreshold = highThreshold;
+    }
+
+    /**
+     * This method detects the edges of a luminance raster (it should usually be blurred first)
+     * @param source the luminance raster
+     * @param edges the edge map to write to (EDGE or NO_EDGE per pixel), a new one is allocated when it is null or too small
+     * @return returns the edge map
+     */
+    public byte[] detect(LumaRowSource source, byte[] edges) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        if(edges == null || edges.length < width * height){
+            edges = new byte[width * height];
+        }
+        byte[] edgeMap = edges;
+        Worklist strongEdges = new Worklist();
+
+        // rolling buffer of three gradient rows, the suppression runs one row behind the sobel stream
+        int[][] magnitudes = {new int[width], new int[width], new int[width]};
+        byte[][] directions = {new byte[width], new byte[width], new byte[width]};
+        this.sobelOperator.stream(source, (y, gradientX, gradientY, magnitude, direction) -> {
+            System.arraycopy(magnitude, 0, magnitudes[y % 3], 0, width);
+            System.arraycopy(direction, 0, directions[y % 3], 0, width);
+            if(y > 0){
+                int previous = y - 1;
+                int[] above = previous > 0 ? magnitudes[(previous - 1) % 3] : null;
+                suppressRow(previous, above, magnitudes[previous % 3], magnitudes[y % 3], directions[previous % 3], width, edgeMap, strongEdges);
+            }
+        });
+        if(height > 0){
+            int last = height - 1;
+            int[] above = last > 0 ? magnitudes[(last - 1) % 3] : null;
+            suppressRow(last, above, magnitudes[last % 3], null, directions[last % 3], width, edgeMap, strongEdges);
+        }
+
+        hysteresis(edgeMap, width, height, strongEdges);
+        return edges;
+    }
+
+    /**
+     * This method keeps the pixels of a row that are a local maximum along their gradient direction and classifies
+     * them as strong or weak edges, rows outside the image (null) read as zero magnitude
+     */
+    private void suppressRow(int y, int[] above, int[] current, int[] below, byte[] direction, int width, byte[] edges, Worklist strongEdges) {
+        int offset = y * width;
+        for(int x = 0; x < width; x++){
+            int magnitude = current[x];
+            if(magnitude < this.lowThreshold){
+                edges[offset + x] = NO_EDGE;
+                continue;
+            }
+            int before, after;
+            switch (direction[x]){
+                case SobelOperator.DIRECTION_HORIZONTAL:
+                    before = read(current, x - 1, width);
+                    after = read(current, x + 1, width);
+                    break;
+                case SobelOperator.DIRECTION_VERTICAL:
+                    before = read(above, x, width);
+                    after = read(below, x, width);
+                    break;
+                case SobelOperator.DIRECTION_DIAGONAL:
+                    before = read(above, x - 1, width);
+                    after = read(below, x + 1, width);
+                    break;
+                default:
+                    before = read(above, x + 1, width);
+                    after = read(below, x - 1, width);
+                    break;
+            }
+            // strictly greater on one side only so plateaus keep a single pixel
+            if(magnitude > before && magnitude >= after){
+                if(magnitude >= this.highThreshold){
+                    edges[offset + x] = EDGE;
+                    strongEdges.push(offset + x);
+                } else {
+                    edges[offset + x] = WEAK_EDGE;
+                }
+            } else {
+                edges[offset + x] = NO_EDGE;
+            }
+        }
+    }
+
+    /**
+     * This method reads a magnitude, pixels outside the row or the image read as zero
+     */
+    private static int read(int[] row, int x, int width) {
+        return row == null || x < 0 || x >= width ? 0 : row[x];
+    }
+
+    /**
+     * This method promotes every weak edge connected (8-neighbourhood) to a strong edge and drops the others
+     */
+    private static void hysteresis(byte[] edges, int width, int height, Worklist worklist) {
+        while(!worklist.isEmpty()){
+            int index = worklist.pop();
+            int x = index % width;
+            int y = index / width;
+            for(int ny = Math.max(0, y - 1); ny <= Math.min(height - 1, y + 1); ny++){
+                for(int nx = Math.max(0, x - 1); nx <= Math.min(width - 1, x + 1); nx++){
+                    int neighbour = ny * width + nx;
+                    if(edges[neighbour] == WEAK_EDGE){
+                        edges[neighbour] = EDGE;
+                        worklist.push(neighbour);
+                    }
+                }
+            }
+        }
+        // whatever is still weak is not connected to a strong edge
+        for(int i = 0, size = width * height; i < size; i++){
+            if(edges[i] == WEAK_EDGE) edges[i] = NO_EDGE;
+        }
+    }
+
+    /**
+     * This class defines a growable stack of pixel indexes
+     */
+    private static final class Worklist {
+        private int[] items = new int[1024];
+        private int size;
+
+        void push(int item) {
+            if(this.size == this.items.length){
+                this.items = Arrays.copyOf(this.items, this.items.length * 2);
+            }
+            this.items[this.size++] = item;
+        }
+
+        int pop() {
+            return this.items[--this.size];
+        }
+
+        boolean isEmpty() {
+            return this.size == 0;
+        }
+    }
+}
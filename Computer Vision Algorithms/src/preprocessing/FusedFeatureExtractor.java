@@ -0,0 +1,252 @@
+package preprocessing;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.PixelReader;
+import mathematical.classes.VectorCalculations;
+import raster.Luma;
+import raster.Raster;
+import raster.RasterDecoder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URL;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * This class turns an image into its feature vector in a single pass over the source rows, without any intermediate
+ * image. It gives the same result as the step by step path ImageGrayScaling -> GaussianBlurAlgorithm (optional) ->
+ * resizeImage -> flattenImage: every source row that is needed is read once, converted to luma, blurred horizontally
+ * only at the sampled columns and kept in a small ring of rows for the vertical blur. The rounding of both blur passes
+ * is the same as GaussianBlur so the vectors match exactly.
+ * An instance keeps its row buffers between calls, so it is not thread safe - use one extractor per thread.
+ */
+public class FusedFeatureExtractor {
+    /**
+     * This interface reads one row of argb pixels from whatever holds the image
+     */
+    @FunctionalInterface
+    private interface ArgbRows {
+        void read(int row, int[] destination);
+    }
+
+    /*
+        class variables
+     */
+    private final int targetWidth;
+    private final int targetHeight;
+    private final int radius; // 0 when there is no blur
+    private final int[] kernel; // null when there is no blur
+
+    private int sourceWidth = -1; // the buffers below are sized for this source width
+    private int[] argbRow;
+    private byte[] lumaRow;
+    private int[] sampledColumns;
+    private int[][] ring; // horizontally blurred values at the sampled columns, one row per slot
+    private int[] ringRows; // the source row held by each slot, -1 when empty
+    private int[] accumulator;
+
+    /**
+     * This constructor creates an extractor without blurring
+     * @param targetWidth width the image is resampled to
+     * @param targetHeight height the image is resampled to
+     */
+    public FusedFeatureExtractor(int targetWidth, int targetHeight) {
+        this(targetWidth, targetHeight, 0);
+    }
+
+    /**
+     * This constructor creates an extractor that blurs the gray image before resampling
+     * @param targetWidth width the image is resampled to
+     * @param targetHeight height the image is resampled to
+     * @param sigma standard deviation of the gaussian blur, 0 for no blur
+     */
+    public FusedFeatureExtractor(int targetWidth, int targetHeight, double sigma) {
+        if(targetWidth < 1 || targetHeight < 1){
+            throw new IllegalArgumentException("target dimensions must be positive");
+        }
+        if(sigma < 0){
+            throw new IllegalArgumentException("sigma must not be negative");
+        }
+        this.targetWidth = targetWidth;
+        this.targetHeight = targetHeight;
+        if(sigma > 0){
+            GaussianBlur blur = new GaussianBlur(sigma);
+            this.radius = blur.getRadius();
+            this.kernel = blur.getKernel();
+        } else {
+            this.radius = 0;
+            this.kernel = null;
+        }
+    }
+
+    /**
+     * @return returns the length of the feature vectors produced (target width * target height)
+     */
+    public int getVectorLength() {
+        return this.targetWidth * this.targetHeight;
+    }
+
+    /**
+     * This method decodes the image at the url and extracts its feature vector. The url is opened once and decoded
+     * by RasterDecoder.readForTarget, like the files of extract(Path, int[]) and the IngestionPipeline, so a large
+     * image is decoded straight at a reduced size and the vector is the same whichever way the image comes in. Only
+     * urls that java.net cannot open (relative ones JavaFX resolves against the class path) are decoded by JavaFX, at
+     * full size.
+     * @param url location of the image
+     * @return returns the feature vector
+     */
+    public int[] extract(String url) {
+        URL location = toUrl(url);
+        if(location != null){
+            try(InputStream input = location.openStream()){
+                return extract(RasterDecoder.readForTarget(input, this.targetWidth, this.targetHeight), null);
+            } catch (IOException e){
+                throw new IllegalArgumentException("could not decode " + url, e);
+            }
+        }
+        Image image = new Image(url);
+        if(image.isError()){
+            throw new IllegalArgumentException("could not decode " + url, image.getException());
+        }
+        return extract(image, null);
+    }
+
+    /**
+     * This method decodes an image file without the JavaFX toolkit, at a reduced size when it is much larger than the
+     * target, and extracts its feature vector
+     * @param file the image file
+     * @param destination the vector to fill, a new one is allocated when it is null or too small
+     * @return returns the feature vector
+     * @throws IOException when the file cannot be read or decoded
+     */
+    public int[] extract(Path file, int[] destination) throws IOException {
+        return extract(RasterDecoder.readForTarget(file, this.targetWidth, this.targetHeight), destination);
+    }
+
+    /**
+     * This method extracts the feature vector of an image: gray values of the (optionally blurred) image resampled
+     * to the target size, row wise
+     * @param image the image
+     * @param destination the vector to fill, a new one is allocated when it is null or too small
+     * @return returns the feature vector
+     */
+    public int[] extract(Image image, int[] destination) {
+        int width = (int) image.getWidth();
+        PixelReader reader = image.getPixelReader();
+        return extract(width, (int) image.getHeight(),
+                (row, pixels) -> reader.getPixels(0, row, width, 1, PixelFormat.getIntArgbInstance(), pixels, 0, width), destination);
+    }
+
+    /**
+     * This method extracts the feature vector of a raster, without the JavaFX toolkit
+     * @param raster the raster
+     * @param destination the vector to fill, a new one is allocated when it is null or too small
+     * @return returns the feature vector
+     */
+    public int[] extract(Raster raster, int[] destination) {
+        return extract(raster.getWidth(), raster.getHeight(), (row, pixels) -> raster.readArgbRow(row, pixels, 0), destination);
+    }
+
+    /**
+     * This method runs the extraction over rows of argb pixels
+     */
+    private int[] extract(int width, int height, ArgbRows reader, int[] destination) {
+        if(destination == null || destination.length < getVectorLength()){
+            destination = new int[getVectorLength()];
+        }
+        prepareBuffers(width);
+        int windowSize = 2 * this.radius + 1;
+        int bits = GaussianBlur.KERNEL_BITS;
+        int rounding = 1 << (bits - 1);
+
+        for(int y = 0; y < this.targetHeight; y++){
+            int sourceRow = VectorCalculations.sourceIndex(y, height, this.targetHeight);
+            int outputOffset = y * this.targetWidth;
+            if(this.kernel == null){
+                int[] row = loadRow(reader, sourceRow, width);
+                System.arraycopy(row, 0, destination, outputOffset, this.targetWidth);
+                continue;
+            }
+            // vertical pass over the ring, in the same tap order and rounding as GaussianBlur
+            Arrays.fill(this.accumulator, rounding);
+            for(int k = 0; k < windowSize; k++){
+                int row = Math.min(height - 1, Math.max(0, sourceRow + k - this.radius));
+                int[] values = loadRow(reader, row, width);
+                int weight = this.kernel[k];
+                for(int x = 0; x < this.targetWidth; x++){
+                    this.accumulator[x] += weight * values[x];
+                }
+            }
+            for(int x = 0; x < this.targetWidth; x++){
+                destination[outputOffset + x] = this.accumulator[x] >>> bits;
+            }
+        }
+        return destination;
+    }
+
+    /**
+     * This method returns the luma values (horizontally blurred when there is a blur) of a source row at the sampled
+     * columns, reading and converting the row only when it is not in the ring yet
+     */
+    private int[] loadRow(ArgbRows reader, int row, int width) {
+        int slot = row % this.ring.length;
+        if(this.ringRows[slot] == row){
+            return this.ring[slot];
+        }
+        reader.read(row, this.argbRow);
+        int[] values = this.ring[slot];
+        if(this.kernel == null){
+            for(int x = 0; x < this.targetWidth; x++){
+                values[x] = Luma.luma(this.argbRow[this.sampledColumns[x]]);
+            }
+        } else {
+            Luma.argbToLuma(this.argbRow, 0, this.lumaRow, 0, width);
+            int rounding = 1 << (GaussianBlur.KERNEL_BITS - 1);
+            for(int x = 0; x < this.targetWidth; x++){
+                int column = this.sampledColumns[x];
+                int sum = rounding;
+                for(int k = 0; k < this.kernel.length; k++){
+                    int sx = Math.min(width - 1, Math.max(0, column + k - this.radius));
+                    sum += this.kernel[k] * (this.lumaRow[sx] & 0xff);
+                }
+                values[x] = sum >>> GaussianBlur.KERNEL_BITS;
+            }
+        }
+        this.ringRows[slot] = row;
+        return values;
+    }
+
+    /**
+     * @return returns the url as a java.net.URL, null when it is relative or of a scheme java.net does not know
+     */
+    private static URL toUrl(String url) {
+        try{
+            return URI.create(url).toURL();
+        } catch (IllegalArgumentException | MalformedURLException e){
+            return null;
+        }
+    }
+
+    /**
+     * This method (re)allocates the row buffers when the source width changes and empties the ring
+     */
+    private void prepareBuffers(int width) {
+        if(width != this.sourceWidth){
+            this.sourceWidth = width;
+            this.argbRow = new int[width];
+            this.lumaRow = new byte[width];
+            this.sampledColumns = new int[this.targetWidth];
+            for(int x = 0; x < this.targetWidth; x++){
+                this.sampledColumns[x] = VectorCalculations.sourceIndex(x, width, this.targetWidth);
+            }
+            this.ring = new int[2 * this.radius + 1][this.targetWidth];
+            this.ringRows = new int[this.ring.length];
+            this.accumulator = new int[this.targetWidth];
+        }
+        Arrays.fill(this.ringRows, -1);
+    }
+}
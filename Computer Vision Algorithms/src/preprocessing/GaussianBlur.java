@@ -0,0 +1,299 @@
+package preprocessing;
+
+import helpers.BufferPool;
+import helpers.ParallelRows;
+
+import java.util.Arrays;
+
+/**
+ * This class blurs rasters with a gaussian kernel applied as two separable 1D passes (horizontal then vertical),
+ * so a pixel costs O(r) instead of O(r^2). The kernel is precomputed once as integers that add up to 2^14 and the
+ * rows of each pass are split into bands across the common fork-join pool. Borders are handled by clamping.
+ */
+public class GaussianBlur {
+    /*
+        the integer kernel weights add up to 2^KERNEL_BITS
+     */
+    public static final int KERNEL_BITS = 14;
+    private static final int KERNEL_ROUNDING = 1 << (KERNEL_BITS - 1);
+
+    /*
+        number of pixels a band should cover before it is worth a separate task
+     */
+    private static final int PIXELS_PER_BAND = 1 << 16;
+
+    /*
+        class variables
+     */
+    private final double sigma;
+    private final int radius;
+    private final int[] kernel;
+
+    /**
+     * This constructor creates a blur for the given standard deviation, the radius is ceil(3 * sigma)
+     * @param sigma standard deviation of the gaussian in pixels
+     */
+    public GaussianBlur(double sigma) {
+        if(!(sigma > 0)){
+            throw new IllegalArgumentException("sigma must be positive");
+        }
+        this.sigma = sigma;
+        this.radius = radiusForSigma(sigma);
+        this.kernel = kernel(sigma, this.radius);
+    }
+
+    /**
+     * This method creates a blur that reaches the given radius, the sigma is radius / 3
+     * @param radius the radius of the kernel in pixels
+     * @return returns the blur
+     */
+    public static GaussianBlur ofRadius(int radius) {
+        if(radius < 1){
+            throw new IllegalArgumentException("radius must be at least 1");
+        }
+        return new GaussianBlur(radius / 3.0);
+    }
+
+    /**
+     * @return returns the standard deviation of the blur
+     */
+    public double getSigma() {
+        return this.sigma;
+    }
+
+    /**
+     * @return returns the radius of the kernel
+     */
+    public int getRadius() {
+        return this.radius;
+    }
+
+    /**
+     * @return returns a copy of the integer kernel (2 * radius + 1 weights that add up to 2^KERNEL_BITS)
+     */
+    public int[] getKernel() {
+        return this.kernel.clone();
+    }
+
+    /**
+     * This method works out the kernel radius for a standard deviation
+     * @param sigma standard deviation
+     * @return returns ceil(3 * sigma), at least 1
+     */
+    public static int radiusForSigma(double sigma) {
+        return Math.max(1, (int) Math.ceil(3 * sigma));
+    }
+
+    /**
+     * This method builds the integer gaussian kernel, the center weight absorbs the rounding error so the sum is exact
+     * @param sigma standard deviation
+     * @param radius radius of the kernel
+     * @return returns 2 * radius + 1 weights that add up to 2^KERNEL_BITS
+     */
+    public static int[] kernel(double sigma, int radius) {
+        double[] weights = new double[2 * radius + 1];
+        double total = 0;
+        for(int i = -radius; i <= radius; i++){
+            weights[i + radius] = Math.exp(-(i * i) / (2 * sigma * sigma));
+            total += weights[i + radius];
+        }
+        int[] kernel = new int[weights.length];
+        int sum = 0;
+        for(int i = 0; i < weights.length; i++){
+            kernel[i] = (int) Math.round(weights[i] / total * (1 << KERNEL_BITS));
+            sum += kernel[i];
+        }
+        kernel[radius] += (1 << KERNEL_BITS) - sum;
+        return kernel;
+    }
+
+    /**
+     * This method blurs a luminance plane (one unsigned byte per pixel, row major)
+     * @param source the plane to blur
+     * @param width width of the plane
+     * @param height height of the plane
+     * @param destination the plane to write to, a new one is allocated when it is null or too small (may not be the source)
+     * @return returns the blurred plane
+     */
+    public byte[] blurLuma(byte[] source, int width, int height, byte[] destination) {
+        int size = width * height;
+        if(destination == null || destination.length < size){
+            destination = new byte[size];
+        }
+        // the plane between the two passes is borrowed from the shared pool
+        byte[] horizontal = BufferPool.shared().borrowBytes(size);
+        byte[] output = destination;
+        int bandRows = ParallelRows.rowsFor(width, PIXELS_PER_BAND);
+        try{
+            // first pass: rows are independent
+            ParallelRows.forEachBand(height, bandRows, (start, end) -> {
+                for(int y = start; y < end; y++){
+                    horizontalLumaRow(source, horizontal, y * width, width);
+                }
+            });
+            // second pass: each output row reads 2 * radius + 1 rows of the first pass
+            ParallelRows.forEachBand(height, bandRows, (start, end) -> {
+                int[] accumulator = new int[width];
+                for(int y = start; y < end; y++){
+                    verticalLumaRow(horizontal, output, accumulator, y, width, height);
+                }
+            });
+        } finally {
+            BufferPool.shared().release(horizontal);
+        }
+        return destination;
+    }
+
+    /**
+     * This method blurs packed argb pixels, every channel (alpha included) is blurred separately
+     * @param source the pixels to blur
+     * @param width width of the raster
+     * @param height height of the raster
+     * @param destination the raster to write to, a new one is allocated when it is null or too small (may not be the source)
+     * @return returns the blurred pixels
+     */
+    public int[] blurArgb(int[] source, int width, int height, int[] destination) {
+        int size = width * height;
+        if(destination == null || destination.length < size){
+            destination = new int[size];
+        }
+        int[] horizontal = BufferPool.shared().borrowInts(size);
+        int[] output = destination;
+        int bandRows = ParallelRows.rowsFor(width, PIXELS_PER_BAND);
+        try{
+            ParallelRows.forEachBand(height, bandRows, (start, end) -> {
+                for(int y = start; y < end; y++){
+                    horizontalArgbRow(source, horizontal, y * width, width);
+                }
+            });
+            ParallelRows.forEachBand(height, bandRows, (start, end) -> {
+                int[] accumulator = new int[4 * width];
+                for(int y = start; y < end; y++){
+                    verticalArgbRow(horizontal, output, accumulator, y, width, height);
+                }
+            });
+        } finally {
+            BufferPool.shared().release(horizontal);
+        }
+        return destination;
+    }
+
+    /**
+     * This method applies the kernel along one row of a luminance plane
+     * @param source the source plane
+     * @param destination the plane for the horizontal pass
+     * @param rowOffset index of the first pixel of the row
+     * @param width width of the row
+     */
+    void horizontalLumaRow(byte[] source, byte[] destination, int rowOffset, int width) {
+        int[] kernel = this.kernel;
+        int radius = this.radius;
+        int last = width - 1;
+        for(int x = 0; x < width; x++){
+            int sum = KERNEL_ROUNDING;
+            if(x >= radius && x + radius <= last){
+                // interior: every tap is inside the row
+                int base = rowOffset + x - radius;
+                for(int k = 0; k < kernel.length; k++){
+                    sum += kernel[k] * (source[base + k] & 0xff);
+                }
+            } else {
+                for(int k = 0; k < kernel.length; k++){
+                    int sx = Math.min(last, Math.max(0, x + k - radius));
+                    sum += kernel[k] * (source[rowOffset + sx] & 0xff);
+                }
+            }
+            destination[rowOffset + x] = (byte) (sum >>> KERNEL_BITS);
+        }
+    }
+
+    /**
+     * This method applies the kernel down the columns to produce one output row of a luminance plane
+     * @param source the plane from the horizontal pass
+     * @param destination the output plane
+     * @param accumulator scratch row of width ints
+     * @param y the output row
+     * @param width width of the plane
+     * @param height height of the plane
+     */
+    void verticalLumaRow(byte[] source, byte[] destination, int[] accumulator, int y, int width, int height) {
+        int[] kernel = this.kernel;
+        Arrays.fill(accumulator, 0, width, KERNEL_ROUNDING);
+        // walk the taps in the outer loop so every inner loop reads one contiguous source row
+        for(int k = 0; k < kernel.length; k++){
+            int sy = Math.min(height - 1, Math.max(0, y + k - this.radius));
+            int weight = kernel[k];
+            int rowOffset = sy * width;
+            for(int x = 0; x < width; x++){
+                accumulator[x] += weight * (source[rowOffset + x] & 0xff);
+            }
+        }
+        int outputOffset = y * width;
+        for(int x = 0; x < width; x++){
+            destination[outputOffset + x] = (byte) (accumulator[x] >>> KERNEL_BITS);
+        }
+    }
+
+    /**
+     * This method applies the kernel along one row of argb pixels
+     * @param source the source pixels
+     * @param destination the pixels for the horizontal pass
+     * @param rowOffset index of the first pixel of the row
+     * @param width width of the row
+     */
+    void horizontalArgbRow(int[] source, int[] destination, int rowOffset, int width) {
+        int[] kernel = this.kernel;
+        int radius = this.radius;
+        int last = width - 1;
+        for(int x = 0; x < width; x++){
+            int alpha = KERNEL_ROUNDING, red = KERNEL_ROUNDING, green = KERNEL_ROUNDING, blue = KERNEL_ROUNDING;
+            for(int k = 0; k < kernel.length; k++){
+                int sx = Math.min(last, Math.max(0, x + k - radius));
+                int pixel = source[rowOffset + sx];
+                int weight = kernel[k];
+                alpha += weight * (pixel >>> 24);
+                red += weight * ((pixel >> 16) & 0xff);
+                green += weight * ((pixel >> 8) & 0xff);
+                blue += weight * (pixel & 0xff);
+            }
+            destination[rowOffset + x] = packArgb(alpha, red, green, blue);
+        }
+    }
+
+    /**
+     * This method applies the kernel down the columns to produce one output row of argb pixels
+     * @param source the pixels from the horizontal pass
+     * @param destination the output pixels
+     * @param accumulator scratch row of 4 * width ints (alpha, red, green, blue per pixel)
+     * @param y the output row
+     * @param width width of the raster
+     * @param height height of the raster
+     */
+    void verticalArgbRow(int[] source, int[] destination, int[] accumulator, int y, int width, int height) {
+        int[] kernel = this.kernel;
+        Arrays.fill(accumulator, 0, 4 * width, KERNEL_ROUNDING);
+        for(int k = 0; k < kernel.length; k++){
+            int sy = Math.min(height - 1, Math.max(0, y + k - this.radius));
+            int weight = kernel[k];
+            int rowOffset = sy * width;
+            for(int x = 0, a = 0; x < width; x++, a += 4){
+                int pixel = source[rowOffset + x];
+                accumulator[a] += weight * (pixel >>> 24);
+                accumulator[a + 1] += weight * ((pixel >> 16) & 0xff);
+                accumulator[a + 2] += weight * ((pixel >> 8) & 0xff);
+                accumulator[a + 3] += weight * (pixel & 0xff);
+            }
+        }
+        int outputOffset = y * width;
+        for(int x = 0, a = 0; x < width; x++, a += 4){
+            destination[outputOffset + x] = packArgb(accumulator[a], accumulator[a + 1], accumulator[a + 2], accumulator[a + 3]);
+        }
+    }
+
+    /**
+     * This method packs four kernel sums back into an argb pixel
+     */
+    private static int packArgb(int alpha, int red, int green, int blue) {
+        return ((alpha >>> KERNEL_BITS) << 24) | ((red >>> KERNEL_BITS) << 16) | ((green >>> KERNEL_BITS) << 8) | (blue >>> KERNEL_BITS);
+    }
+}
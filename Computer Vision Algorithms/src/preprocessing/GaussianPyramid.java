@@ -0,0 +1,204 @@
+package preprocessing;
+
+import helpers.ParallelRows;
+import javafx.scene.image.Image;
+
+import java.util.Arrays;
+
+/**
+ * This class builds a gaussian pyramid of a luminance plane: every level is the previous one blurred with the
+ * 5-tap binomial kernel [1 4 6 4 1] / 16 (in both directions) and decimated by two. Blur and decimation are fused,
+ * so only the kept pixels are computed. All the levels live in one preallocated backing array, level i starting at
+ * getOffset(i) with getStride(i) bytes per row, and the pyramid can be rebuilt for any image of the same size without
+ * allocating new levels. A pyramid is not thread safe while it is being built.
+ */
+public class GaussianPyramid {
+    /*
+        the binomial kernel, its weights add up to 16 in each direction (256 for both)
+     */
+    private static final int[] KERNEL = {1, 4, 6, 4, 1};
+    private static final int KERNEL_SHIFT = 8;
+
+    /*
+        number of output pixels a band should cover before it is worth a separate task
+     */
+    private static final int PIXELS_PER_BAND = 1 << 14;
+
+    /*
+        class variables
+     */
+    private final int levels;
+    private final int[] widths;
+    private final int[] heights;
+    private final int[] offsets;
+    private final byte[] data;
+    private final GrayScaleEngine grayScaleEngine = new GrayScaleEngine();
+
+    /**
+     * This constructor allocates the backing array for a pyramid of images with the given size
+     * @param width width of the base level
+     * @param height height of the base level
+     * @param levels number of levels wanted, including the base, capped so the smallest level is at least 1x1
+     */
+    public GaussianPyramid(int width, int height, int levels) {
+        if(width < 1 || height < 1 || levels < 1){
+            throw new IllegalArgumentException("dimensions and number of levels must be positive");
+        }
+        int possible = 1;
+        for(int w = width, h = height; (w > 1 || h > 1) && possible < levels; possible++){
+            w = (w + 1) / 2;
+            h = (h + 1) / 2;
+        }
+        this.levels = possible;
+        this.widths = new int[possible];
+        this.heights = new int[possible];
+        this.offsets = new int[possible];
+        long total = 0;
+        for(int level = 0, w = width, h = height; level < possible; level++, w = (w + 1) / 2, h = (h + 1) / 2){
+            this.widths[level] = w;
+            this.heights[level] = h;
+            this.offsets[level] = (int) total;
+            total += (long) w * h;
+        }
+        if(total > Integer.MAX_VALUE){
+            throw new IllegalArgumentException("the pyramid does not fit in a single array");
+        }
+        this.data = new byte[(int) total];
+    }
+
+    /**
+     * This method builds every level from a luminance plane of the base size
+     * @param luma the base plane (one unsigned byte per pixel, row major)
+     * @return returns this pyramid
+     */
+    public GaussianPyramid build(byte[] luma) {
+        if(luma.length < this.widths[0] * this.heights[0]){
+            throw new IllegalArgumentException("the plane is smaller than the base level of the pyramid");
+        }
+        System.arraycopy(luma, 0, this.data, 0, this.widths[0] * this.heights[0]);
+        buildUpperLevels();
+        return this;
+    }
+
+    /**
+     * This method builds every level from an image of the base size, the gray values are written straight into level 0
+     * @param image the image
+     * @return returns this pyramid
+     */
+    public GaussianPyramid build(Image image) {
+        if((int) image.getWidth() != this.widths[0] || (int) image.getHeight() != this.heights[0]){
+            throw new IllegalArgumentException("the image size does not match the base level of the pyramid");
+        }
+        // level 0 starts at offset 0 with a stride equal to its width, so it is laid out exactly like a plane
+        this.grayScaleEngine.toLuminancePlane(image, this.data);
+        buildUpperLevels();
+        return this;
+    }
+
+    /**
+     * @return returns the number of levels
+     */
+    public int getLevels() {
+        return this.levels;
+    }
+
+    /**
+     * @return returns the width of a level
+     */
+    public int getWidth(int level) {
+        return this.widths[level];
+    }
+
+    /**
+     * @return returns the height of a level
+     */
+    public int getHeight(int level) {
+        return this.heights[level];
+    }
+
+    /**
+     * @return returns the index of the first pixel of a level in the backing array
+     */
+    public int getOffset(int level) {
+        return this.offsets[level];
+    }
+
+    /**
+     * @return returns the distance between two rows of a level in the backing array
+     */
+    public int getStride(int level) {
+        return this.widths[level];
+    }
+
+    /**
+     * @return returns the backing array holding every level, it is overwritten by the next build
+     */
+    public byte[] getData() {
+        return this.data;
+    }
+
+    /**
+     * This method copies one level into a plane of its own
+     * @param level the level
+     * @param destination the plane to write to, a new one is allocated when it is null or too small
+     * @return returns the plane
+     */
+    public byte[] copyLevel(int level, byte[] destination) {
+        int size = this.widths[level] * this.heights[level];
+        if(destination == null || destination.length < size){
+            destination = new byte[size];
+        }
+        System.arraycopy(this.data, this.offsets[level], destination, 0, size);
+        return destination;
+    }
+
+    /**
+     * This method fills every level from the one below it
+     */
+    private void buildUpperLevels() {
+        for(int level = 1; level < this.levels; level++){
+            reduce(level - 1, level);
+        }
+    }
+
+    /**
+     * This method blurs and decimates one level into the next, computing only the pixels that are kept. For every
+     * output row the vertical taps are summed over the full source width, then the horizontal taps only at the even
+     * columns. Source pixels outside the level are clamped to the edge.
+     */
+    private void reduce(int sourceLevel, int targetLevel) {
+        byte[] data = this.data;
+        int sourceWidth = this.widths[sourceLevel], sourceHeight = this.heights[sourceLevel];
+        int sourceOffset = this.offsets[sourceLevel];
+        int targetWidth = this.widths[targetLevel], targetHeight = this.heights[targetLevel];
+        int targetOffset = this.offsets[targetLevel];
+        ParallelRows.forEachBand(targetHeight, ParallelRows.rowsFor(targetWidth, PIXELS_PER_BAND), (start, end) -> {
+            int[] column = new int[sourceWidth]; // vertical sums of the current output row
+            for(int y = start; y < end; y++){
+                Arrays.fill(column, 0);
+                for(int k = 0; k < KERNEL.length; k++){
+                    int sy = Math.min(sourceHeight - 1, Math.max(0, 2 * y + k - 2));
+                    int rowOffset = sourceOffset + sy * sourceWidth;
+                    int weight = KERNEL[k];
+                    for(int x = 0; x < sourceWidth; x++){
+                        column[x] += weight * (data[rowOffset + x] & 0xff);
+                    }
+                }
+                int outputOffset = targetOffset + y * targetWidth;
+                for(int x = 0; x < targetWidth; x++){
+                    int center = 2 * x;
+                    int sum;
+                    if(center >= 2 && center + 2 < sourceWidth){
+                        sum = column[center - 2] + 4 * column[center - 1] + 6 * column[center] + 4 * column[center + 1] + column[center + 2];
+                    } else {
+                        sum = 0;
+                        for(int k = 0; k < KERNEL.length; k++){
+                            sum += KERNEL[k] * column[Math.min(sourceWidth - 1, Math.max(0, center + k - 2))];
+                        }
+                    }
+                    data[outputOffset + x] = (byte) ((sum + (1 << (KERNEL_SHIFT - 1))) >>> KERNEL_SHIFT);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,94 @@
+package preprocessing;
+
+import helpers.BufferPool;
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.PixelReader;
+import javafx.scene.image.PixelWriter;
+import javafx.scene.image.WritableImage;
+import javafx.scene.image.WritablePixelFormat;
+import raster.Luma;
+
+import java.nio.IntBuffer;
+
+/**
+ * This class converts JavaFX images to grayscale by moving whole bands of scanlines between the image and an int[]
+ * buffer borrowed from the shared BufferPool instead of reading and writing one pixel at a time. The luma itself is
+ * computed by the JavaFX free kernels of raster.Luma.
+ * The buffer is returned to the pool after every call, so an engine holds no state and may be shared between threads.
+ */
+public class GrayScaleEngine {
+    /*
+        the largest number of pixels moved in one getPixels/setPixels call, small images are processed in a single band
+     */
+    private static final int MAX_BAND_PIXELS = 1 << 20;
+
+
+    /**
+     * This method converts the given image into a new grayscale image, keeping the alpha channel
+     * @param image input image
+     * @return writable image of the grayscaled image
+     */
+    public WritableImage toGrayImage(Image image) {
+        int width = (int) image.getWidth();
+        int height = (int) image.getHeight();
+        WritableImage grayScaledImage = new WritableImage(width, height);
+        PixelReader reader = image.getPixelReader();
+        PixelWriter writer = grayScaledImage.getPixelWriter();
+
+        WritablePixelFormat<IntBuffer> format = PixelFormat.getIntArgbInstance();
+        int bandRows = rowsPerBand(width, height);
+        int[] buffer = BufferPool.shared().borrowInts(width * bandRows);
+        try{
+            for(int y = 0; y < height; y += bandRows){
+                int rows = Math.min(bandRows, height - y);
+                // read the whole band, convert it in place and write it back in one call each way
+                reader.getPixels(0, y, width, rows, format, buffer, 0, width);
+                Luma.argbToGrayArgb(buffer, 0, width * rows);
+                writer.setPixels(0, y, width, rows, format, buffer, 0, width);
+            }
+        } finally {
+            BufferPool.shared().release(buffer);
+        }
+        return grayScaledImage;
+    }
+
+    /**
+     * This method fills a luminance plane (one unsigned byte per pixel, row major) from the given image
+     * @param image input image
+     * @param destination the plane to fill, a new one is allocated when it is null or too small
+     * @return returns the filled luminance plane
+     */
+    public byte[] toLuminancePlane(Image image, byte[] destination) {
+        int width = (int) image.getWidth();
+        int height = (int) image.getHeight();
+        if(destination == null || destination.length < width * height){
+            destination = new byte[width * height];
+        }
+        PixelReader reader = image.getPixelReader();
+
+        WritablePixelFormat<IntBuffer> format = PixelFormat.getIntArgbInstance();
+        int bandRows = rowsPerBand(width, height);
+        int[] buffer = BufferPool.shared().borrowInts(width * bandRows);
+        try{
+            for(int y = 0; y < height; y += bandRows){
+                int rows = Math.min(bandRows, height - y);
+                reader.getPixels(0, y, width, rows, format, buffer, 0, width);
+                Luma.argbToLuma(buffer, 0, destination, y * width, width * rows);
+            }
+        } finally {
+            BufferPool.shared().release(buffer);
+        }
+        return destination;
+    }
+
+    /**
+     * This method works out how many rows to move per band so that a band never exceeds MAX_BAND_PIXELS
+     * @param width image width
+     * @param height image height
+     * @return returns the number of rows in a band
+     */
+    private static int rowsPerBand(int width, int height) {
+        return Math.max(1, Math.min(height, MAX_BAND_PIXELS / Math.max(1, width)));
+    }
+}
@@ -0,0 +1,217 @@
+package preprocessing;
+
+import helpers.ParallelRows;
+
+import java.util.Arrays;
+
+/**
+ * This class normalizes the contrast of luminance planes so that vectors taken under different lighting compare
+ * better. It offers global histogram equalization, a min-max contrast stretch and a tiled adaptive equalizer with a
+ * clip limit (CLAHE). Histograms are built per band of rows on the fork-join pool and merged once per band, and the
+ * mapping is a 256 entry lookup table applied in bulk over the plane.
+ */
+public class HistogramEqualization {
+    /*
+        number of gray levels
+     */
+    public static final int LEVELS = 256;
+
+    /*
+        number of pixels a band should cover before it is worth a separate task
+     */
+    private static final int PIXELS_PER_BAND = 1 << 16;
+
+    /**
+     * This method counts how many pixels of the plane have each gray level
+     * @param luma the plane (one unsigned byte per pixel, row major)
+     * @param width width of the plane
+     * @param height height of the plane
+     * @return returns the 256 bin histogram
+     */
+    public int[] histogram(byte[] luma, int width, int height) {
+        int[] histogram = new int[LEVELS];
+        ParallelRows.forEachBand(height, ParallelRows.rowsFor(width, PIXELS_PER_BAND), (start, end) -> {
+            // every band counts into its own histogram, so threads only meet once when merging
+            int[] local = new int[LEVELS];
+            for(int i = start * width, last = end * width; i < last; i++){
+                local[luma[i] & 0xff]++;
+            }
+            synchronized (histogram){
+                for(int level = 0; level < LEVELS; level++){
+                    histogram[level] += local[level];
+                }
+            }
+        });
+        return histogram;
+    }
+
+    /**
+     * This method builds the lookup table that equalizes a histogram (maps the cumulative distribution onto 0 - 255)
+     * @param histogram 256 bin histogram
+     * @return returns the 256 entry lookup table
+     */
+    public byte[] equalizationTable(int[] histogram) {
+        long total = 0;
+        for(int count : histogram) total += count;
+        byte[] table = new byte[LEVELS];
+        // the first occupied level maps to 0
+        long cumulative = 0, minimum = -1;
+        for(int level = 0; level < LEVELS; level++){
+            cumulative += histogram[level];
+            if(minimum < 0 && cumulative > 0) minimum = cumulative;
+            long range = total - minimum;
+            table[level] = (byte) (minimum < 0 || range <= 0 ? level : ((cumulative - minimum) * 255 + range / 2) / range);
+        }
+        return table;
+    }
+
+    /**
+     * This method equalizes the histogram of a whole plane
+     * @param luma the plane to equalize
+     * @param width width of the plane
+     * @param height height of the plane
+     * @param destination the plane to write to (may be the source), a new one is allocated when it is null or too small
+     * @return returns the equalized plane
+     */
+    public byte[] equalize(byte[] luma, int width, int height, byte[] destination) {
+        return applyTable(luma, width, height, equalizationTable(histogram(luma, width, height)), destination);
+    }
+
+    /**
+     * This method linearly stretches the gray levels so the darkest pixel becomes 0 and the brightest 255
+     * @param luma the plane to stretch
+     * @param width width of the plane
+     * @param height height of the plane
+     * @param destination the plane to write to (may be the source), a new one is allocated when it is null or too small
+     * @return returns the stretched plane
+     */
+    public byte[] stretchContrast(byte[] luma, int width, int height, byte[] destination) {
+        int[] histogram = histogram(luma, width, height);
+        int low = 0, high = LEVELS - 1;
+        while(low < high && histogram[low] == 0) low++;
+        while(high > low && histogram[high] == 0) high--;
+        byte[] table = new byte[LEVELS];
+        for(int level = 0; level < LEVELS; level++){
+            table[level] = (byte) (high == low ? level : Math.min(255, Math.max(0, ((level - low) * 255 + (high - low) / 2) / (high - low))));
+        }
+        return applyTable(luma, width, height, table, destination);
+    }
+
+    /**
+     * This method maps every pixel through a lookup table
+     * @param luma the plane
+     * @param width width of the plane
+     * @param height height of the plane
+     * @param table 256 entry lookup table
+     * @param destination the plane to write to (may be the source), a new one is allocated when it is null or too small
+     * @return returns the mapped plane
+     */
+    public byte[] applyTable(byte[] luma, int width, int height, byte[] table, byte[] destination) {
+        if(table.length < LEVELS){
+            throw new IllegalArgumentException("the lookup table must have 256 entries");
+        }
+        if(destination == null || destination.length < width * height){
+            destination = new byte[width * height];
+        }
+        byte[] output = destination;
+        ParallelRows.forEachBand(height, ParallelRows.rowsFor(width, PIXELS_PER_BAND), (start, end) -> {
+            for(int i = start * width, last = end * width; i < last; i++){
+                output[i] = table[luma[i] & 0xff];
+            }
+        });
+        return destination;
+    }
+
+    /**
+     * This method equalizes the plane tile by tile (CLAHE). Every tile gets its own lookup table from a histogram whose
+     * bins are clipped at clipLimit times the mean bin count (the excess is spread over all bins), and every pixel is
+     * mapped by bilinear interpolation between the tables of the four nearest tile centres so no seams show.
+     * @param luma the plane to equalize
+     * @param width width of the plane
+     * @param height height of the plane
+     * @param tilesX number of tiles across
+     * @param tilesY number of tiles down
+     * @param clipLimit how many times the mean bin count a bin may hold, 1 gives no equalization and larger values approach global equalization
+     * @param destination the plane to write to (may not be the source), a new one is allocated when it is null or too small
+     * @return returns the equalized plane
+     */
+    public byte[] equalizeAdaptive(byte[] luma, int width, int height, int tilesX, int tilesY, double clipLimit, byte[] destination) {
+        if(tilesX < 1 || tilesY < 1 || tilesX > width || tilesY > height){
+            throw new IllegalArgumentException("the tile grid must have between 1 and width x height tiles");
+        }
+        if(!(clipLimit >= 1)){ // also rejects NaN
+            throw new IllegalArgumentException("the clip limit must be at least 1");
+        }
+        if(destination == null || destination.length < width * height){
+            destination = new byte[width * height];
+        }
+        byte[] output = destination;
+        // tile boundaries: tile t covers [t * size / tiles, (t + 1) * size / tiles)
+        byte[][] tables = new byte[tilesX * tilesY][];
+        ParallelRows.forEachBand(tilesY, 1, (startTile, endTile) -> {
+            int[] histogram = new int[LEVELS];
+            for(int ty = startTile; ty < endTile; ty++){
+                int top = ty * height / tilesY, bottom = (ty + 1) * height / tilesY;
+                for(int tx = 0; tx < tilesX; tx++){
+                    int left = tx * width / tilesX, right = (tx + 1) * width / tilesX;
+                    Arrays.fill(histogram, 0);
+                    for(int y = top; y < bottom; y++){
+                        for(int i = y * width + left, last = y * width + right; i < last; i++){
+                            histogram[luma[i] & 0xff]++;
+                        }
+                    }
+                    clip(histogram, (long) (right - left) * (bottom - top), clipLimit);
+                    tables[ty * tilesX + tx] = equalizationTable(histogram);
+                }
+            }
+        });
+
+        ParallelRows.forEachBand(height, ParallelRows.rowsFor(width, PIXELS_PER_BAND), (start, end) -> {
+            // for every column, the two tiles to blend between and the weight of the right one (scaled by 256)
+            int[] leftTile = new int[width], rightTile = new int[width], rightWeight = new int[width];
+            for(int x = 0; x < width; x++){
+                double position = (x + 0.5) * tilesX / width - 0.5;
+                int tile = (int) Math.floor(position);
+                double fraction = position - tile;
+                leftTile[x] = Math.max(0, tile);
+                rightTile[x] = Math.min(tilesX - 1, tile + 1);
+                rightWeight[x] = (int) Math.round(fraction * 256);
+            }
+            for(int y = start; y < end; y++){
+                double position = (y + 0.5) * tilesY / height - 0.5;
+                int tile = (int) Math.floor(position);
+                int bottomWeight = (int) Math.round((position - tile) * 256);
+                int topRow = Math.max(0, tile) * tilesX, bottomRow = Math.min(tilesY - 1, tile + 1) * tilesX;
+                for(int x = 0; x < width; x++){
+                    int level = luma[y * width + x] & 0xff;
+                    int weight = rightWeight[x];
+                    int top = (tables[topRow + leftTile[x]][level] & 0xff) * (256 - weight) + (tables[topRow + rightTile[x]][level] & 0xff) * weight;
+                    int bottom = (tables[bottomRow + leftTile[x]][level] & 0xff) * (256 - weight) + (tables[bottomRow + rightTile[x]][level] & 0xff) * weight;
+                    output[y * width + x] = (byte) ((top * (256 - bottomWeight) + bottom * bottomWeight + (1 << 15)) >>> 16);
+                }
+            }
+        });
+        return destination;
+    }
+
+    /**
+     * This method caps every bin at clipLimit times the mean bin count and spreads the excess evenly over all bins
+     */
+    private static void clip(int[] histogram, long pixels, double clipLimit) {
+        // no bin holds more than the tile's pixels, so capping the limit there (in double, before the cast) clips
+        // nothing and keeps large or infinite clip limits from overflowing the int
+        int limit = (int) Math.max(1, Math.round(Math.min(clipLimit * pixels / LEVELS, (double) pixels)));
+        long excess = 0;
+        for(int level = 0; level < LEVELS; level++){
+            if(histogram[level] > limit){
+                excess += histogram[level] - limit;
+                histogram[level] = limit;
+            }
+        }
+        int share = (int) (excess / LEVELS);
+        int remainder = (int) (excess % LEVELS);
+        for(int level = 0; level < LEVELS; level++){
+            histogram[level] += share + (level < remainder ? 1 : 0);
+        }
+    }
+}
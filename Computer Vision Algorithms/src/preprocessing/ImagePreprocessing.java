@@ -1,11 +1,17 @@
 package preprocessing;
 
+import helpers.BufferPool;
 import javafx.scene.image.Image;
-import javafx.scene.image.PixelReader;
-import javafx.scene.image.PixelWriter;
+import javafx.scene.image.PixelFormat;
 import javafx.scene.image.WritableImage;
+import raster.Raster;
 
 public class ImagePreprocessing implements PreprocessingAlgorithms{
+    /*
+        standard deviation used when no sigma is given
+     */
+    public static final double DEFAULT_SIGMA = 1.4;
+
     /**
      * This method will convert a given image into a grayscale image
      *
@@ -14,37 +20,7 @@ public class ImagePreprocessing implements PreprocessingAlgorithms{
      */
     @Override
     public WritableImage ImageGrayScaling(Image image) {
-        // getting dimension from the given image
-        int width = (int) image.getWidth();
-        int height = (int) image.getHeight();
-
-        // creating a writable image instance
-        WritableImage grayScaledImage = new WritableImage(width, height);
-
-        // getting a pixel reader from the Image and creating a pixel writer object
-        PixelReader reader = image.getPixelReader();
-        PixelWriter writer = grayScaledImage.getPixelWriter();
-
-        // loop through all the pixels in the image
-        for(int x = 0; x < height; x++){
-            for(int y = 0; y < width; y++){
-                // get the pixel at the current location
-                int pixel = reader.getArgb(x, y);
-                // extract the ARGB channels from the pixel
-                int alpha = (pixel >> 24) & 0xff;
-                int red = (pixel >> 16) & 0xff;
-                int green = (pixel >> 8) & 0xff;
-                int blue = pixel & 0xff;
-                // converting the RGB values to a grayscale value
-                int grayValue = (int) (0.299 * red + 0.587 * green + 0.114 * blue);
-                // constructing a gray pixel
-                int grayPixel = (alpha << 24) | (grayValue << 16) | (grayValue << 8) | grayValue;
-                // writing the gray pixel to the new image
-                writer.setArgb(x, y, grayPixel);
-            }
-        }
-        // return the grayscaled image
-        return grayScaledImage;
+        return JavaFxPaths.grayScale(image);
     }
 
     /**
@@ -55,6 +31,100 @@ public class ImagePreprocessing implements PreprocessingAlgorithms{
      */
     @Override
     public WritableImage GaussianBlurAlgorithm(Image image) {
-        return null;
+        return GaussianBlurAlgorithm(image, DEFAULT_SIGMA);
+    }
+
+    /**
+     * This method perform a gaussian blurring algorithm with the given standard deviation on the image
+     *
+     * @param image input image
+     * @param sigma standard deviation of the gaussian in pixels
+     * @return writable image of the blurred image
+     */
+    @Override
+    public WritableImage GaussianBlurAlgorithm(Image image, double sigma) {
+        return JavaFxPaths.blur(image, sigma);
+    }
+
+    /**
+     * This method will convert a given raster into a grayscale raster, without the JavaFX toolkit
+     *
+     * @param raster input raster
+     * @return GRAY raster of the luma values
+     */
+    @Override
+    public Raster ImageGrayScaling(Raster raster) {
+        byte[] luma = raster.toLuminancePlane(null);
+        return Raster.ofGray(luma, 0, raster.getWidth(), raster.getHeight(), raster.getWidth());
+    }
+
+    /**
+     * This method perform a gaussian blurring algorithm on the given raster to reduce noise, without the JavaFX toolkit
+     *
+     * @param raster input raster
+     * @return blurred raster of the same type
+     */
+    @Override
+    public Raster GaussianBlurAlgorithm(Raster raster) {
+        return GaussianBlurAlgorithm(raster, DEFAULT_SIGMA);
+    }
+
+    /**
+     * This method perform a gaussian blurring algorithm with the given standard deviation on the raster
+     *
+     * @param raster input raster
+     * @param sigma standard deviation of the gaussian in pixels
+     * @return blurred raster of the same type
+     */
+    @Override
+    public Raster GaussianBlurAlgorithm(Raster raster, double sigma) {
+        int width = raster.getWidth();
+        int height = raster.getHeight();
+        GaussianBlur blur = new GaussianBlur(sigma);
+        // the blur needs packed rows, views and padded rasters are packed first
+        if(raster.isGray()){
+            byte[] luma = raster.isPacked() ? raster.getGrayData() : raster.toLuminancePlane(null);
+            return Raster.ofGray(blur.blurLuma(luma, width, height, null), 0, width, height, width);
+        }
+        int[] pixels = raster.isPacked() ? raster.getArgbData() : raster.toArgbPixels(null);
+        return Raster.ofArgb(blur.blurArgb(pixels, width, height, null), 0, width, height, width);
+    }
+
+    /**
+     * This class holds the JavaFX image operations, linked only when an Image is processed so the Raster operations
+     * run without the JavaFX runtime (see raster.Luma)
+     */
+    private static final class JavaFxPaths {
+        /*
+            the engine holds no state, it borrows its band buffer from the shared BufferPool on every call
+         */
+        private static final GrayScaleEngine GRAY_SCALE_ENGINE = new GrayScaleEngine();
+
+        private JavaFxPaths() {
+        }
+
+        static WritableImage grayScale(Image image) {
+            // the engine moves whole bands of scanlines through a reusable buffer instead of one pixel per call
+            return GRAY_SCALE_ENGINE.toGrayImage(image);
+        }
+
+        static WritableImage blur(Image image, double sigma) {
+            int width = (int) image.getWidth();
+            int height = (int) image.getHeight();
+            // read all the pixels in one call, the vertical pass needs the whole raster
+            int[] pixels = BufferPool.shared().borrowInts(width * height);
+            int[] blurred = BufferPool.shared().borrowInts(width * height);
+            try{
+                image.getPixelReader().getPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(), pixels, 0, width);
+                // blur in two separable passes and write the result back in one call
+                new GaussianBlur(sigma).blurArgb(pixels, width, height, blurred);
+                WritableImage blurredImage = new WritableImage(width, height);
+                blurredImage.getPixelWriter().setPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(), blurred, 0, width);
+                return blurredImage;
+            } finally {
+                BufferPool.shared().release(pixels);
+                BufferPool.shared().release(blurred);
+            }
+        }
     }
 }
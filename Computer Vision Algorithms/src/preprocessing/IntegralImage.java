@@ -0,0 +1,224 @@
+package preprocessing;
+
+import helpers.ParallelRows;
+
+/**
+ * This class defines a summed-area table (integral image) of a luminance plane. Entry (x, y) of the table holds the sum
+ * of every pixel above and to the left of (x, y), so the sum over any rectangle takes four lookups no matter its size.
+ * The sums are kept in long accumulators, and an optional second table of squared values allows O(1) variance queries.
+ */
+public class IntegralImage {
+    /*
+        number of pixels a band of the box filter should cover before it is worth a separate task
+     */
+    private static final int PIXELS_PER_BAND = 1 << 16;
+
+    /*
+        class variables
+     */
+    private final int width;
+    private final int height;
+    private final int stride; // width + 1, the table has an extra zero row and column
+    private final long[] sums;
+    private final long[] squaredSums; // null when the table was built without squares
+
+    /**
+     * This constructor builds the table for a luminance plane
+     * @param luma the plane (one unsigned byte per pixel, row major)
+     * @param width width of the plane
+     * @param height height of the plane
+     * @param withSquares true to also build the table of squared values, needed for variance queries
+     */
+    public IntegralImage(byte[] luma, int width, int height, boolean withSquares) {
+        if(width < 1 || height < 1 || luma.length < width * height){
+            throw new IllegalArgumentException("the plane does not match the given dimensions");
+        }
+        this.width = width;
+        this.height = height;
+        this.stride = width + 1;
+        this.sums = new long[this.stride * (height + 1)];
+        this.squaredSums = withSquares ? new long[this.stride * (height + 1)] : null;
+
+        // each entry is the running sum of its row plus the entry right above it
+        for(int y = 0; y < height; y++){
+            long rowSum = 0, rowSquaredSum = 0;
+            int above = y * this.stride;
+            int current = above + this.stride;
+            int pixelOffset = y * width;
+            for(int x = 0; x < width; x++){
+                int value = luma[pixelOffset + x] & 0xff;
+                rowSum += value;
+                this.sums[current + x + 1] = this.sums[above + x + 1] + rowSum;
+                if(withSquares){
+                    rowSquaredSum += value * value;
+                    this.squaredSums[current + x + 1] = this.squaredSums[above + x + 1] + rowSquaredSum;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return returns the width of the plane the table was built from
+     */
+    public int getWidth() {
+        return this.width;
+    }
+
+    /**
+     * @return returns the height of the plane the table was built from
+     */
+    public int getHeight() {
+        return this.height;
+    }
+
+    /**
+     * @return returns true when the table of squared values was built
+     */
+    public boolean hasSquares() {
+        return this.squaredSums != null;
+    }
+
+    /**
+     * This method returns the sum of the pixels in a rectangle
+     * @param x left column of the rectangle
+     * @param y top row of the rectangle
+     * @param rectangleWidth width of the rectangle
+     * @param rectangleHeight height of the rectangle
+     * @return returns the sum of the pixel values
+     */
+    public long sum(int x, int y, int rectangleWidth, int rectangleHeight) {
+        checkRectangle(x, y, rectangleWidth, rectangleHeight);
+        return lookup(this.sums, x, y, x + rectangleWidth, y + rectangleHeight);
+    }
+
+    /**
+     * This method returns the sum of the squared pixel values in a rectangle
+     * @param x left column of the rectangle
+     * @param y top row of the rectangle
+     * @param rectangleWidth width of the rectangle
+     * @param rectangleHeight height of the rectangle
+     * @return returns the sum of the squared pixel values
+     */
+    public long squaredSum(int x, int y, int rectangleWidth, int rectangleHeight) {
+        checkSquares();
+        checkRectangle(x, y, rectangleWidth, rectangleHeight);
+        return lookup(this.squaredSums, x, y, x + rectangleWidth, y + rectangleHeight);
+    }
+
+    /**
+     * This method returns the mean of the pixels in a rectangle
+     * @param x left column of the rectangle
+     * @param y top row of the rectangle
+     * @param rectangleWidth width of the rectangle
+     * @param rectangleHeight height of the rectangle
+     * @return returns the mean pixel value
+     */
+    public double mean(int x, int y, int rectangleWidth, int rectangleHeight) {
+        return (double) sum(x, y, rectangleWidth, rectangleHeight) / ((long) rectangleWidth * rectangleHeight);
+    }
+
+    /**
+     * This method returns the (population) variance of the pixels in a rectangle
+     * @param x left column of the rectangle
+     * @param y top row of the rectangle
+     * @param rectangleWidth width of the rectangle
+     * @param rectangleHeight height of the rectangle
+     * @return returns the variance of the pixel values
+     */
+    public double variance(int x, int y, int rectangleWidth, int rectangleHeight) {
+        checkSquares();
+        checkRectangle(x, y, rectangleWidth, rectangleHeight);
+        long area = (long) rectangleWidth * rectangleHeight;
+        long total = lookup(this.sums, x, y, x + rectangleWidth, y + rectangleHeight);
+        long squaredTotal = lookup(this.squaredSums, x, y, x + rectangleWidth, y + rectangleHeight);
+        // n * sum(v^2) - sum(v)^2 overflows a long from a few million pixels on (both products reach about
+        // 255^2 * n^2), so it is computed exactly in 128 bits and divided once at the end
+        return differenceOfProducts(area, squaredTotal, total, total) / ((double) area * area);
+    }
+
+    /**
+     * This method computes a * b - c * d exactly in 128 bit arithmetic, for non negative operands
+     * @return returns the difference rounded to the nearest double
+     */
+    private static double differenceOfProducts(long a, long b, long c, long d) {
+        long low = a * b - c * d;
+        long high = Math.multiplyHigh(a, b) - Math.multiplyHigh(c, d) - (Long.compareUnsigned(a * b, c * d) < 0 ? 1 : 0);
+        // the low word is unsigned: above 2^63 halve it keeping the lost bit sticky, so the conversion still rounds
+        // correctly (the halved value has more than 53 bits)
+        double unsignedLow = low >= 0 ? low : (double) ((low >>> 1) | (low & 1)) * 2.0;
+        return high * 0x1p64 + unsignedLow;
+    }
+
+    /**
+     * This method replaces every pixel with the mean of the (2 * radius + 1)^2 window around it, the window is cut
+     * at the image borders. Every pixel costs four lookups whatever the radius.
+     * @param radius radius of the window
+     * @param destination the plane to write to, a new one is allocated when it is null or too small
+     * @return returns the filtered plane
+     */
+    public byte[] boxFilter(int radius, byte[] destination) {
+        if(radius < 0){
+            throw new IllegalArgumentException("radius must not be negative");
+        }
+        int width = this.width;
+        int height = this.height;
+        if(destination == null || destination.length < width * height){
+            destination = new byte[width * height];
+        }
+        byte[] output = destination;
+        ParallelRows.forEachBand(height, ParallelRows.rowsFor(width, PIXELS_PER_BAND), (start, end) -> {
+            for(int y = start; y < end; y++){
+                int top = Math.max(0, y - radius);
+                int bottom = Math.min(height, y + radius + 1);
+                int rows = bottom - top;
+                for(int x = 0; x < width; x++){
+                    int left = Math.max(0, x - radius);
+                    int right = Math.min(width, x + radius + 1);
+                    long area = (long) rows * (right - left);
+                    long total = lookup(this.sums, left, top, right, bottom);
+                    output[y * width + x] = (byte) ((total + area / 2) / area);
+                }
+            }
+        });
+        return destination;
+    }
+
+    /**
+     * This method runs a box filter over a luminance plane through a temporary integral image
+     * @param luma the plane to filter
+     * @param width width of the plane
+     * @param height height of the plane
+     * @param radius radius of the window
+     * @param destination the plane to write to, a new one is allocated when it is null or too small
+     * @return returns the filtered plane
+     */
+    public static byte[] boxFilter(byte[] luma, int width, int height, int radius, byte[] destination) {
+        return new IntegralImage(luma, width, height, false).boxFilter(radius, destination);
+    }
+
+    /**
+     * This method reads a rectangle [left, right) x [top, bottom) out of a table with four lookups
+     */
+    private long lookup(long[] table, int left, int top, int right, int bottom) {
+        int stride = this.stride;
+        return table[bottom * stride + right] - table[top * stride + right] - table[bottom * stride + left] + table[top * stride + left];
+    }
+
+    /**
+     * This method validates that a rectangle is non empty and inside the plane
+     */
+    private void checkRectangle(int x, int y, int rectangleWidth, int rectangleHeight) {
+        if(x < 0 || y < 0 || rectangleWidth < 1 || rectangleHeight < 1 || x + rectangleWidth > this.width || y + rectangleHeight > this.height){
+            throw new IllegalArgumentException("rectangle (" + x + ", " + y + ", " + rectangleWidth + ", " + rectangleHeight + ") is outside the image");
+        }
+    }
+
+    /**
+     * This method validates that the table of squared values was built
+     */
+    private void checkSquares() {
+        if(this.squaredSums == null){
+            throw new IllegalStateException("the integral image was built without squared sums");
+        }
+    }
+}
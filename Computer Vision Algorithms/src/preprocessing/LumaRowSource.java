@@ -0,0 +1,113 @@
+package preprocessing;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.PixelReader;
+import raster.Luma;
+import raster.Raster;
+
+/**
+ * This interface defines a luminance raster that is read one row at a time, so streaming stages only need to hold
+ * a few rows in memory instead of the whole image
+ */
+public interface LumaRowSource {
+    /**
+     * @return returns the width of the raster
+     */
+    int getWidth();
+
+    /**
+     * @return returns the height of the raster
+     */
+    int getHeight();
+
+    /**
+     * This method copies a row of luma values (one unsigned byte per pixel) into the destination
+     * @param y the row to read
+     * @param destination array of at least getWidth() bytes
+     */
+    void readRow(int y, byte[] destination);
+
+    /**
+     * This method wraps a luminance plane that is already in memory
+     * @param luma the plane (row major)
+     * @param width width of the plane
+     * @param height height of the plane
+     * @return returns a row source over the plane
+     */
+    static LumaRowSource ofPlane(byte[] luma, int width, int height) {
+        if(luma.length < width * height){
+            throw new IllegalArgumentException("the plane does not match the given dimensions");
+        }
+        return new LumaRowSource() {
+            @Override
+            public int getWidth() {
+                return width;
+            }
+
+            @Override
+            public int getHeight() {
+                return height;
+            }
+
+            @Override
+            public void readRow(int y, byte[] destination) {
+                System.arraycopy(luma, y * width, destination, 0, width);
+            }
+        };
+    }
+
+    /**
+     * This method wraps an image, every row is read with one getPixels call and converted to luma on the fly.
+     * The returned source keeps a row buffer and is not thread safe.
+     * @param image the image
+     * @return returns a row source over the image
+     */
+    static LumaRowSource ofImage(Image image) {
+        int width = (int) image.getWidth();
+        int height = (int) image.getHeight();
+        PixelReader reader = image.getPixelReader();
+        int[] rowBuffer = new int[width];
+        return new LumaRowSource() {
+            @Override
+            public int getWidth() {
+                return width;
+            }
+
+            @Override
+            public int getHeight() {
+                return height;
+            }
+
+            @Override
+            public void readRow(int y, byte[] destination) {
+                reader.getPixels(0, y, width, 1, PixelFormat.getIntArgbInstance(), rowBuffer, 0, width);
+                Luma.argbToLuma(rowBuffer, 0, destination, 0, width);
+            }
+        };
+    }
+
+    /**
+     * This method wraps a raster, ARGB rows are converted to luma on the fly
+     * @param raster the raster
+     * @return returns a row source over the raster
+     */
+    static LumaRowSource ofRaster(Raster raster) {
+        return new LumaRowSource() {
+            @Override
+            public int getWidth() {
+                return raster.getWidth();
+            }
+
+            @Override
+            public int getHeight() {
+                return raster.getHeight();
+            }
+
+            @Override
+            public void readRow(int y, byte[] destination) {
+                raster.readLumaRow(y, destination, 0);
+            }
+        };
+    }
+}
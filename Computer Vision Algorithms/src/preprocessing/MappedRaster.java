@@ -0,0 +1,246 @@
+package preprocessing;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * This class is a raster stored in a raw file (no header, rows one after the other) and accessed through memory
+ * mapping, so images far larger than the heap can be processed one tile at a time. A pixel is either one unsigned
+ * byte (GRAY) or one big endian argb int (ARGB). The file is mapped in chunks of whole rows because a single mapping
+ * cannot exceed 2 GB. Reads and writes of distinct tiles may run on different threads.
+ */
+public class MappedRaster implements Closeable {
+    /**
+     * This enum defines how a pixel is stored in the file
+     */
+    public enum Layout {
+        GRAY(1), ARGB(4);
+
+        private final int bytesPerPixel;
+
+        Layout(int bytesPerPixel) {
+            this.bytesPerPixel = bytesPerPixel;
+        }
+
+        /**
+         * @return returns the number of bytes a pixel takes in the file
+         */
+        public int getBytesPerPixel() {
+            return this.bytesPerPixel;
+        }
+    }
+
+    /*
+        the largest mapping made for one chunk of rows
+     */
+    private static final long MAX_CHUNK_BYTES = 1L << 30;
+
+    /*
+        class variables
+     */
+    private final FileChannel channel;
+    private final int width;
+    private final int height;
+    private final Layout layout;
+    private final int rowBytes;
+    private final int rowsPerChunk;
+    private final MappedByteBuffer[] chunks;
+    private final IntBuffer[] intChunks; // int views of the chunks for the ARGB layout
+
+    private MappedRaster(FileChannel channel, int width, int height, Layout layout, boolean writable) throws IOException {
+        long rowBytes = (long) width * layout.getBytesPerPixel();
+        if(width < 1 || height < 1 || rowBytes > MAX_CHUNK_BYTES){
+            throw new IllegalArgumentException("invalid raster dimensions " + width + "x" + height);
+        }
+        this.channel = channel;
+        this.width = width;
+        this.height = height;
+        this.layout = layout;
+        this.rowBytes = (int) rowBytes;
+        this.rowsPerChunk = (int) Math.min(height, MAX_CHUNK_BYTES / rowBytes);
+        int chunkCount = (height + this.rowsPerChunk - 1) / this.rowsPerChunk;
+        this.chunks = new MappedByteBuffer[chunkCount];
+        this.intChunks = new IntBuffer[chunkCount];
+        FileChannel.MapMode mode = writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+        for(int chunk = 0; chunk < chunkCount; chunk++){
+            int rows = Math.min(this.rowsPerChunk, height - chunk * this.rowsPerChunk);
+            this.chunks[chunk] = channel.map(mode, chunk * this.rowsPerChunk * rowBytes, rows * rowBytes);
+            this.chunks[chunk].order(ByteOrder.BIG_ENDIAN);
+            if(layout == Layout.ARGB) this.intChunks[chunk] = this.chunks[chunk].asIntBuffer();
+        }
+    }
+
+    /**
+     * This method creates (or truncates) a raster file of the given size, every pixel starts at zero
+     * @param path the file
+     * @param width width of the raster
+     * @param height height of the raster
+     * @param layout how pixels are stored
+     * @return returns the writable raster
+     * @throws IOException when the file cannot be created or mapped
+     */
+    public static MappedRaster create(Path path, int width, int height, Layout layout) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try{
+            // extend the file to its final length so every chunk can be mapped
+            channel.write(ByteBuffer.allocate(1), (long) width * height * layout.getBytesPerPixel() - 1);
+            return new MappedRaster(channel, width, height, layout, true);
+        } catch (IOException | RuntimeException e){
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * This method opens an existing raster file
+     * @param path the file
+     * @param width width of the raster
+     * @param height height of the raster
+     * @param layout how pixels are stored
+     * @param writable true to allow writing tiles
+     * @return returns the raster
+     * @throws IOException when the file cannot be opened, is too short or cannot be mapped
+     */
+    public static MappedRaster open(Path path, int width, int height, Layout layout, boolean writable) throws IOException {
+        FileChannel channel = writable
+                ? FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(path, StandardOpenOption.READ);
+        try{
+            if(channel.size() < (long) width * height * layout.getBytesPerPixel()){
+                throw new IOException("the file " + path + " is too short for a " + width + "x" + height + " " + layout + " raster");
+            }
+            return new MappedRaster(channel, width, height, layout, writable);
+        } catch (IOException | RuntimeException e){
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return returns the width of the raster
+     */
+    public int getWidth() {
+        return this.width;
+    }
+
+    /**
+     * @return returns the height of the raster
+     */
+    public int getHeight() {
+        return this.height;
+    }
+
+    /**
+     * @return returns how pixels are stored
+     */
+    public Layout getLayout() {
+        return this.layout;
+    }
+
+    /**
+     * This method copies a rectangle of a GRAY raster into a plane (row major, stride equal to the tile width)
+     * @param x left column of the tile
+     * @param y top row of the tile
+     * @param tileWidth width of the tile
+     * @param tileHeight height of the tile
+     * @param destination the plane to fill, a new one is allocated when it is null or too small
+     * @return returns the plane
+     */
+    public byte[] readTile(int x, int y, int tileWidth, int tileHeight, byte[] destination) {
+        checkTile(x, y, tileWidth, tileHeight, Layout.GRAY);
+        if(destination == null || destination.length < tileWidth * tileHeight){
+            destination = new byte[tileWidth * tileHeight];
+        }
+        for(int row = 0; row < tileHeight; row++){
+            int sy = y + row;
+            this.chunks[sy / this.rowsPerChunk].get(rowIndex(sy) + x, destination, row * tileWidth, tileWidth);
+        }
+        return destination;
+    }
+
+    /**
+     * This method copies a rectangle of an ARGB raster into a pixel array (row major, stride equal to the tile width)
+     * @param x left column of the tile
+     * @param y top row of the tile
+     * @param tileWidth width of the tile
+     * @param tileHeight height of the tile
+     * @param destination the array to fill, a new one is allocated when it is null or too small
+     * @return returns the pixels
+     */
+    public int[] readTile(int x, int y, int tileWidth, int tileHeight, int[] destination) {
+        checkTile(x, y, tileWidth, tileHeight, Layout.ARGB);
+        if(destination == null || destination.length < tileWidth * tileHeight){
+            destination = new int[tileWidth * tileHeight];
+        }
+        for(int row = 0; row < tileHeight; row++){
+            int sy = y + row;
+            this.intChunks[sy / this.rowsPerChunk].get(rowIndex(sy) / 4 + x, destination, row * tileWidth, tileWidth);
+        }
+        return destination;
+    }
+
+    /**
+     * This method writes a plane (row major, stride equal to the tile width) into a rectangle of a GRAY raster
+     */
+    public void writeTile(int x, int y, int tileWidth, int tileHeight, byte[] source) {
+        checkTile(x, y, tileWidth, tileHeight, Layout.GRAY);
+        for(int row = 0; row < tileHeight; row++){
+            int sy = y + row;
+            this.chunks[sy / this.rowsPerChunk].put(rowIndex(sy) + x, source, row * tileWidth, tileWidth);
+        }
+    }
+
+    /**
+     * This method writes pixels (row major, stride equal to the tile width) into a rectangle of an ARGB raster
+     */
+    public void writeTile(int x, int y, int tileWidth, int tileHeight, int[] source) {
+        checkTile(x, y, tileWidth, tileHeight, Layout.ARGB);
+        for(int row = 0; row < tileHeight; row++){
+            int sy = y + row;
+            this.intChunks[sy / this.rowsPerChunk].put(rowIndex(sy) / 4 + x, source, row * tileWidth, tileWidth);
+        }
+    }
+
+    /**
+     * This method forces the written pixels out to the file
+     */
+    public void flush() {
+        for(MappedByteBuffer chunk : this.chunks){
+            if(!chunk.isReadOnly()) chunk.force();
+        }
+    }
+
+    /**
+     * This method flushes the raster and closes the file, the mappings are released when they are garbage collected
+     * @throws IOException when the file cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+        this.channel.close();
+    }
+
+    /**
+     * @return returns the byte index of the first pixel of a row inside its chunk
+     */
+    private int rowIndex(int y) {
+        return (y % this.rowsPerChunk) * this.rowBytes;
+    }
+
+    private void checkTile(int x, int y, int tileWidth, int tileHeight, Layout expected) {
+        if(this.layout != expected){
+            throw new IllegalStateException("the raster stores " + this.layout + " pixels, not " + expected);
+        }
+        if(x < 0 || y < 0 || tileWidth < 0 || tileHeight < 0 || x + tileWidth > this.width || y + tileHeight > this.height){
+            throw new IllegalArgumentException("the tile is outside the raster");
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package preprocessing;
+
+import helpers.ParallelRows;
+
+/**
+ * This class implements erosion, dilation, opening and closing of byte planes (binary masks or gray levels) with a
+ * rectangular structuring element. A rectangle is the product of a horizontal and a vertical line, so every operation
+ * is a row pass followed by a column pass, and each pass uses the van Herk / Gil-Werman algorithm: the line is cut
+ * into blocks of the element length, running minima (maxima) are taken forward and backward inside every block, and
+ * each output is the combination of one backward and one forward value. That costs three comparisons per pixel
+ * whatever the element size. Pixels outside the plane are ignored (they never shrink or grow the result).
+ * Rows are processed in bands and columns in strips on the fork-join pool.
+ */
+public class Morphology {
+    /*
+        number of pixels a band should cover before it is worth a separate task
+     */
+    private static final int PIXELS_PER_BAND = 1 << 16;
+
+    /*
+        number of columns gathered together by the column pass, so it walks memory row by row
+     */
+    private static final int STRIP_COLUMNS = 64;
+
+    /**
+     * This method erodes the plane: every pixel becomes the minimum over the element centred on it
+     * @param mask the plane (one unsigned byte per pixel, row major)
+     * @param width width of the plane
+     * @param height height of the plane
+     * @param elementWidth width of the rectangular element
+     * @param elementHeight height of the rectangular element
+     * @param destination the plane to write to (may be the source), a new one is allocated when it is null or too small
+     * @return returns the eroded plane
+     */
+    public byte[] erode(byte[] mask, int width, int height, int elementWidth, int elementHeight, byte[] destination) {
+        return apply(mask, width, height, elementWidth, elementHeight, false, destination);
+    }
+
+    /**
+     * This method dilates the plane: every pixel becomes the maximum over the element centred on it
+     * @param mask the plane (one unsigned byte per pixel, row major)
+     * @param width width of the plane
+     * @param height height of the plane
+     * @param elementWidth width of the rectangular element
+     * @param elementHeight height of the rectangular element
+     * @param destination the plane to write to (may be the source), a new one is allocated when it is null or too small
+     * @return returns the dilated plane
+     */
+    public byte[] dilate(byte[] mask, int width, int height, int elementWidth, int elementHeight, byte[] destination) {
+        return apply(mask, width, height, elementWidth, elementHeight, true, destination);
+    }
+
+    /**
+     * This method opens the plane (erosion then dilation), removing specks smaller than the element
+     * @param mask the plane (one unsigned byte per pixel, row major)
+     * @param width width of the plane
+     * @param height height of the plane
+     * @param elementWidth width of the rectangular element
+     * @param elementHeight height of the rectangular element
+     * @param destination the plane to write to (may be the source), a new one is allocated when it is null or too small
+     * @return returns the opened plane
+     */
+    public byte[] open(byte[] mask, int width, int height, int elementWidth, int elementHeight, byte[] destination) {
+        byte[] eroded = apply(mask, width, height, elementWidth, elementHeight, false, destination);
+        return apply(eroded, width, height, elementWidth, elementHeight, true, eroded);
+    }
+
+    /**
+     * This method closes the plane (dilation then erosion), filling holes and gaps smaller than the element
+     * @param mask the plane (one unsigned byte per pixel, row major)
+     * @param width width of the plane
+     * @param height height of the plane
+     * @param elementWidth width of the rectangular element
+     * @param elementHeight height of the rectangular element
+     * @param destination the plane to write to (may be the source), a new one is allocated when it is null or too small
+     * @return returns the closed plane
+     */
+    public byte[] close(byte[] mask, int width, int height, int elementWidth, int elementHeight, byte[] destination) {
+        byte[] dilated = apply(mask, width, height, elementWidth, elementHeight, true, destination);
+        return apply(dilated, width, height, elementWidth, elementHeight, false, dilated);
+    }
+
+    /**
+     * This method runs the row pass and then the column pass, the row pass writes to the destination and the column
+     * pass works on the destination in place
+     */
+    private byte[] apply(byte[] mask, int width, int height, int elementWidth, int elementHeight, boolean maximum, byte[] destination) {
+        if(width < 1 || height < 1 || mask.length < width * height){
+            throw new IllegalArgumentException("the plane does not match the given dimensions");
+        }
+        if(elementWidth < 1 || elementHeight < 1){
+            throw new IllegalArgumentException("the structuring element must be at least 1x1");
+        }
+        if(destination == null || destination.length < width * height){
+            destination = new byte[width * height];
+        }
+        byte[] output = destination;
+        if(elementWidth == 1){
+            if(output != mask) System.arraycopy(mask, 0, output, 0, width * height);
+        } else {
+            ParallelRows.forEachBand(height, ParallelRows.rowsFor(width, PIXELS_PER_BAND), (start, end) -> {
+                int length = width + elementWidth - 1;
+                int[] line = new int[length], forward = new int[length], backward = new int[length];
+                int[] result = new int[width];
+                for(int y = start; y < end; y++){
+                    int offset = y * width;
+                    fillPadded(line, elementWidth, width, maximum);
+                    for(int x = 0; x < width; x++){
+                        line[x + (elementWidth - 1) / 2] = mask[offset + x] & 0xff;
+                    }
+                    vanHerk(line, length, elementWidth, maximum, forward, backward, result, width);
+                    for(int x = 0; x < width; x++){
+                        output[offset + x] = (byte) result[x];
+                    }
+                }
+            });
+        }
+        if(elementHeight > 1){
+            int strips = (width + STRIP_COLUMNS - 1) / STRIP_COLUMNS;
+            ParallelRows.forEachBand(strips, Math.max(1, PIXELS_PER_BAND / (STRIP_COLUMNS * height)), (startStrip, endStrip) -> {
+                int length = height + elementHeight - 1;
+                int before = (elementHeight - 1) / 2;
+                // the strip is stored column by column so each column is a contiguous line for the 1D pass
+                int[] line = new int[length], forward = new int[length], backward = new int[length];
+                int[] result = new int[height];
+                int[] strip = new int[STRIP_COLUMNS * height];
+                for(int s = startStrip; s < endStrip; s++){
+                    int left = s * STRIP_COLUMNS, columns = Math.min(STRIP_COLUMNS, width - left);
+                    // gather the strip row by row (sequential reads) into column major order
+                    for(int y = 0; y < height; y++){
+                        int offset = y * width + left;
+                        for(int c = 0; c < columns; c++){
+                            strip[c * height + y] = output[offset + c] & 0xff;
+                        }
+                    }
+                    for(int c = 0; c < columns; c++){
+                        fillPadded(line, elementHeight, height, maximum);
+                        System.arraycopy(strip, c * height, line, before, height);
+                        vanHerk(line, length, elementHeight, maximum, forward, backward, result, height);
+                        System.arraycopy(result, 0, strip, c * height, height);
+                    }
+                    for(int y = 0; y < height; y++){
+                        int offset = y * width + left;
+                        for(int c = 0; c < columns; c++){
+                            output[offset + c] = (byte) strip[c * height + y];
+                        }
+                    }
+                }
+            });
+        }
+        return destination;
+    }
+
+    /**
+     * This method sets the padding on both ends of a line to the neutral value of the operation (255 for a minimum,
+     * 0 for a maximum) so that pixels outside the plane never win
+     */
+    private static void fillPadded(int[] line, int element, int count, boolean maximum) {
+        int neutral = maximum ? 0 : 255;
+        int before = (element - 1) / 2;
+        for(int i = 0; i < before; i++) line[i] = neutral;
+        for(int i = before + count, length = count + element - 1; i < length; i++) line[i] = neutral;
+    }
+
+    /**
+     * This method runs the van Herk / Gil-Werman recurrence over a padded line: result[i] is the minimum (maximum) of
+     * line[i .. i + element - 1]
+     * @param line the padded line
+     * @param length length of the padded line (count + element - 1)
+     * @param element length of the element
+     * @param maximum true for a maximum, false for a minimum
+     * @param forward scratch array for the running values from the start of each block
+     * @param backward scratch array for the running values from the end of each block
+     * @param result the array to write to
+     * @param count number of outputs
+     */
+    private static void vanHerk(int[] line, int length, int element, boolean maximum, int[] forward, int[] backward, int[] result, int count) {
+        for(int i = 0; i < length; i++){
+            forward[i] = i % element == 0 ? line[i] : combine(forward[i - 1], line[i], maximum);
+        }
+        backward[length - 1] = line[length - 1];
+        for(int i = length - 2; i >= 0; i--){
+            backward[i] = (i + 1) % element == 0 ? line[i] : combine(backward[i + 1], line[i], maximum);
+        }
+        // the window [i, i + element - 1] spans at most two blocks: the tail of one and the head of the next
+        for(int i = 0; i < count; i++){
+            result[i] = combine(backward[i], forward[i + element - 1], maximum);
+        }
+    }
+
+    private static int combine(int a, int b, boolean maximum) {
+        return maximum ? Math.max(a, b) : Math.min(a, b);
+    }
+}
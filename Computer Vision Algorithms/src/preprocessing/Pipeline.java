@@ -0,0 +1,450 @@
+package preprocessing;
+
+import helpers.ParallelRows;
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import mathematical.classes.VectorCalculations;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * This class records a chain of preprocessing steps on the luminance plane of an image and runs it later, for example
+ * <pre>
+ *     Pipeline pipeline = Pipeline.create().grayscale().blur(1.4).crop(10, 10, 200, 200).resize(64, 64).normalize();
+ *     Pipeline.Runner runner = pipeline.runner();
+ *     byte[] plane = runner.run(image, null);
+ * </pre>
+ * A pipeline is immutable: every step returns a new pipeline, so one definition can be shared by many threads and
+ * run over any number of images. When it runs, adjacent point-wise steps (invert, threshold, gamma, linear, map and
+ * normalize) are composed into a single 256 entry lookup table, crops only move a view over the current plane, and
+ * the table and view are applied while the next neighbourhood step (blur) or resampling step (resize) reads its input,
+ * or while the result is written. Only those steps allocate planes, and a Runner keeps them between images.
+ */
+public final class Pipeline {
+    /*
+        number of gray levels
+     */
+    private static final int LEVELS = 256;
+
+    /**
+     * This enum lists the kinds of step a pipeline can record
+     */
+    private enum Kind { POINT, NORMALIZE, CROP, BLUR, RESIZE }
+
+    /**
+     * This class holds one recorded step, only the fields of its kind are used
+     */
+    private static final class Stage {
+        private final Kind kind;
+        private final byte[] table;
+        private final GaussianBlur blur;
+        private final int x, y, width, height;
+
+        private Stage(Kind kind, byte[] table, GaussianBlur blur, int x, int y, int width, int height) {
+            this.kind = kind;
+            this.table = table;
+            this.blur = blur;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    /*
+        class variables
+     */
+    private final List<Stage> stages;
+
+    private Pipeline(List<Stage> stages) {
+        this.stages = stages;
+    }
+
+    /**
+     * @return returns an empty pipeline, it outputs the luminance plane of the image
+     */
+    public static Pipeline create() {
+        return new Pipeline(Collections.emptyList());
+    }
+
+    /**
+     * This method records the conversion to grayscale. Every pipeline works on the luminance plane of its input, so
+     * this step costs nothing and only documents the chain.
+     * @return returns the extended pipeline
+     */
+    public Pipeline grayscale() {
+        return this;
+    }
+
+    /**
+     * This method records a gaussian blur
+     * @param sigma standard deviation of the gaussian in pixels
+     * @return returns the extended pipeline
+     */
+    public Pipeline blur(double sigma) {
+        return then(new Stage(Kind.BLUR, null, new GaussianBlur(sigma), 0, 0, 0, 0));
+    }
+
+    /**
+     * This method records a crop, it only moves the view over the current plane
+     * @param x left column of the region
+     * @param y top row of the region
+     * @param width width of the region
+     * @param height height of the region
+     * @return returns the extended pipeline
+     */
+    public Pipeline crop(int x, int y, int width, int height) {
+        if(x < 0 || y < 0 || width < 1 || height < 1){
+            throw new IllegalArgumentException("invalid crop region");
+        }
+        return then(new Stage(Kind.CROP, null, null, x, y, width, height));
+    }
+
+    /**
+     * This method records a nearest neighbour resize, sampled the same way as VectorCalculations.resizeImage
+     * @param width new width
+     * @param height new height
+     * @return returns the extended pipeline
+     */
+    public Pipeline resize(int width, int height) {
+        if(width < 1 || height < 1){
+            throw new IllegalArgumentException("the new size must be positive");
+        }
+        return then(new Stage(Kind.RESIZE, null, null, 0, 0, width, height));
+    }
+
+    /**
+     * This method records a contrast stretch: the darkest level of the current plane becomes 0 and the brightest 255
+     * @return returns the extended pipeline
+     */
+    public Pipeline normalize() {
+        return then(new Stage(Kind.NORMALIZE, null, null, 0, 0, 0, 0));
+    }
+
+    /**
+     * This method records the inversion of every gray level
+     * @return returns the extended pipeline
+     */
+    public Pipeline invert() {
+        return map(level -> 255 - level);
+    }
+
+    /**
+     * This method records a binary threshold: levels at or above the threshold become 255, the others 0
+     * @param threshold the threshold (0 - 255)
+     * @return returns the extended pipeline
+     */
+    public Pipeline threshold(int threshold) {
+        return map(level -> level >= threshold ? 255 : 0);
+    }
+
+    /**
+     * This method records a gamma correction, level = 255 * (level / 255) ^ gamma
+     * @param gamma the exponent, must be positive
+     * @return returns the extended pipeline
+     */
+    public Pipeline gamma(double gamma) {
+        if(!(gamma > 0)){
+            throw new IllegalArgumentException("gamma must be positive");
+        }
+        return map(level -> (int) Math.round(255 * Math.pow(level / 255.0, gamma)));
+    }
+
+    /**
+     * This method records a linear change of contrast and brightness, level = gain * level + offset
+     * @param gain the factor applied to every level
+     * @param offset the value added after scaling
+     * @return returns the extended pipeline
+     */
+    public Pipeline linear(double gain, double offset) {
+        return map(level -> (int) Math.round(gain * level + offset));
+    }
+
+    /**
+     * This method records an arbitrary point-wise operation, it is evaluated once for every gray level when recorded
+     * and its results are clamped to 0 - 255
+     * @param operation the operation on a gray level
+     * @return returns the extended pipeline
+     */
+    public Pipeline map(IntUnaryOperator operation) {
+        byte[] table = new byte[LEVELS];
+        for(int level = 0; level < LEVELS; level++){
+            table[level] = (byte) Math.min(255, Math.max(0, operation.applyAsInt(level)));
+        }
+        return then(new Stage(Kind.POINT, table, null, 0, 0, 0, 0));
+    }
+
+    /**
+     * @return returns a new runner for this pipeline, it keeps its planes between images and is not thread safe
+     */
+    public Runner runner() {
+        return new Runner(this.stages);
+    }
+
+    /**
+     * This method runs the pipeline once on an image with a throwaway runner
+     * @param image the input image
+     * @return returns the output as a gray image
+     */
+    public WritableImage apply(Image image) {
+        return runner().runToImage(image);
+    }
+
+    private Pipeline then(Stage stage) {
+        List<Stage> extended = new ArrayList<>(this.stages);
+        extended.add(stage);
+        return new Pipeline(Collections.unmodifiableList(extended));
+    }
+
+    /**
+     * This class runs a pipeline, keeping the planes allocated by its blur and resize steps (and the luminance plane
+     * of the input) so that running it over many images of the same size allocates nothing after the first one
+     */
+    public static final class Runner {
+        /*
+            class variables
+         */
+        private final List<Stage> stages;
+        private final GrayScaleEngine grayScaleEngine = new GrayScaleEngine();
+        private byte[] input = new byte[0];
+        private final byte[][] scratch = {new byte[0], new byte[0], new byte[0]};
+        private int[] rowIndexes = new int[0];
+        private int[] columnIndexes = new int[0];
+        private int width;
+        private int height;
+
+        /*
+            the current view: plane, index of its first pixel, row stride and size, and the pending lookup table
+            (null when no point-wise step is waiting)
+         */
+        private byte[] plane;
+        private int offset;
+        private int stride;
+        private int viewWidth;
+        private int viewHeight;
+        private byte[] pending;
+
+        private Runner(List<Stage> stages) {
+            this.stages = stages;
+        }
+
+        /**
+         * This method runs the pipeline on an image
+         * @param image the input image
+         * @param destination the plane to write to, a new one is allocated when it is null or too small
+         * @return returns the output plane, its size is given by getWidth and getHeight
+         */
+        public byte[] run(Image image, byte[] destination) {
+            int width = (int) image.getWidth(), height = (int) image.getHeight();
+            this.input = this.grayScaleEngine.toLuminancePlane(image, this.input);
+            return run(this.input, width, height, destination);
+        }
+
+        /**
+         * This method runs the pipeline on a luminance plane, the plane is not modified
+         * @param luma the input plane (one unsigned byte per pixel, row major)
+         * @param width width of the plane
+         * @param height height of the plane
+         * @param destination the plane to write to, a new one is allocated when it is null or too small
+         * @return returns the output plane, its size is given by getWidth and getHeight
+         */
+        public byte[] run(byte[] luma, int width, int height, byte[] destination) {
+            if(width < 1 || height < 1 || luma.length < width * height){
+                throw new IllegalArgumentException("the plane does not match the given dimensions");
+            }
+            this.plane = luma;
+            this.offset = 0;
+            this.stride = width;
+            this.viewWidth = width;
+            this.viewHeight = height;
+            this.pending = null;
+            for(Stage stage : this.stages){
+                switch (stage.kind) {
+                    case POINT -> compose(stage.table);
+                    case NORMALIZE -> compose(stretchTable());
+                    case CROP -> crop(stage);
+                    case BLUR -> blur(stage.blur);
+                    case RESIZE -> resize(stage.width, stage.height);
+                }
+            }
+            int size = this.viewWidth * this.viewHeight;
+            if(destination == null || destination.length < size){
+                destination = new byte[size];
+            }
+            copyView(destination);
+            this.width = this.viewWidth;
+            this.height = this.viewHeight;
+            this.plane = null;
+            return destination;
+        }
+
+        /**
+         * This method runs the pipeline on an image and returns the output as a gray image
+         * @param image the input image
+         * @return returns the output image
+         */
+        public WritableImage runToImage(Image image) {
+            byte[] output = run(image, null);
+            int[] pixels = new int[this.width * this.height];
+            for(int i = 0; i < pixels.length; i++){
+                int gray = output[i] & 0xff;
+                pixels[i] = 0xff000000 | (gray << 16) | (gray << 8) | gray;
+            }
+            WritableImage result = new WritableImage(this.width, this.height);
+            result.getPixelWriter().setPixels(0, 0, this.width, this.height, PixelFormat.getIntArgbInstance(), pixels, 0, this.width);
+            return result;
+        }
+
+        /**
+         * @return returns the width of the last output
+         */
+        public int getWidth() {
+            return this.width;
+        }
+
+        /**
+         * @return returns the height of the last output
+         */
+        public int getHeight() {
+            return this.height;
+        }
+
+        /**
+         * This method composes a lookup table after the pending one
+         */
+        private void compose(byte[] table) {
+            if(this.pending == null){
+                this.pending = table.clone();
+                return;
+            }
+            for(int level = 0; level < LEVELS; level++){
+                this.pending[level] = table[this.pending[level] & 0xff];
+            }
+        }
+
+        /**
+         * This method builds the contrast stretch table of the current view, as seen through the pending table
+         */
+        private byte[] stretchTable() {
+            boolean[] present = new boolean[LEVELS];
+            for(int y = 0; y < this.viewHeight; y++){
+                for(int i = this.offset + y * this.stride, last = i + this.viewWidth; i < last; i++){
+                    present[this.plane[i] & 0xff] = true;
+                }
+            }
+            int low = LEVELS, high = -1;
+            for(int level = 0; level < LEVELS; level++){
+                if(!present[level]) continue;
+                int mapped = this.pending == null ? level : this.pending[level] & 0xff;
+                low = Math.min(low, mapped);
+                high = Math.max(high, mapped);
+            }
+            byte[] table = new byte[LEVELS];
+            for(int level = 0; level < LEVELS; level++){
+                table[level] = (byte) (high <= low ? level : Math.min(255, Math.max(0, ((level - low) * 255 + (high - low) / 2) / (high - low))));
+            }
+            return table;
+        }
+
+        /**
+         * This method narrows the view, no pixel is copied
+         */
+        private void crop(Stage stage) {
+            if(stage.x + stage.width > this.viewWidth || stage.y + stage.height > this.viewHeight){
+                throw new IllegalArgumentException("the crop region " + stage.width + "x" + stage.height + " at (" + stage.x + ", "
+                        + stage.y + ") does not fit in a " + this.viewWidth + "x" + this.viewHeight + " plane");
+            }
+            this.offset += stage.y * this.stride + stage.x;
+            this.viewWidth = stage.width;
+            this.viewHeight = stage.height;
+        }
+
+        /**
+         * This method blurs the view into a scratch plane. The blur needs a contiguous plane, so the view is first
+         * packed (applying the pending table on the way) unless it already is one and no table is pending.
+         */
+        private void blur(GaussianBlur blur) {
+            int size = this.viewWidth * this.viewHeight;
+            byte[] source = this.plane;
+            if(this.pending != null || this.offset != 0 || this.stride != this.viewWidth){
+                source = scratchOtherThan(this.plane, null, size);
+                copyView(source);
+            }
+            byte[] output = scratchOtherThan(source, this.plane, size);
+            blur.blurLuma(source, this.viewWidth, this.viewHeight, output);
+            setView(output, this.viewWidth, this.viewHeight);
+        }
+
+        /**
+         * This method resamples the view into a scratch plane with nearest neighbour sampling, applying the pending
+         * table on the way
+         */
+        private void resize(int newWidth, int newHeight) {
+            byte[] output = scratchOtherThan(this.plane, null, newWidth * newHeight);
+            if(this.rowIndexes.length < newHeight) this.rowIndexes = new int[newHeight];
+            if(this.columnIndexes.length < newWidth) this.columnIndexes = new int[newWidth];
+            for(int y = 0; y < newHeight; y++){
+                this.rowIndexes[y] = this.offset + VectorCalculations.sourceIndex(y, this.viewHeight, newHeight) * this.stride;
+            }
+            for(int x = 0; x < newWidth; x++){
+                this.columnIndexes[x] = VectorCalculations.sourceIndex(x, this.viewWidth, newWidth);
+            }
+            byte[] plane = this.plane, table = this.pending;
+            int[] rows = this.rowIndexes, columns = this.columnIndexes;
+            ParallelRows.forEachBand(newHeight, ParallelRows.rowsFor(newWidth, 1 << 16), (start, end) -> {
+                for(int y = start; y < end; y++){
+                    int row = rows[y], out = y * newWidth;
+                    if(table == null){
+                        for(int x = 0; x < newWidth; x++) output[out + x] = plane[row + columns[x]];
+                    } else {
+                        for(int x = 0; x < newWidth; x++) output[out + x] = table[plane[row + columns[x]] & 0xff];
+                    }
+                }
+            });
+            setView(output, newWidth, newHeight);
+        }
+
+        /**
+         * This method writes the view into a packed plane, applying the pending table
+         */
+        private void copyView(byte[] destination) {
+            byte[] plane = this.plane, table = this.pending;
+            int offset = this.offset, stride = this.stride, width = this.viewWidth;
+            ParallelRows.forEachBand(this.viewHeight, ParallelRows.rowsFor(width, 1 << 16), (start, end) -> {
+                for(int y = start; y < end; y++){
+                    int from = offset + y * stride, to = y * width;
+                    if(table == null){
+                        System.arraycopy(plane, from, destination, to, width);
+                    } else {
+                        for(int x = 0; x < width; x++) destination[to + x] = table[plane[from + x] & 0xff];
+                    }
+                }
+            });
+        }
+
+        private void setView(byte[] plane, int width, int height) {
+            this.plane = plane;
+            this.offset = 0;
+            this.stride = width;
+            this.viewWidth = width;
+            this.viewHeight = height;
+            this.pending = null;
+        }
+
+        /**
+         * This method returns a scratch plane of at least the given size that is neither of the given planes
+         */
+        private byte[] scratchOtherThan(byte[] first, byte[] second, int size) {
+            for(int i = 0; i < this.scratch.length; i++){
+                if(this.scratch[i] == first || this.scratch[i] == second) continue;
+                if(this.scratch[i].length < size) this.scratch[i] = new byte[size];
+                return this.scratch[i];
+            }
+            throw new IllegalStateException("no free scratch plane");
+        }
+    }
+}
@@ -2,6 +2,7 @@ package preprocessing;
 
 import javafx.scene.image.Image;
 import javafx.scene.image.WritableImage;
+import raster.Raster;
 
 public interface PreprocessingAlgorithms {
     /**
@@ -17,4 +18,34 @@ public interface PreprocessingAlgorithms {
      * @return writable image of the blurred image
      */
     WritableImage GaussianBlurAlgorithm(Image image);
+
+    /**
+     * This method perform a gaussian blurring algorithm with the given standard deviation on the image
+     * @param image input image
+     * @param sigma standard deviation of the gaussian in pixels
+     * @return writable image of the blurred image
+     */
+    WritableImage GaussianBlurAlgorithm(Image image, double sigma);
+
+    /**
+     * This method will convert a given raster into a grayscale raster, without the JavaFX toolkit
+     * @param raster input raster
+     * @return GRAY raster of the luma values
+     */
+    Raster ImageGrayScaling(Raster raster);
+
+    /**
+     * This method perform a gaussian blurring algorithm on the given raster to reduce noise, without the JavaFX toolkit
+     * @param raster input raster
+     * @return blurred raster of the same type
+     */
+    Raster GaussianBlurAlgorithm(Raster raster);
+
+    /**
+     * This method perform a gaussian blurring algorithm with the given standard deviation on the raster
+     * @param raster input raster
+     * @param sigma standard deviation of the gaussian in pixels
+     * @return blurred raster of the same type
+     */
+    Raster GaussianBlurAlgorithm(Raster raster, double sigma);
 }
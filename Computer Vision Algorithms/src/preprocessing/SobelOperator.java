@@ -0,0 +1,131 @@
+package preprocessing;
+
+/**
+ * This class computes the sobel gradient of a luminance raster while streaming it row by row. Only three input rows
+ * are kept (in a rolling buffer), so memory stays flat however large the image is. Pixels outside the image are
+ * clamped to the nearest edge pixel.
+ */
+public class SobelOperator {
+    /*
+        quantized gradient directions (the direction the intensity changes in, y grows downwards)
+     */
+    public static final byte DIRECTION_HORIZONTAL = 0; // left-right
+    public static final byte DIRECTION_DIAGONAL = 1; // top left - bottom right
+    public static final byte DIRECTION_VERTICAL = 2; // top-bottom
+    public static final byte DIRECTION_ANTI_DIAGONAL = 3; // top right - bottom left
+
+    /*
+        tan(22.5 degrees) and tan(67.5 degrees) scaled by 2^12, used to quantize the direction without trigonometry
+     */
+    private static final int TAN_22_5 = 1697;
+    private static final int TAN_67_5 = 9889;
+    private static final int TAN_SHIFT = 12;
+
+    /**
+     * This interface receives the gradient of the raster one row at a time
+     */
+    @FunctionalInterface
+    public interface GradientRowConsumer {
+        /**
+         * This method receives one row of the gradient, the arrays are reused for the next row so copy what you keep
+         * @param y the row
+         * @param gradientX horizontal gradient of every pixel in the row
+         * @param gradientY vertical gradient of every pixel in the row
+         * @param magnitude euclidean magnitude of the gradient, rounded
+         * @param direction quantized direction of the gradient (one of the DIRECTION constants)
+         */
+        void accept(int y, int[] gradientX, int[] gradientY, int[] magnitude, byte[] direction);
+    }
+
+    /**
+     * This method streams the raster and hands every gradient row to the consumer in order, top to bottom
+     * @param source the luminance raster
+     * @param consumer receives the gradient rows
+     */
+    public void stream(LumaRowSource source, GradientRowConsumer consumer) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        if(width < 1 || height < 1) return;
+        // rolling buffer of the rows above, at and below the current one
+        byte[] above = new byte[width];
+        byte[] current = new byte[width];
+        byte[] below = new byte[width];
+        int[] gradientX = new int[width];
+        int[] gradientY = new int[width];
+        int[] magnitude = new int[width];
+        byte[] direction = new byte[width];
+
+        source.readRow(0, current);
+        System.arraycopy(current, 0, above, 0, width); // row -1 is clamped to row 0
+        for(int y = 0; y < height; y++){
+            if(y + 1 < height){
+                source.readRow(y + 1, below);
+            } else {
+                System.arraycopy(current, 0, below, 0, width); // row height is clamped to the last row
+            }
+            gradientRow(above, current, below, width, gradientX, gradientY, magnitude, direction);
+            consumer.accept(y, gradientX, gradientY, magnitude, direction);
+            // rotate the buffers: the current row becomes the one above and so on
+            byte[] recycled = above;
+            above = current;
+            current = below;
+            below = recycled;
+        }
+    }
+
+    /**
+     * This method computes the gradient magnitude (saturated at 255) and direction of every pixel
+     * @param source the luminance raster
+     * @param magnitude array of width * height bytes for the magnitude, may be null
+     * @param direction array of width * height bytes for the direction, may be null
+     */
+    public void apply(LumaRowSource source, byte[] magnitude, byte[] direction) {
+        int width = source.getWidth();
+        stream(source, (y, gradientX, gradientY, rowMagnitude, rowDirection) -> {
+            int offset = y * width;
+            if(magnitude != null){
+                for(int x = 0; x < width; x++){
+                    magnitude[offset + x] = (byte) Math.min(255, rowMagnitude[x]);
+                }
+            }
+            if(direction != null){
+                System.arraycopy(rowDirection, 0, direction, offset, width);
+            }
+        });
+    }
+
+    /**
+     * This method quantizes a gradient into one of the four DIRECTION constants
+     * @param gradientX horizontal gradient
+     * @param gradientY vertical gradient
+     * @return returns the quantized direction
+     */
+    public static byte direction(int gradientX, int gradientY) {
+        long absoluteX = Math.abs((long) gradientX);
+        long absoluteY = Math.abs((long) gradientY);
+        if(absoluteY << TAN_SHIFT <= absoluteX * TAN_22_5) return DIRECTION_HORIZONTAL;
+        if(absoluteY << TAN_SHIFT >= absoluteX * TAN_67_5) return DIRECTION_VERTICAL;
+        return (gradientX ^ gradientY) >= 0 ? DIRECTION_DIAGONAL : DIRECTION_ANTI_DIAGONAL;
+    }
+
+    /**
+     * This method applies the two 3x3 sobel kernels along one row
+     */
+    private static void gradientRow(byte[] above, byte[] current, byte[] below, int width,
+                                    int[] gradientX, int[] gradientY, int[] magnitude, byte[] direction) {
+        int last = width - 1;
+        for(int x = 0; x < width; x++){
+            int left = x == 0 ? 0 : x - 1;
+            int right = x == last ? last : x + 1;
+            int topLeft = above[left] & 0xff, top = above[x] & 0xff, topRight = above[right] & 0xff;
+            int middleLeft = current[left] & 0xff, middleRight = current[right] & 0xff;
+            int bottomLeft = below[left] & 0xff, bottom = below[x] & 0xff, bottomRight = below[right] & 0xff;
+            int gx = (topRight + 2 * middleRight + bottomRight) - (topLeft + 2 * middleLeft + bottomLeft);
+            int gy = (bottomLeft + 2 * bottom + bottomRight) - (topLeft + 2 * top + topRight);
+            gradientX[x] = gx;
+            gradientY[x] = gy;
+            magnitude[x] = (int) Math.round(Math.sqrt(gx * gx + gy * gy));
+            direction[x] = direction(gx, gy);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package preprocessing;
+
+import raster.Luma;
+
+/**
+ * This class runs the grayscale and gaussian blur operators of ImagePreprocessing over MappedRaster files one tile at
+ * a time, so the heap only ever holds a few tiles whatever the size of the image. Neighbourhood operators read every
+ * tile with a halo of radius pixels on each side (clamped at the image border) and write back only the core, which
+ * gives exactly the same result as processing the whole image at once. Buffers are reused from tile to tile; the
+ * operators themselves still spread each tile over the fork-join pool.
+ * A processor keeps its buffers between calls, so it is not thread safe - use one processor per thread.
+ */
+public class TiledProcessor {
+    /*
+        tile size used when none is given
+     */
+    public static final int DEFAULT_TILE_SIZE = 1024;
+
+    /*
+        class variables
+     */
+    private final int tileWidth;
+    private final int tileHeight;
+    private int[] argbTile = new int[0];
+    private byte[] lumaTile = new byte[0];
+    private byte[] blurredTile = new byte[0];
+    private int[] blurredArgbTile = new int[0];
+    private byte[] coreTile = new byte[0];
+    private int[] coreArgbTile = new int[0];
+
+    /**
+     * This constructor uses square tiles of DEFAULT_TILE_SIZE pixels
+     */
+    public TiledProcessor() {
+        this(DEFAULT_TILE_SIZE, DEFAULT_TILE_SIZE);
+    }
+
+    /**
+     * @param tileWidth width of a tile without its halo
+     * @param tileHeight height of a tile without its halo
+     */
+    public TiledProcessor(int tileWidth, int tileHeight) {
+        if(tileWidth < 1 || tileHeight < 1){
+            throw new IllegalArgumentException("the tile size must be positive");
+        }
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+    }
+
+    /**
+     * This method converts an ARGB raster into a GRAY raster of the same size
+     * @param source the ARGB raster
+     * @param destination the GRAY raster to write to
+     */
+    public void grayscale(MappedRaster source, MappedRaster destination) {
+        checkSizes(source, MappedRaster.Layout.ARGB, destination, MappedRaster.Layout.GRAY);
+        for(int y = 0; y < source.getHeight(); y += this.tileHeight){
+            int rows = Math.min(this.tileHeight, source.getHeight() - y);
+            for(int x = 0; x < source.getWidth(); x += this.tileWidth){
+                int columns = Math.min(this.tileWidth, source.getWidth() - x);
+                int[] pixels = this.argbTile = source.readTile(x, y, columns, rows, this.argbTile);
+                byte[] luma = this.lumaTile = ensure(this.lumaTile, columns * rows);
+                Luma.argbToLuma(pixels, 0, luma, 0, columns * rows);
+                destination.writeTile(x, y, columns, rows, luma);
+            }
+        }
+    }
+
+    /**
+     * This method blurs a raster into another raster of the same size and layout (GRAY or ARGB)
+     * @param source the raster to blur
+     * @param destination the raster to write to
+     * @param sigma standard deviation of the gaussian in pixels
+     */
+    public void blur(MappedRaster source, MappedRaster destination, double sigma) {
+        checkSizes(source, source.getLayout(), destination, source.getLayout());
+        processWithHalo(source, destination, new GaussianBlur(sigma), source.getLayout() == MappedRaster.Layout.ARGB);
+    }
+
+    /**
+     * This method converts an ARGB raster to gray and blurs it into a GRAY raster in one pass over the tiles
+     * @param source the ARGB raster
+     * @param destination the GRAY raster to write to
+     * @param sigma standard deviation of the gaussian in pixels
+     */
+    public void grayscaleAndBlur(MappedRaster source, MappedRaster destination, double sigma) {
+        checkSizes(source, MappedRaster.Layout.ARGB, destination, MappedRaster.Layout.GRAY);
+        processWithHalo(source, destination, new GaussianBlur(sigma), false);
+    }
+
+    /**
+     * This method walks the tiles of the source, reads each one with its halo, blurs it and writes the core. An ARGB
+     * source written to a GRAY destination is converted to luma before blurring.
+     */
+    private void processWithHalo(MappedRaster source, MappedRaster destination, GaussianBlur blur, boolean argbOutput) {
+        int width = source.getWidth(), height = source.getHeight();
+        int halo = blur.getRadius();
+        boolean argbInput = source.getLayout() == MappedRaster.Layout.ARGB;
+        for(int y = 0; y < height; y += this.tileHeight){
+            int rows = Math.min(this.tileHeight, height - y);
+            int top = Math.max(0, y - halo), bottom = Math.min(height, y + rows + halo);
+            for(int x = 0; x < width; x += this.tileWidth){
+                int columns = Math.min(this.tileWidth, width - x);
+                int left = Math.max(0, x - halo), right = Math.min(width, x + columns + halo);
+                int haloWidth = right - left, haloHeight = bottom - top;
+                int size = haloWidth * haloHeight;
+                if(argbOutput){
+                    int[] pixels = this.argbTile = source.readTile(left, top, haloWidth, haloHeight, this.argbTile);
+                    int[] blurred = this.blurredArgbTile = blur.blurArgb(pixels, haloWidth, haloHeight, this.blurredArgbTile);
+                    int[] core = this.coreArgbTile = ensure(this.coreArgbTile, columns * rows);
+                    for(int row = 0; row < rows; row++){
+                        System.arraycopy(blurred, (y - top + row) * haloWidth + (x - left), core, row * columns, columns);
+                    }
+                    destination.writeTile(x, y, columns, rows, core);
+                } else {
+                    byte[] luma;
+                    if(argbInput){
+                        int[] pixels = this.argbTile = source.readTile(left, top, haloWidth, haloHeight, this.argbTile);
+                        luma = this.lumaTile = ensure(this.lumaTile, size);
+                        Luma.argbToLuma(pixels, 0, luma, 0, size);
+                    } else {
+                        luma = this.lumaTile = source.readTile(left, top, haloWidth, haloHeight, this.lumaTile);
+                    }
+                    byte[] blurred = this.blurredTile = blur.blurLuma(luma, haloWidth, haloHeight, this.blurredTile);
+                    byte[] core = this.coreTile = ensure(this.coreTile, columns * rows);
+                    for(int row = 0; row < rows; row++){
+                        System.arraycopy(blurred, (y - top + row) * haloWidth + (x - left), core, row * columns, columns);
+                    }
+                    destination.writeTile(x, y, columns, rows, core);
+                }
+            }
+        }
+    }
+
+    private static void checkSizes(MappedRaster source, MappedRaster.Layout sourceLayout, MappedRaster destination, MappedRaster.Layout destinationLayout) {
+        if(source.getLayout() != sourceLayout || destination.getLayout() != destinationLayout){
+            throw new IllegalArgumentException("expected a " + sourceLayout + " source and a " + destinationLayout + " destination");
+        }
+        if(source.getWidth() != destination.getWidth() || source.getHeight() != destination.getHeight()){
+            throw new IllegalArgumentException("the source and destination rasters must have the same size");
+        }
+    }
+
+    private static byte[] ensure(byte[] buffer, int size) {
+        return buffer.length < size ? new byte[size] : buffer;
+    }
+
+    private static int[] ensure(int[] buffer, int size) {
+        return buffer.length < size ? new int[size] : buffer;
+    }
+}
@@ -0,0 +1,145 @@
+package raster;
+
+import helpers.SimdSupport;
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * This class holds the luma kernels shared by the whole library: 16-bit fixed point weights (BT.601) applied to
+ * packed argb pixels. The run conversions go through the Vector API lanes of the nested Lanes class when
+ * SimdSupport.ENABLED is true (that class is not loaded otherwise), the scalar loop only finishing the tail.
+ * <p>
+ * It has no JavaFX dependency, so Raster and the headless workers can use it without the JavaFX runtime;
+ * GrayScaleEngine only adds the adapters that move pixels in and out of JavaFX images. Note that importing JavaFX is
+ * not enough to break a headless path: when a method passes a subtype where a supertype is declared (a
+ * WritablePixelFormat given to setPixels, a WritableImage returned as an Image) the verifier loads both classes as
+ * soon as the class holding that method is linked. Classes with Raster entry points keep such JavaFX code in a nested
+ * class for that reason.
+ */
+public final class Luma {
+    /*
+        fixed point BT.601 weights scaled by 2^16 (0.299, 0.587, 0.114), they add up to exactly 65536
+     */
+    public static final int RED_WEIGHT = 19595;
+    public static final int GREEN_WEIGHT = 38470;
+    public static final int BLUE_WEIGHT = 7471;
+    public static final int SHIFT = 16;
+    public static final int ROUNDING = 1 << (SHIFT - 1);
+
+    private Luma() {
+    }
+
+    /**
+     * This method computes the fixed point luma of a single argb pixel
+     * @param argb the pixel
+     * @return returns the gray value in the range 0 - 255
+     */
+    public static int luma(int argb) {
+        int red = (argb >> 16) & 0xff;
+        int green = (argb >> 8) & 0xff;
+        int blue = argb & 0xff;
+        return (RED_WEIGHT * red + GREEN_WEIGHT * green + BLUE_WEIGHT * blue + ROUNDING) >>> SHIFT;
+    }
+
+    /**
+     * This method converts a run of argb pixels into luma bytes
+     * @param source argb pixels
+     * @param sourceOffset index of the first pixel to convert
+     * @param destination luminance plane
+     * @param destinationOffset index of the first byte to write
+     * @param count number of pixels to convert
+     */
+    public static void argbToLuma(int[] source, int sourceOffset, byte[] destination, int destinationOffset, int count) {
+        int i = SimdSupport.ENABLED ? Lanes.argbToLuma(source, sourceOffset, destination, destinationOffset, count) : 0;
+        for(; i < count; i++){
+            destination[destinationOffset + i] = (byte) luma(source[sourceOffset + i]);
+        }
+    }
+
+    /**
+     * This method replaces a run of argb pixels with their luma value (0 - 255) in place
+     * @param pixels argb pixels
+     * @param offset index of the first pixel to convert
+     * @param count number of pixels to convert
+     */
+    public static void argbToLumaInPlace(int[] pixels, int offset, int count) {
+        int done = SimdSupport.ENABLED ? Lanes.argbToLumaInPlace(pixels, offset, count) : 0;
+        for(int i = offset + done, end = offset + count; i < end; i++){
+            pixels[i] = luma(pixels[i]);
+        }
+    }
+
+    /**
+     * This method replaces a run of argb pixels with their gray equivalent, the alpha channel is kept
+     * @param pixels argb pixels
+     * @param offset index of the first pixel to convert
+     * @param count number of pixels to convert
+     */
+    public static void argbToGrayArgb(int[] pixels, int offset, int count) {
+        int done = SimdSupport.ENABLED ? Lanes.argbToGrayArgb(pixels, offset, count) : 0;
+        for(int i = offset + done, end = offset + count; i < end; i++){
+            int pixel = pixels[i];
+            int grayValue = luma(pixel);
+            pixels[i] = (pixel & 0xff000000) | (grayValue << 16) | (grayValue << 8) | grayValue;
+        }
+    }
+
+    /**
+     * This class holds the Vector API versions of the run conversions. Every method converts the pixels that fill
+     * whole vectors and returns how many that is, the caller converts the rest with the scalar code.
+     */
+    private static final class Lanes {
+        private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+        // bytes with one lane per int lane, so a vector of luma values narrows into it in one conversion
+        private static final VectorSpecies<Byte> BYTES = VectorSpecies.of(byte.class, VectorShape.forBitSize(INTS.length() * 8));
+
+        private Lanes() {
+        }
+
+        static int argbToLuma(int[] source, int sourceOffset, byte[] destination, int destinationOffset, int count) {
+            int upper = INTS.loopBound(count);
+            for(int i = 0; i < upper; i += INTS.length()){
+                IntVector luma = luma(IntVector.fromArray(INTS, source, sourceOffset + i));
+                ((ByteVector) luma.convertShape(VectorOperators.I2B, BYTES, 0)).intoArray(destination, destinationOffset + i);
+            }
+            return upper;
+        }
+
+        static int argbToLumaInPlace(int[] pixels, int offset, int count) {
+            int upper = INTS.loopBound(count);
+            for(int i = 0; i < upper; i += INTS.length()){
+                luma(IntVector.fromArray(INTS, pixels, offset + i)).intoArray(pixels, offset + i);
+            }
+            return upper;
+        }
+
+        static int argbToGrayArgb(int[] pixels, int offset, int count) {
+            int upper = INTS.loopBound(count);
+            for(int i = 0; i < upper; i += INTS.length()){
+                IntVector pixel = IntVector.fromArray(INTS, pixels, offset + i);
+                IntVector gray = luma(pixel);
+                IntVector packed = pixel.and(0xff000000).or(gray.lanewise(VectorOperators.LSHL, 16))
+                        .or(gray.lanewise(VectorOperators.LSHL, 8)).or(gray);
+                packed.intoArray(pixels, offset + i);
+            }
+            return upper;
+        }
+
+        /**
+         * This method computes the fixed point luma of every lane
+         */
+        private static IntVector luma(IntVector pixel) {
+            IntVector red = pixel.lanewise(VectorOperators.LSHR, 16).and(0xff);
+            IntVector green = pixel.lanewise(VectorOperators.LSHR, 8).and(0xff);
+            IntVector blue = pixel.and(0xff);
+            return red.mul(RED_WEIGHT)
+                    .add(green.mul(GREEN_WEIGHT))
+                    .add(blue.mul(BLUE_WEIGHT))
+                    .add(ROUNDING)
+                    .lanewise(VectorOperators.LSHR, SHIFT);
+        }
+    }
+}
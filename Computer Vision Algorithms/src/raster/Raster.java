@@ -0,0 +1,263 @@
+package raster;
+
+/**
+ * This class is a plain in-memory image that does not need the JavaFX toolkit: either packed argb pixels in an int[]
+ * (ARGB) or one unsigned luma byte per pixel in a byte[] (GRAY). Pixel (x, y) is stored at offset + y * stride + x,
+ * so a raster can be a view over part of a larger array (see crop). Rasters share their array, nothing is copied
+ * unless a method says so.
+ */
+public final class Raster {
+    /**
+     * This enum defines how the pixels of a raster are stored
+     */
+    public enum Type { ARGB, GRAY }
+
+    /*
+        class variables
+     */
+    private final Type type;
+    private final int width;
+    private final int height;
+    private final int offset;
+    private final int stride;
+    private final int[] argb; // null for GRAY rasters
+    private final byte[] gray; // null for ARGB rasters
+
+    private Raster(Type type, int[] argb, byte[] gray, int offset, int width, int height, int stride) {
+        int length = argb != null ? argb.length : gray.length;
+        if(width < 1 || height < 1 || offset < 0 || stride < width || (long) offset + (long) (height - 1) * stride + width > length){
+            throw new IllegalArgumentException("the array does not hold a " + width + "x" + height + " raster with stride " + stride);
+        }
+        this.type = type;
+        this.argb = argb;
+        this.gray = gray;
+        this.offset = offset;
+        this.width = width;
+        this.height = height;
+        this.stride = stride;
+    }
+
+    /**
+     * This method allocates a packed argb raster, every pixel starts transparent black
+     * @param width width of the raster
+     * @param height height of the raster
+     * @return returns the raster
+     */
+    public static Raster createArgb(int width, int height) {
+        return new Raster(Type.ARGB, new int[width * height], null, 0, width, height, width);
+    }
+
+    /**
+     * This method allocates a gray raster, every pixel starts black
+     * @param width width of the raster
+     * @param height height of the raster
+     * @return returns the raster
+     */
+    public static Raster createGray(int width, int height) {
+        return new Raster(Type.GRAY, null, new byte[width * height], 0, width, height, width);
+    }
+
+    /**
+     * This method wraps argb pixels that are already in memory
+     * @param pixels the pixels
+     * @param offset index of pixel (0, 0)
+     * @param width width of the raster
+     * @param height height of the raster
+     * @param stride distance between two rows
+     * @return returns the raster
+     */
+    public static Raster ofArgb(int[] pixels, int offset, int width, int height, int stride) {
+        return new Raster(Type.ARGB, pixels, null, offset, width, height, stride);
+    }
+
+    /**
+     * This method wraps a luminance plane that is already in memory
+     * @param luma the plane
+     * @param offset index of pixel (0, 0)
+     * @param width width of the raster
+     * @param height height of the raster
+     * @param stride distance between two rows
+     * @return returns the raster
+     */
+    public static Raster ofGray(byte[] luma, int offset, int width, int height, int stride) {
+        return new Raster(Type.GRAY, null, luma, offset, width, height, stride);
+    }
+
+    /**
+     * @return returns how the pixels are stored
+     */
+    public Type getType() {
+        return this.type;
+    }
+
+    /**
+     * @return returns true for a GRAY raster
+     */
+    public boolean isGray() {
+        return this.type == Type.GRAY;
+    }
+
+    /**
+     * @return returns the width of the raster
+     */
+    public int getWidth() {
+        return this.width;
+    }
+
+    /**
+     * @return returns the height of the raster
+     */
+    public int getHeight() {
+        return this.height;
+    }
+
+    /**
+     * @return returns the index of pixel (0, 0) in the backing array
+     */
+    public int getOffset() {
+        return this.offset;
+    }
+
+    /**
+     * @return returns the distance between two rows in the backing array
+     */
+    public int getStride() {
+        return this.stride;
+    }
+
+    /**
+     * @return returns the backing array of an ARGB raster
+     */
+    public int[] getArgbData() {
+        if(this.argb == null) throw new IllegalStateException("the raster stores gray pixels");
+        return this.argb;
+    }
+
+    /**
+     * @return returns the backing array of a GRAY raster
+     */
+    public byte[] getGrayData() {
+        if(this.gray == null) throw new IllegalStateException("the raster stores argb pixels");
+        return this.gray;
+    }
+
+    /**
+     * @return returns true when the rows follow each other without gaps from index 0, so the backing array can be
+     * used directly as a packed raster
+     */
+    public boolean isPacked() {
+        return this.offset == 0 && this.stride == this.width;
+    }
+
+    /**
+     * @return returns the argb value of a pixel, gray pixels are returned opaque
+     */
+    public int getArgb(int x, int y) {
+        checkPixel(x, y);
+        if(this.argb != null) return this.argb[this.offset + y * this.stride + x];
+        int level = this.gray[this.offset + y * this.stride + x] & 0xff;
+        return 0xff000000 | (level << 16) | (level << 8) | level;
+    }
+
+    /**
+     * @return returns the luma (0 - 255) of a pixel
+     */
+    public int getLuma(int x, int y) {
+        checkPixel(x, y);
+        if(this.gray != null) return this.gray[this.offset + y * this.stride + x] & 0xff;
+        return Luma.luma(this.argb[this.offset + y * this.stride + x]);
+    }
+
+    /**
+     * This method copies a row as argb pixels, gray pixels are returned opaque
+     * @param y the row
+     * @param destination array to write to
+     * @param destinationOffset index of the first pixel to write
+     */
+    public void readArgbRow(int y, int[] destination, int destinationOffset) {
+        int start = this.offset + y * this.stride;
+        if(this.argb != null){
+            System.arraycopy(this.argb, start, destination, destinationOffset, this.width);
+            return;
+        }
+        for(int x = 0; x < this.width; x++){
+            int level = this.gray[start + x] & 0xff;
+            destination[destinationOffset + x] = 0xff000000 | (level << 16) | (level << 8) | level;
+        }
+    }
+
+    /**
+     * This method copies a row as luma values (one unsigned byte per pixel)
+     * @param y the row
+     * @param destination array to write to
+     * @param destinationOffset index of the first pixel to write
+     */
+    public void readLumaRow(int y, byte[] destination, int destinationOffset) {
+        int start = this.offset + y * this.stride;
+        if(this.gray != null){
+            System.arraycopy(this.gray, start, destination, destinationOffset, this.width);
+        } else {
+            Luma.argbToLuma(this.argb, start, destination, destinationOffset, this.width);
+        }
+    }
+
+    /**
+     * This method copies the raster into packed argb pixels (row major, stride equal to the width)
+     * @param destination the array to fill, a new one is allocated when it is null or too small
+     * @return returns the pixels
+     */
+    public int[] toArgbPixels(int[] destination) {
+        if(destination == null || destination.length < this.width * this.height){
+            destination = new int[this.width * this.height];
+        }
+        for(int y = 0; y < this.height; y++){
+            readArgbRow(y, destination, y * this.width);
+        }
+        return destination;
+    }
+
+    /**
+     * This method copies the raster into a packed luminance plane (row major, stride equal to the width)
+     * @param destination the plane to fill, a new one is allocated when it is null or too small
+     * @return returns the plane
+     */
+    public byte[] toLuminancePlane(byte[] destination) {
+        if(destination == null || destination.length < this.width * this.height){
+            destination = new byte[this.width * this.height];
+        }
+        if(this.argb != null && isPacked()){
+            Luma.argbToLuma(this.argb, 0, destination, 0, this.width * this.height);
+            return destination;
+        }
+        for(int y = 0; y < this.height; y++){
+            readLumaRow(y, destination, y * this.width);
+        }
+        return destination;
+    }
+
+    /**
+     * This method returns a view over a rectangle of the raster, the pixels are shared
+     * @param x left column of the rectangle
+     * @param y top row of the rectangle
+     * @param width width of the rectangle
+     * @param height height of the rectangle
+     * @return returns the view
+     */
+    public Raster crop(int x, int y, int width, int height) {
+        if(x < 0 || y < 0 || width < 1 || height < 1 || x + width > this.width || y + height > this.height){
+            throw new IllegalArgumentException("the crop region is outside the raster");
+        }
+        return new Raster(this.type, this.argb, this.gray, this.offset + y * this.stride + x, width, height, this.stride);
+    }
+
+    @Override
+    public String toString() {
+        return "Raster{" + this.type + " " + this.width + "x" + this.height + ", stride=" + this.stride + "}";
+    }
+
+    private void checkPixel(int x, int y) {
+        if(x < 0 || y < 0 || x >= this.width || y >= this.height){
+            throw new IndexOutOfBoundsException("pixel (" + x + ", " + y + ") is outside the raster");
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package raster;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+
+/**
+ * This class decodes image files into Rasters without the JavaFX toolkit. PGM and PPM files (binary P5 / P6 and plain
+ * P2 / P3, any maxval up to 65535) are parsed directly, everything else (PNG, JPEG, BMP, GIF ...) goes through
+ * javax.imageio. Gray images decode to GRAY rasters and everything else to opaque or translucent ARGB rasters.
+ * When the image is only needed at a small size the readForTarget methods decode every n-th pixel of every n-th row
+ * (source subsampling), which skips most of the colour conversion and memory of a full decode.
+ */
+public final class RasterDecoder {
+    /*
+        a subsampled decode is kept at least this many times larger than the target in both directions, so the
+        blur and nearest neighbour resampling that follow still see more than one pixel per output sample
+     */
+    public static final int MIN_OVERSAMPLING = 2;
+
+    private RasterDecoder() {
+    }
+
+    /**
+     * This method picks the coarsest subsampling step that keeps the decoded image at least MIN_OVERSAMPLING times
+     * the target size in both directions
+     * @param width width of the source image
+     * @param height height of the source image
+     * @param targetWidth width the image will be resampled to
+     * @param targetHeight height the image will be resampled to
+     * @return returns the step (1 for a full decode)
+     */
+    public static int subsamplingFactor(int width, int height, int targetWidth, int targetHeight) {
+        if(targetWidth < 1 || targetHeight < 1) return 1;
+        long horizontal = width / ((long) targetWidth * MIN_OVERSAMPLING);
+        long vertical = height / ((long) targetHeight * MIN_OVERSAMPLING);
+        return (int) Math.max(1, Math.min(horizontal, vertical));
+    }
+
+    /**
+     * This method decodes a file at the coarsest subsampling that still suits resampling it to the target size
+     * @param path the file
+     * @param targetWidth width the image will be resampled to
+     * @param targetHeight height the image will be resampled to
+     * @return returns the decoded raster, smaller than the image when it is much larger than the target
+     * @throws IOException when the file cannot be read or is not a supported image
+     */
+    public static Raster readForTarget(Path path, int targetWidth, int targetHeight) throws IOException {
+        try(InputStream input = new BufferedInputStream(Files.newInputStream(path))){
+            return readForTarget(input, targetWidth, targetHeight);
+        } catch (IOException e){
+            throw new IOException("could not decode " + path + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * This method decodes a stream at the coarsest subsampling that still suits resampling it to the target size,
+     * the image size is read from the header before any pixel is decoded
+     * @param input the stream, it is wrapped in a BufferedInputStream when it does not support mark / reset
+     * @param targetWidth width the image will be resampled to
+     * @param targetHeight height the image will be resampled to
+     * @return returns the decoded raster, smaller than the image when it is much larger than the target
+     * @throws IOException when the stream cannot be read or is not a supported image
+     */
+    public static Raster readForTarget(InputStream input, int targetWidth, int targetHeight) throws IOException {
+        if(!input.markSupported()){
+            input = new BufferedInputStream(input);
+        }
+        if(isNetpbm(input)){
+            return readNetpbm(input, targetWidth, targetHeight);
+        }
+        try(ImageInputStream stream = ImageIO.createImageInputStream(input)){
+            ImageReader reader = readerFor(stream);
+            try{
+                reader.setInput(stream, true, true);
+                int factor = subsamplingFactor(reader.getWidth(0), reader.getHeight(0), targetWidth, targetHeight);
+                ImageReadParam param = reader.getDefaultReadParam();
+                if(factor > 1){
+                    param.setSourceSubsampling(factor, factor, 0, 0);
+                }
+                return fromBufferedImage(reader.read(0, param));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * This method reads only the header of an image to find its size
+     * @param input the stream, it is consumed
+     * @return returns {width, height}
+     * @throws IOException when the stream cannot be read or is not a supported image
+     */
+    public static int[] readSize(InputStream input) throws IOException {
+        if(!input.markSupported()){
+            input = new BufferedInputStream(input);
+        }
+        if(isNetpbm(input)){
+            input.skipNBytes(2);
+            return new int[]{readHeaderInt(input), readHeaderInt(input)};
+        }
+        try(ImageInputStream stream = ImageIO.createImageInputStream(input)){
+            ImageReader reader = readerFor(stream);
+            try{
+                reader.setInput(stream, true, true);
+                return new int[]{reader.getWidth(0), reader.getHeight(0)};
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * This method decodes a file, choosing the decoder from the first bytes of the file rather than its name
+     * @param path the file
+     * @return returns the decoded raster
+     * @throws IOException when the file cannot be read or is not a supported image
+     */
+    public static Raster read(Path path) throws IOException {
+        try(InputStream input = new BufferedInputStream(Files.newInputStream(path))){
+            return read(input);
+        } catch (IOException e){
+            throw new IOException("could not decode " + path + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * This method decodes a stream, the stream is read to the end of the image but not closed
+     * @param input the stream, it is wrapped in a BufferedInputStream when it does not support mark / reset
+     * @return returns the decoded raster
+     * @throws IOException when the stream cannot be read or is not a supported image
+     */
+    public static Raster read(InputStream input) throws IOException {
+        if(!input.markSupported()){
+            input = new BufferedInputStream(input);
+        }
+        if(isNetpbm(input)){
+            return readNetpbm(input);
+        }
+        BufferedImage image = ImageIO.read(input);
+        if(image == null){
+            throw new IOException("unsupported image format");
+        }
+        return fromBufferedImage(image);
+    }
+
+    /**
+     * This method converts a decoded java.awt image. 8 bit gray and int argb / rgb images are copied straight from
+     * their data buffer, other types are converted through getRGB.
+     * @param image the image
+     * @return returns the raster
+     */
+    public static Raster fromBufferedImage(BufferedImage image) {
+        int width = image.getWidth(), height = image.getHeight();
+        switch (image.getType()) {
+            case BufferedImage.TYPE_BYTE_GRAY -> {
+                // the gray samples are already the luma, getRGB would push them through a colour space conversion
+                byte[] samples = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+                Raster raster = Raster.createGray(width, height);
+                copyRows(samples, image, raster.getGrayData(), width, height);
+                return raster;
+            }
+            case BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_INT_RGB -> {
+                int[] samples = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+                Raster raster = Raster.createArgb(width, height);
+                int[] pixels = raster.getArgbData();
+                int stride = scanlineStride(image, width);
+                int opaque = image.getType() == BufferedImage.TYPE_INT_RGB ? 0xff000000 : 0;
+                for(int y = 0; y < height; y++){
+                    int from = y * stride, to = y * width;
+                    for(int x = 0; x < width; x++){
+                        pixels[to + x] = samples[from + x] | opaque;
+                    }
+                }
+                return raster;
+            }
+            default -> {
+                Raster raster = Raster.createArgb(width, height);
+                image.getRGB(0, 0, width, height, raster.getArgbData(), 0, width);
+                return raster;
+            }
+        }
+    }
+
+    /**
+     * This method parses a PGM (P2 / P5) or PPM (P3 / P6) image, samples wider than 8 bits are scaled down to 0 - 255
+     * @param input the stream positioned on the magic number
+     * @return returns a GRAY raster for PGM and an opaque ARGB raster for PPM
+     * @throws IOException when the header or the pixel data is malformed
+     */
+    public static Raster readNetpbm(InputStream input) throws IOException {
+        return readNetpbm(input, 0, 0);
+    }
+
+    /**
+     * This method parses a PGM or PPM image keeping every n-th pixel of every n-th row, n being the subsampling
+     * factor for the target size (a target of 0 x 0 keeps every pixel)
+     */
+    private static Raster readNetpbm(InputStream input, int targetWidth, int targetHeight) throws IOException {
+        if(input.read() != 'P'){
+            throw new IOException("not a netpbm file");
+        }
+        int format = input.read();
+        boolean plain = format == '2' || format == '3';
+        boolean color = format == '3' || format == '6';
+        if(format != '2' && format != '3' && format != '5' && format != '6'){
+            throw new IOException("unsupported netpbm format P" + (char) format);
+        }
+        int width = readHeaderInt(input), height = readHeaderInt(input), maxValue = readHeaderInt(input);
+        if(width < 1 || height < 1 || maxValue < 1 || maxValue > 65535){
+            throw new IOException("invalid netpbm header " + width + "x" + height + " maxval " + maxValue);
+        }
+        if((long) width * height > Integer.MAX_VALUE){
+            throw new IOException("the image is too large for a single raster");
+        }
+        // exactly one whitespace byte separates the header from binary data, readHeaderInt consumed it
+        int channels = color ? 3 : 1;
+        int sampleBytes = maxValue > 255 ? 2 : 1;
+        int[] scale = scaleTable(maxValue);
+        int factor = subsamplingFactor(width, height, targetWidth, targetHeight);
+        int outputWidth = (width + factor - 1) / factor, outputHeight = (height + factor - 1) / factor;
+        Raster raster = color ? Raster.createArgb(outputWidth, outputHeight) : Raster.createGray(outputWidth, outputHeight);
+        byte[] row = plain ? null : new byte[width * channels * sampleBytes];
+        int[] samples = new int[width * channels];
+        for(int y = 0; y < height; y++){
+            if(plain){
+                for(int i = 0; i < samples.length; i++) samples[i] = readHeaderInt(input);
+            } else {
+                readFully(input, row);
+                for(int i = 0; i < samples.length; i++){
+                    samples[i] = sampleBytes == 1 ? row[i] & 0xff : ((row[2 * i] & 0xff) << 8) | (row[2 * i + 1] & 0xff);
+                }
+            }
+            // the rows in between are read (the format has no index) but not converted
+            if(y % factor != 0) continue;
+            for(int i = 0; i < samples.length; i++){
+                if(samples[i] > maxValue) throw new IOException("sample " + samples[i] + " exceeds maxval " + maxValue);
+                samples[i] = scale == null ? samples[i] : scale[samples[i]];
+            }
+            int out = (y / factor) * outputWidth;
+            if(color){
+                int[] pixels = raster.getArgbData();
+                for(int x = 0; x < outputWidth; x++){
+                    int i = 3 * x * factor;
+                    pixels[out + x] = 0xff000000 | (samples[i] << 16) | (samples[i + 1] << 8) | samples[i + 2];
+                }
+            } else {
+                byte[] luma = raster.getGrayData();
+                for(int x = 0; x < outputWidth; x++){
+                    luma[out + x] = (byte) samples[x * factor];
+                }
+            }
+        }
+        return raster;
+    }
+
+    /**
+     * @return returns the table that rescales samples from 0 - maxValue to 0 - 255 with rounding, null when maxValue is 255
+     */
+    private static int[] scaleTable(int maxValue) {
+        if(maxValue == 255) return null;
+        int[] table = new int[maxValue + 1];
+        for(int sample = 0; sample <= maxValue; sample++){
+            table[sample] = (sample * 255 + maxValue / 2) / maxValue;
+        }
+        return table;
+    }
+
+    /**
+     * This method reads a decimal number of a netpbm header, skipping whitespace and # comments before it and
+     * consuming the single whitespace byte after it
+     */
+    private static int readHeaderInt(InputStream input) throws IOException {
+        int c = input.read();
+        while(true){
+            if(c == '#'){
+                while(c != '\n' && c != '\r' && c != -1) c = input.read();
+            } else if(c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == 0x0b){
+                c = input.read();
+            } else {
+                break;
+            }
+        }
+        if(c < '0' || c > '9'){
+            throw c == -1 ? new EOFException("unexpected end of netpbm data") : new IOException("unexpected character '" + (char) c + "' in netpbm data");
+        }
+        long value = 0;
+        while(c >= '0' && c <= '9'){
+            value = value * 10 + (c - '0');
+            if(value > Integer.MAX_VALUE) throw new IOException("number too large in netpbm data");
+            c = input.read();
+        }
+        return (int) value;
+    }
+
+    /**
+     * @return returns true when the stream starts with a supported netpbm magic number, the stream is not moved
+     */
+    private static boolean isNetpbm(InputStream input) throws IOException {
+        input.mark(2);
+        int first = input.read(), second = input.read();
+        input.reset();
+        return first == 'P' && second >= '2' && second <= '6' && second != '4';
+    }
+
+    private static ImageReader readerFor(ImageInputStream stream) throws IOException {
+        Iterator<ImageReader> readers = stream == null ? null : ImageIO.getImageReaders(stream);
+        if(readers == null || !readers.hasNext()){
+            throw new IOException("unsupported image format");
+        }
+        return readers.next();
+    }
+
+    private static void readFully(InputStream input, byte[] buffer) throws IOException {
+        int read = input.readNBytes(buffer, 0, buffer.length);
+        if(read < buffer.length){
+            throw new EOFException("the netpbm pixel data is truncated");
+        }
+    }
+
+    private static int scanlineStride(BufferedImage image, int width) {
+        if(image.getRaster().getSampleModel() instanceof SinglePixelPackedSampleModel model){
+            return model.getScanlineStride();
+        }
+        return width;
+    }
+
+    private static void copyRows(byte[] samples, BufferedImage image, byte[] destination, int width, int height) {
+        int stride = image.getRaster().getSampleModel() instanceof ComponentSampleModel model ? model.getScanlineStride() : width;
+        for(int y = 0; y < height; y++){
+            System.arraycopy(samples, y * stride, destination, y * width, width);
+        }
+    }
+}
@@ -0,0 +1,458 @@
+package storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class caches the feature vectors of image files so that files which have not changed are not decoded again.
+ * Vectors are keyed by a 64 bit hash of the file content, so a renamed or copied file is a hit as well. Before any
+ * byte is read, the path, modification time and size of the file are compared with those seen last time, and when
+ * they match the content hash is taken from there without reading the file.
+ * <p>
+ * The cache has two tiers: a memory tier of at most maxMemoryBytes, kept in least recently used order, and a disk
+ * tier in a directory of its own, where vectors evicted from memory are spilled (one small file per vector). close
+ * (or flush) spills the memory tier too and saves the path stamps next to the vectors, so a later run with the same
+ * directory starts with every vector known and does not even read the files that have not changed.
+ * A cache sits in front of one Extractor: use one directory per extractor (and per target size) so that vectors of
+ * different extractors never mix. The extractor may also be given per call, as IngestionPipeline does to run the
+ * extractor of its worker thread; it must then compute the same vectors every time. Hits and misses of each tier are
+ * counted. The cache can be used from several threads; two threads missing on the same file at once may both run the
+ * extractor.
+ */
+public class FeatureCache implements Closeable {
+    /**
+     * This interface computes the feature vector of a file, for example decoding the content with RasterDecoder and
+     * running a FusedFeatureExtractor or flattenImage on it
+     */
+    @FunctionalInterface
+    public interface Extractor {
+        /**
+         * @param file the file
+         * @param content the bytes of the file
+         * @return returns the feature vector
+         * @throws IOException when the content cannot be decoded
+         */
+        int[] extract(Path file, byte[] content) throws IOException;
+    }
+
+    /**
+     * This class is what the cache remembers about a path: enough to tell the file has not changed, and its hash
+     */
+    private record Stamp(long modified, long size, long hash) {
+    }
+
+    /*
+        memory accounted for every entry of the memory tier on top of its vector
+     */
+    private static final long ENTRY_OVERHEAD = 64;
+    private static final String EXTENSION = ".vec";
+    private static final String STAMPS_FILE = "stamps.bin";
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    /*
+        class variables
+     */
+    private final Path directory;
+    private final long maxMemoryBytes;
+    private final Extractor extractor;
+    private final Map<Path, Stamp> stamps = new ConcurrentHashMap<>();
+    private final LinkedHashMap<Long, int[]> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes;
+    private final LongAdder memoryHits = new LongAdder();
+    private final LongAdder diskHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder stampHits = new LongAdder();
+    private final LongAdder spilled = new LongAdder();
+
+    /**
+     * This constructor creates a cache whose extractor is given on every call, get(Path) cannot be used
+     * @param directory the directory of the disk tier, created when missing
+     * @param maxMemoryBytes the largest amount of memory the memory tier may hold
+     * @throws IOException when the directory cannot be created or its stamps cannot be read
+     */
+    public FeatureCache(Path directory, long maxMemoryBytes) throws IOException {
+        this(directory, maxMemoryBytes, null);
+    }
+
+    /**
+     * @param directory the directory of the disk tier, created when missing
+     * @param maxMemoryBytes the largest amount of memory the memory tier may hold
+     * @param extractor computes the vectors the cache does not have, null when it is given on every call
+     * @throws IOException when the directory cannot be created or its stamps cannot be read
+     */
+    public FeatureCache(Path directory, long maxMemoryBytes, Extractor extractor) throws IOException {
+        if(maxMemoryBytes < 0){
+            throw new IllegalArgumentException("the memory bound must not be negative");
+        }
+        this.directory = Files.createDirectories(directory);
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.extractor = extractor;
+        loadStamps();
+    }
+
+    /**
+     * This method returns the feature vector of a file, from the memory tier, the disk tier or the extractor
+     * @param file the file
+     * @return returns a copy of the vector, the caller may modify it
+     * @throws IOException when the file cannot be read or the extractor fails
+     */
+    public int[] get(Path file) throws IOException {
+        if(this.extractor == null){
+            throw new IllegalStateException("the cache has no extractor of its own");
+        }
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        int[] vector = getIfUnchanged(file, attributes);
+        return vector != null ? vector : get(file, attributes, Files.readAllBytes(file), this.extractor);
+    }
+
+    /**
+     * This method returns the vector of a file that has not changed since the cache last saw it, without reading it
+     * @param file the file
+     * @param attributes the attributes of the file, read before its content if it has to be read after all
+     * @return returns a copy of the vector, null when the file changed or its vector is not cached
+     * @throws IOException when the disk tier cannot be read
+     */
+    public int[] getIfUnchanged(Path file, BasicFileAttributes attributes) throws IOException {
+        Stamp stamp = this.stamps.get(file);
+        if(stamp == null || stamp.modified != attributes.lastModifiedTime().toMillis() || stamp.size != attributes.size()){
+            return null;
+        }
+        // the file looks unchanged: the hash is known without reading it
+        int[] vector = lookup(stamp.hash);
+        if(vector == null) return null;
+        this.stampHits.increment();
+        return vector.clone();
+    }
+
+    /**
+     * This method returns the vector of a file already read, from the memory tier, the disk tier or the extractor
+     * @param file the file
+     * @param attributes the attributes of the file, read before its content so that a later change is noticed
+     * @param content the bytes of the file
+     * @param extractor computes the vector when it is not cached
+     * @return returns a copy of the vector, the caller may modify it
+     * @throws IOException when the disk tier cannot be read or the extractor fails
+     */
+    public int[] get(Path file, BasicFileAttributes attributes, byte[] content, Extractor extractor) throws IOException {
+        long hash = contentHash(content);
+        this.stamps.put(file, new Stamp(attributes.lastModifiedTime().toMillis(), attributes.size(), hash));
+        int[] vector = lookup(hash);
+        if(vector == null){
+            this.misses.increment();
+            vector = extractor.extract(file, content).clone();
+            put(hash, vector);
+        }
+        return vector.clone();
+    }
+
+    /**
+     * This method forgets what the cache knows about a path, for example after the file has been deleted. Its vector
+     * stays cached under its content hash.
+     * @param file the file
+     */
+    public void invalidate(Path file) {
+        this.stamps.remove(file);
+    }
+
+    /**
+     * This method spills the whole memory tier to disk, it stays in memory as well, and saves the path stamps
+     * @throws IOException when a vector or the stamps cannot be written
+     */
+    public void flush() throws IOException {
+        List<Map.Entry<Long, int[]>> entries;
+        synchronized (this.memory){
+            entries = new ArrayList<>(this.memory.entrySet());
+        }
+        for(Map.Entry<Long, int[]> entry : entries){
+            spill(entry.getKey(), entry.getValue());
+        }
+        saveStamps();
+    }
+
+    /**
+     * This method empties both tiers and forgets every path
+     * @throws IOException when the disk tier cannot be deleted
+     */
+    public void clear() throws IOException {
+        synchronized (this.memory){
+            this.memory.clear();
+            this.memoryBytes = 0;
+        }
+        this.stamps.clear();
+        Files.deleteIfExists(this.directory.resolve(STAMPS_FILE));
+        try(var files = Files.walk(this.directory)){
+            for(Iterator<Path> it = files.filter(p -> p.getFileName().toString().endsWith(EXTENSION)).iterator(); it.hasNext(); ){
+                Files.deleteIfExists(it.next());
+            }
+        }
+    }
+
+    /**
+     * This method spills the memory tier, the cache remains usable
+     * @throws IOException when a vector cannot be written
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+    /**
+     * @return returns the number of lookups served by the memory tier
+     */
+    public long getMemoryHits() {
+        return this.memoryHits.sum();
+    }
+
+    /**
+     * @return returns the number of lookups served by the disk tier
+     */
+    public long getDiskHits() {
+        return this.diskHits.sum();
+    }
+
+    /**
+     * @return returns the number of lookups that had to run the extractor
+     */
+    public long getMisses() {
+        return this.misses.sum();
+    }
+
+    /**
+     * @return returns the number of hits found without reading the file, through its modification time and size
+     */
+    public long getStampHits() {
+        return this.stampHits.sum();
+    }
+
+    /**
+     * @return returns the share of lookups that did not run the extractor, 0 before the first lookup
+     */
+    public double getHitRate() {
+        long hits = getMemoryHits() + getDiskHits(), total = hits + getMisses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * @return returns the number of vectors written to the disk tier
+     */
+    public long getSpilled() {
+        return this.spilled.sum();
+    }
+
+    /**
+     * @return returns the memory held by the memory tier
+     */
+    public long getMemoryBytes() {
+        synchronized (this.memory){
+            return this.memoryBytes;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("memory hits %d, disk hits %d (unread files %d), misses %d, hit rate %.1f%%, %d bytes in memory, %d spilled",
+                getMemoryHits(), getDiskHits(), getStampHits(), getMisses(), 100 * getHitRate(), getMemoryBytes(), getSpilled());
+    }
+
+    /**
+     * This method hashes bytes into 64 bits, eight bytes at a time, strong enough that two different files colliding
+     * is not a concern in practice
+     * @param bytes the bytes
+     * @return returns the hash
+     */
+    public static long contentHash(byte[] bytes) {
+        long hash = 0x9E3779B97F4A7C15L ^ bytes.length;
+        int i = 0;
+        for(; i + 8 <= bytes.length; i += 8){
+            hash = (hash ^ mix((long) LONGS.get(bytes, i))) * 0xBF58476D1CE4E5B9L;
+            hash = Long.rotateLeft(hash, 31);
+        }
+        long tail = 0;
+        for(int shift = 0; i < bytes.length; i++, shift += 8){
+            tail |= (bytes[i] & 0xffL) << shift;
+        }
+        hash = (hash ^ mix(tail)) * 0xBF58476D1CE4E5B9L;
+        return mix(hash);
+    }
+
+    /**
+     * This method is the finalizer of splitmix64, every input bit affects every output bit
+     */
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+
+    /**
+     * This method looks a hash up in memory and then on disk, a vector found on disk is brought back into memory
+     */
+    private int[] lookup(long hash) throws IOException {
+        synchronized (this.memory){
+            int[] vector = this.memory.get(hash);
+            if(vector != null){
+                this.memoryHits.increment();
+                return vector;
+            }
+        }
+        int[] vector = readSpilled(hash);
+        if(vector != null){
+            this.diskHits.increment();
+            put(hash, vector);
+        }
+        return vector;
+    }
+
+    /**
+     * This method adds a vector to the memory tier, spilling the least recently used vectors while it is too large
+     */
+    private void put(long hash, int[] vector) throws IOException {
+        List<Map.Entry<Long, int[]>> evicted = new ArrayList<>();
+        synchronized (this.memory){
+            int[] previous = this.memory.put(hash, vector);
+            if(previous != null) this.memoryBytes -= cost(previous);
+            this.memoryBytes += cost(vector);
+            Iterator<Map.Entry<Long, int[]>> eldest = this.memory.entrySet().iterator();
+            while(this.memoryBytes > this.maxMemoryBytes && eldest.hasNext()){
+                Map.Entry<Long, int[]> entry = eldest.next();
+                evicted.add(Map.entry(entry.getKey(), entry.getValue()));
+                this.memoryBytes -= cost(entry.getValue());
+                eldest.remove();
+            }
+        }
+        // written outside the lock so that other threads keep hitting the memory tier meanwhile
+        for(Map.Entry<Long, int[]> entry : evicted){
+            spill(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private static long cost(int[] vector) {
+        return ENTRY_OVERHEAD + 4L * vector.length;
+    }
+
+    /**
+     * This method returns the file of a hash, spread over 256 subdirectories to keep directories small
+     */
+    private Path fileOf(long hash) {
+        String name = String.format("%016x", hash);
+        return this.directory.resolve(name.substring(0, 2)).resolve(name + EXTENSION);
+    }
+
+    /**
+     * This method writes a vector to the disk tier unless it is already there, through a temporary file so that a
+     * reader never sees half a vector
+     */
+    private void spill(long hash, int[] vector) throws IOException {
+        Path file = fileOf(hash);
+        if(Files.exists(file)) return;
+        Files.createDirectories(file.getParent());
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 4 * vector.length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(vector.length);
+        buffer.asIntBuffer().put(vector);
+        buffer.clear();
+        Path temporary = Files.createTempFile(file.getParent(), "spill", ".tmp");
+        try{
+            try(FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)){
+                while(buffer.hasRemaining()) channel.write(buffer);
+            }
+            moveIntoPlace(temporary, file);
+            this.spilled.increment();
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private static void moveIntoPlace(Path temporary, Path file) throws IOException {
+        try{
+            Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e){
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * This method writes every stamp to the stamps file: path, modification time, size and content hash. Like the
+     * vectors it goes through a temporary file, so a crash leaves the previous stamps in place
+     */
+    private void saveStamps() throws IOException {
+        Path temporary = Files.createTempFile(this.directory, "stamps", ".tmp");
+        try{
+            try(DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))){
+                for(Map.Entry<Path, Stamp> entry : this.stamps.entrySet()){
+                    Stamp stamp = entry.getValue();
+                    output.writeBoolean(true);
+                    output.writeUTF(entry.getKey().toString());
+                    output.writeLong(stamp.modified);
+                    output.writeLong(stamp.size);
+                    output.writeLong(stamp.hash);
+                }
+                // the map may change while it is written, so the end is marked rather than the count written first
+                output.writeBoolean(false);
+            }
+            moveIntoPlace(temporary, this.directory.resolve(STAMPS_FILE));
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * This method reads the stamps saved by an earlier flush, if any
+     */
+    private void loadStamps() throws IOException {
+        Path file = this.directory.resolve(STAMPS_FILE);
+        if(!Files.exists(file)) return;
+        try(DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))){
+            while(input.readBoolean()){
+                Path path = Path.of(input.readUTF());
+                this.stamps.put(path, new Stamp(input.readLong(), input.readLong(), input.readLong()));
+            }
+        } catch (EOFException e){
+            throw new IOException("corrupt cache stamps " + file, e);
+        }
+    }
+
+    /**
+     * This method reads a vector from the disk tier
+     * @return returns the vector, null when the hash is not there
+     */
+    private int[] readSpilled(long hash) throws IOException {
+        byte[] bytes;
+        try{
+            bytes = Files.readAllBytes(fileOf(hash));
+        } catch (NoSuchFileException e){
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        int length = bytes.length >= 4 ? buffer.getInt() : -1;
+        if(length < 0 || 4L + 4L * length != bytes.length){
+            throw new IOException("corrupt cache entry " + fileOf(hash));
+        }
+        int[] vector = new int[length];
+        buffer.asIntBuffer().get(vector);
+        return vector;
+    }
+}
@@ -0,0 +1,532 @@
+package storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * This class is an append-only store of fixed length feature vectors on disk, so vectors survive a restart without
+ * decoding any image again. The vector file has a 64 byte header followed by the vectors back to back (row major),
+ * each either dimension unsigned bytes (BYTE, for instance flattened gray values) or dimension little endian floats
+ * (FLOAT). A sidecar file (the vector file name + ".paths") holds the path of every vector, one UTF-8 line per id.
+ * <p>
+ * Opening only reads the header: vectors are read through memory mappings of the file (in chunks of at most 1 GB,
+ * made when first touched), so queries are served straight from the page cache and a collection of millions of
+ * vectors opens instantly. Appends are buffered and become durable at flush (or close), which writes the vectors,
+ * then the paths, then the header - a crash in between leaves the previous, consistent, header in place and the
+ * extra bytes are cut off at the next open. Vectors appended but not flushed yet are read from the append buffer, so
+ * reading them does not force anything to disk. A writable store maps the chunk being appended to at least twice as
+ * far as the data goes (growing the file ahead of it, cut back at close), so reads that follow appends remap it a few
+ * times rather than after every flush. The path table is indexed the first time a path is asked for.
+ * A store may be read from several threads; appends must come from one thread at a time.
+ */
+public class VectorStore implements Closeable {
+    /**
+     * This enum defines how a vector component is stored
+     */
+    public enum ElementType {
+        BYTE(1, 1), FLOAT(4, 2);
+
+        private final int size;
+        private final int code;
+
+        ElementType(int size, int code) {
+            this.size = size;
+            this.code = code;
+        }
+
+        /**
+         * @return returns the number of bytes of one component
+         */
+        public int getSize() {
+            return this.size;
+        }
+
+        private static ElementType ofCode(int code) throws IOException {
+            for(ElementType type : values()){
+                if(type.code == code) return type;
+            }
+            throw new IOException("unknown element type " + code);
+        }
+    }
+
+    /*
+        header layout: magic, version, element type, dimension, vector count, size of the path file
+     */
+    public static final int HEADER_SIZE = 64;
+    private static final int MAGIC = 0x43565653; // "CVVS"
+    private static final int VERSION = 1;
+    private static final int COUNT_OFFSET = 16;
+    private static final int PATHS_LENGTH_OFFSET = 24;
+
+    /*
+        the largest mapping made for one chunk of vectors, and the size of the append buffer
+     */
+    private static final long MAX_CHUNK_BYTES = 1L << 30;
+    private static final int WRITE_BUFFER_BYTES = 1 << 20;
+
+    /*
+        class variables
+     */
+    private final FileChannel vectors;
+    private final FileChannel paths;
+    private final boolean writable;
+    private final ElementType type;
+    private final int dimension;
+    private final int vectorBytes;
+    private final long vectorsPerChunk;
+    private MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+    private long[] chunkVectors = new long[0]; // number of vectors covered by each mapping
+    private volatile long committed; // vectors written and recorded in the header
+    private long pathsLength; // bytes of the path file recorded in the header
+    private long count; // vectors appended, committed or not
+    private final ByteBuffer pendingVectors;
+    private final ByteBuffer pendingPaths;
+    private long[] pathOffsets = new long[0]; // start of every path line, built on demand
+    private long indexedPaths;
+
+    private VectorStore(FileChannel vectors, FileChannel paths, boolean writable, ElementType type, int dimension, long count, long pathsLength) {
+        this.vectors = vectors;
+        this.paths = paths;
+        this.writable = writable;
+        this.type = type;
+        this.dimension = dimension;
+        this.vectorBytes = dimension * type.getSize();
+        this.vectorsPerChunk = Math.max(1, MAX_CHUNK_BYTES / this.vectorBytes);
+        this.committed = count;
+        this.count = count;
+        this.pathsLength = pathsLength;
+        this.pendingVectors = writable ? ByteBuffer.allocateDirect(Math.max(WRITE_BUFFER_BYTES, this.vectorBytes)).order(ByteOrder.LITTLE_ENDIAN) : null;
+        this.pendingPaths = writable ? ByteBuffer.allocate(WRITE_BUFFER_BYTES) : null;
+    }
+
+    /**
+     * This method creates an empty store, replacing any existing one at the same place
+     * @param file the vector file, the path table goes next to it
+     * @param type how components are stored
+     * @param dimension number of components of every vector
+     * @return returns the writable store
+     * @throws IOException when the files cannot be created
+     */
+    public static VectorStore create(Path file, ElementType type, int dimension) throws IOException {
+        if(dimension < 1 || (long) dimension * type.getSize() > MAX_CHUNK_BYTES){
+            throw new IllegalArgumentException("invalid dimension " + dimension);
+        }
+        FileChannel vectors = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileChannel paths = null;
+        try{
+            paths = FileChannel.open(pathsFile(file), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(type.code).putInt(dimension).putLong(0).putLong(0);
+            header.clear();
+            writeFully(vectors, header, 0);
+            vectors.force(true);
+            return new VectorStore(vectors, paths, true, type, dimension, 0, 0);
+        } catch (IOException | RuntimeException e){
+            vectors.close();
+            if(paths != null) paths.close();
+            throw e;
+        }
+    }
+
+    /**
+     * This method opens an existing store
+     * @param file the vector file
+     * @param writable true to allow appending
+     * @return returns the store
+     * @throws IOException when the files cannot be opened or the header is not valid
+     */
+    public static VectorStore open(Path file, boolean writable) throws IOException {
+        StandardOpenOption[] options = writable
+                ? new StandardOpenOption[]{StandardOpenOption.READ, StandardOpenOption.WRITE}
+                : new StandardOpenOption[]{StandardOpenOption.READ};
+        FileChannel vectors = FileChannel.open(file, options);
+        FileChannel paths = null;
+        try{
+            paths = FileChannel.open(pathsFile(file), options);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            if(vectors.read(header, 0) < HEADER_SIZE || header.getInt(0) != MAGIC){
+                throw new IOException(file + " is not a vector store");
+            }
+            if(header.getInt(4) != VERSION){
+                throw new IOException(file + " has unsupported version " + header.getInt(4));
+            }
+            ElementType type = ElementType.ofCode(header.getInt(8));
+            int dimension = header.getInt(12);
+            long count = header.getLong(COUNT_OFFSET), pathsLength = header.getLong(PATHS_LENGTH_OFFSET);
+            long expected = HEADER_SIZE + count * dimension * type.getSize();
+            if(dimension < 1 || count < 0 || vectors.size() < expected || paths.size() < pathsLength){
+                throw new IOException(file + " is truncated");
+            }
+            if(writable){
+                // drop whatever an interrupted flush left after the committed data
+                vectors.truncate(expected);
+                paths.truncate(pathsLength);
+            }
+            return new VectorStore(vectors, paths, writable, type, dimension, count, pathsLength);
+        } catch (IOException | RuntimeException e){
+            vectors.close();
+            if(paths != null) paths.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return returns the file holding the paths of the given vector file
+     */
+    public static Path pathsFile(Path file) {
+        return file.resolveSibling(file.getFileName() + ".paths");
+    }
+
+    /**
+     * @return returns how components are stored
+     */
+    public ElementType getElementType() {
+        return this.type;
+    }
+
+    /**
+     * @return returns the number of components of every vector
+     */
+    public int getDimension() {
+        return this.dimension;
+    }
+
+    /**
+     * @return returns the number of vectors, including those appended but not flushed yet
+     */
+    public synchronized long size() {
+        return this.count;
+    }
+
+    /**
+     * This method appends a vector, BYTE stores clamp every value to 0 - 255
+     * @param path the path of the image the vector comes from, it must not contain a line break
+     * @param vector the vector
+     * @return returns the id of the vector
+     * @throws IOException when the append buffer cannot be flushed
+     */
+    public synchronized long append(String path, int[] vector) throws IOException {
+        checkAppend(path, vector.length);
+        if(this.type == ElementType.BYTE){
+            for(int value : vector) this.pendingVectors.put((byte) Math.min(255, Math.max(0, value)));
+        } else {
+            for(int value : vector) this.pendingVectors.putFloat(value);
+        }
+        return appended(path);
+    }
+
+    /**
+     * This method appends a vector of unsigned bytes
+     * @param path the path of the image the vector comes from, it must not contain a line break
+     * @param vector the vector
+     * @return returns the id of the vector
+     * @throws IOException when the append buffer cannot be flushed
+     */
+    public synchronized long append(String path, byte[] vector) throws IOException {
+        checkAppend(path, vector.length);
+        if(this.type == ElementType.BYTE){
+            this.pendingVectors.put(vector);
+        } else {
+            for(byte value : vector) this.pendingVectors.putFloat(value & 0xff);
+        }
+        return appended(path);
+    }
+
+    /**
+     * This method appends a vector of floats, BYTE stores round and clamp every value to 0 - 255
+     * @param path the path of the image the vector comes from, it must not contain a line break
+     * @param vector the vector
+     * @return returns the id of the vector
+     * @throws IOException when the append buffer cannot be flushed
+     */
+    public synchronized long append(String path, float[] vector) throws IOException {
+        checkAppend(path, vector.length);
+        if(this.type == ElementType.BYTE){
+            for(float value : vector) this.pendingVectors.put((byte) Math.min(255, Math.max(0, Math.round(value))));
+        } else {
+            for(float value : vector) this.pendingVectors.putFloat(value);
+        }
+        return appended(path);
+    }
+
+    /**
+     * This method returns a read-only view of a stored vector straight over the mapped file, without copying it.
+     * The view is little endian; a BYTE vector has dimension bytes, a FLOAT vector dimension floats. A vector not
+     * flushed yet is copied out of the append buffer instead, which is reused once it is flushed.
+     * @param id the id of the vector
+     * @return returns the view
+     * @throws IOException when the file cannot be mapped
+     */
+    public ByteBuffer vectorView(long id) throws IOException {
+        checkId(id);
+        if(id >= this.committed){
+            ByteBuffer pending = pendingCopy(id);
+            if(pending != null) return pending;
+        }
+        MappedByteBuffer chunk = chunkFor(id);
+        int position = (int) ((id % this.vectorsPerChunk) * this.vectorBytes);
+        return chunk.slice(position, this.vectorBytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * This method copies a BYTE vector
+     * @param id the id of the vector
+     * @param destination the array to fill, a new one is allocated when it is null or too small
+     * @return returns the vector
+     * @throws IOException when the file cannot be mapped
+     */
+    public byte[] getBytes(long id, byte[] destination) throws IOException {
+        if(this.type != ElementType.BYTE){
+            throw new IllegalStateException("the store holds " + this.type + " vectors");
+        }
+        if(destination == null || destination.length < this.dimension){
+            destination = new byte[this.dimension];
+        }
+        vectorView(id).get(0, destination, 0, this.dimension);
+        return destination;
+    }
+
+    /**
+     * This method copies a FLOAT vector
+     * @param id the id of the vector
+     * @param destination the array to fill, a new one is allocated when it is null or too small
+     * @return returns the vector
+     * @throws IOException when the file cannot be mapped
+     */
+    public float[] getFloats(long id, float[] destination) throws IOException {
+        if(this.type != ElementType.FLOAT){
+            throw new IllegalStateException("the store holds " + this.type + " vectors");
+        }
+        if(destination == null || destination.length < this.dimension){
+            destination = new float[this.dimension];
+        }
+        vectorView(id).asFloatBuffer().get(0, destination, 0, this.dimension);
+        return destination;
+    }
+
+    /**
+     * This method copies a vector into ints (unsigned bytes, or floats rounded), the form flattenImage produces
+     * @param id the id of the vector
+     * @param destination the array to fill, a new one is allocated when it is null or too small
+     * @return returns the vector
+     * @throws IOException when the file cannot be mapped
+     */
+    public int[] getInts(long id, int[] destination) throws IOException {
+        if(destination == null || destination.length < this.dimension){
+            destination = new int[this.dimension];
+        }
+        ByteBuffer view = vectorView(id);
+        for(int i = 0; i < this.dimension; i++){
+            destination[i] = this.type == ElementType.BYTE ? view.get(i) & 0xff : Math.round(view.getFloat(4 * i));
+        }
+        return destination;
+    }
+
+    /**
+     * This method looks up the path of a vector, the path table is indexed up to the id on first use
+     * @param id the id of the vector
+     * @return returns the path
+     * @throws IOException when the path file cannot be read
+     */
+    public synchronized String getPath(long id) throws IOException {
+        checkId(id);
+        // the path file is read from disk: write the buffered paths there, the header does not need to cover them
+        if(id >= this.committed && this.pendingPaths.position() > 0) writePendingPaths();
+        indexPaths(id + 1);
+        long start = this.pathOffsets[(int) id];
+        long end = id + 1 < this.indexedPaths ? this.pathOffsets[(int) id + 1] - 1 : findLineEnd(start);
+        ByteBuffer line = ByteBuffer.allocate((int) (end - start));
+        readFully(this.paths, line, start);
+        return new String(line.array(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * This method writes the buffered vectors and paths and then the header, after which they survive a crash
+     * @throws IOException when the files cannot be written
+     */
+    public synchronized void flush() throws IOException {
+        if(!this.writable || this.count == this.committed) return;
+        this.pendingVectors.flip();
+        writeFully(this.vectors, this.pendingVectors, HEADER_SIZE + this.committed * this.vectorBytes);
+        this.pendingVectors.clear();
+        this.pendingPaths.flip();
+        long newPathsLength = this.pathsLength + this.pendingPaths.remaining();
+        writeFully(this.paths, this.pendingPaths, this.pathsLength);
+        this.pendingPaths.clear();
+        this.vectors.force(false);
+        this.paths.force(false);
+        // the header goes last, it is what makes the new vectors part of the store
+        ByteBuffer counts = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN).putLong(this.count).putLong(newPathsLength);
+        counts.flip();
+        writeFully(this.vectors, counts, COUNT_OFFSET);
+        this.vectors.force(false);
+        this.pathsLength = newPathsLength;
+        this.committed = this.count;
+    }
+
+    /**
+     * This method flushes the store and closes its files, the mappings are released when they are garbage collected
+     * @throws IOException when the files cannot be written or closed
+     */
+    @Override
+    public void close() throws IOException {
+        try{
+            flush();
+            if(this.writable){
+                try{
+                    // cut off the space mapped ahead of the data, no view reaches past the committed vectors
+                    this.vectors.truncate(HEADER_SIZE + this.committed * this.vectorBytes);
+                } catch (IOException e){
+                    // some platforms refuse while the file is mapped: the next writable open cuts it off
+                }
+            }
+        } finally {
+            this.vectors.close();
+            this.paths.close();
+        }
+    }
+
+    private void checkAppend(String path, int length) throws IOException {
+        if(!this.writable){
+            throw new IllegalStateException("the store was opened read only");
+        }
+        if(length != this.dimension){
+            throw new IllegalArgumentException("expected a vector of " + this.dimension + " components, got " + length);
+        }
+        if(path.indexOf('\n') >= 0 || path.indexOf('\r') >= 0){
+            throw new IllegalArgumentException("the path must not contain a line break");
+        }
+        if(this.pendingVectors.remaining() < this.vectorBytes){
+            flush();
+        }
+    }
+
+    private long appended(String path) throws IOException {
+        byte[] encoded = (path + "\n").getBytes(StandardCharsets.UTF_8);
+        if(this.pendingPaths.remaining() < encoded.length){
+            // the vector is already buffered, so its path must be written directly after the buffered paths
+            writePendingPaths();
+            writeFully(this.paths, ByteBuffer.wrap(encoded), this.pathsLength);
+            this.pathsLength += encoded.length;
+            // pathsLength now runs ahead of the header until the next flush records it
+            return this.count++;
+        }
+        this.pendingPaths.put(encoded);
+        return this.count++;
+    }
+
+    /**
+     * This method writes the buffered paths after those already in the path file, without syncing: pathsLength then
+     * runs ahead of the header until the next flush records it
+     */
+    private void writePendingPaths() throws IOException {
+        this.pendingPaths.flip();
+        writeFully(this.paths, this.pendingPaths, this.pathsLength);
+        this.pathsLength += this.pendingPaths.limit();
+        this.pendingPaths.clear();
+    }
+
+    /**
+     * This method copies a vector that is still in the append buffer
+     * @return returns the copy, null when the vector has been flushed meanwhile
+     */
+    private synchronized ByteBuffer pendingCopy(long id) {
+        if(id < this.committed) return null;
+        ByteBuffer copy = ByteBuffer.allocate(this.vectorBytes);
+        copy.put(0, this.pendingVectors, (int) ((id - this.committed) * this.vectorBytes), this.vectorBytes);
+        return copy.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void checkId(long id) {
+        long size = size();
+        if(id < 0 || id >= size){
+            throw new IndexOutOfBoundsException("no vector with id " + id + " (size " + size + ")");
+        }
+    }
+
+    /**
+     * This method returns the mapping of the chunk holding a vector, mapping (or remapping a chunk that has grown) on
+     * first use
+     */
+    private synchronized MappedByteBuffer chunkFor(long id) throws IOException {
+        int chunk = (int) (id / this.vectorsPerChunk);
+        if(chunk >= this.chunks.length){
+            this.chunks = Arrays.copyOf(this.chunks, chunk + 1);
+            this.chunkVectors = Arrays.copyOf(this.chunkVectors, chunk + 1);
+        }
+        long first = chunk * this.vectorsPerChunk;
+        if(this.chunks[chunk] == null || first + this.chunkVectors[chunk] <= id){
+            long vectorsInChunk = Math.min(this.vectorsPerChunk, this.committed - first);
+            if(this.writable){
+                // appends keep moving the end: map (and so grow the file) twice as far as the chunk was, so the chunk
+                // is remapped a logarithmic number of times instead of after every flush
+                long ahead = Math.max(2 * this.chunkVectors[chunk], WRITE_BUFFER_BYTES / this.vectorBytes);
+                vectorsInChunk = Math.min(this.vectorsPerChunk, Math.max(vectorsInChunk, ahead));
+            }
+            this.chunks[chunk] = this.vectors.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + first * this.vectorBytes, vectorsInChunk * this.vectorBytes);
+            this.chunkVectors[chunk] = vectorsInChunk;
+        }
+        return this.chunks[chunk];
+    }
+
+    /**
+     * This method records the start of every path line up to the given number of lines
+     */
+    private void indexPaths(long lines) throws IOException {
+        if(this.indexedPaths >= lines) return;
+        if(this.pathOffsets.length < lines){
+            this.pathOffsets = Arrays.copyOf(this.pathOffsets, (int) Math.max(lines, Math.min(Integer.MAX_VALUE - 8, this.pathOffsets.length * 2L + 16)));
+        }
+        long position = this.indexedPaths == 0 ? 0 : findLineEnd(this.pathOffsets[(int) this.indexedPaths - 1]) + 1;
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        long end = this.paths.size();
+        if(this.indexedPaths < lines) this.pathOffsets[(int) this.indexedPaths++] = position;
+        while(this.indexedPaths < lines && position < end){
+            buffer.clear();
+            int read = this.paths.read(buffer, position);
+            if(read <= 0) break;
+            for(int i = 0; i < read && this.indexedPaths < lines; i++){
+                if(buffer.get(i) == '\n') this.pathOffsets[(int) this.indexedPaths++] = position + i + 1;
+            }
+            position += read;
+        }
+    }
+
+    private long findLineEnd(long start) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        long position = start;
+        while(true){
+            buffer.clear();
+            int read = this.paths.read(buffer, position);
+            if(read <= 0) throw new IOException("the path file is truncated");
+            for(int i = 0; i < read; i++){
+                if(buffer.get(i) == '\n') return position + i;
+            }
+            position += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining()){
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining()){
+            int read = channel.read(buffer, position);
+            if(read < 0) throw new IOException("unexpected end of file");
+            position += read;
+        }
+    }
+}